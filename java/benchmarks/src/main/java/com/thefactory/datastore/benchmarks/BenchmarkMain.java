@@ -0,0 +1,18 @@
+package com.thefactory.datastore.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* Runs the benchmarks with JMH's command line options, always reporting the
+   allocation rate (gc.alloc.rate.norm is bytes allocated per operation). */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                   .parent(cmdOptions)
+                   .addProfiler(GCProfiler.class)
+                   .build()).run();
+    }
+}
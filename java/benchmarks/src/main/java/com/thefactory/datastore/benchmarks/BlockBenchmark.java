@@ -0,0 +1,78 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.BlockReader;
+import com.thefactory.datastore.BlockWriter;
+import com.thefactory.datastore.KV;
+import com.thefactory.datastore.Slice;
+import com.thefactory.datastore.TabletWriterOptions;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* Encoding and searching one data block of about 4 KB. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockBenchmark {
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"16", "256"})
+    public int valueSize;
+
+    @Param({"1", "16", "64"})
+    public int restartInterval;
+
+    private TabletWriterOptions opts;
+    private Slice[] keys;
+    private Slice[] shuffled;
+    private Slice value;
+    private BlockWriter writer;
+    private Slice block;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        opts = new TabletWriterOptions();
+        opts.keyRestartInterval = restartInterval;
+        value = Keys.value(valueSize);
+
+        int count = Math.max(1, opts.blockSize / (keySize + valueSize));
+        keys = Keys.keys(count, keySize);
+        shuffled = Keys.shuffled(count, keySize);
+
+        writer = new BlockWriter(opts);
+        for (Slice key : keys) {
+            writer.append(key, value);
+        }
+        block = new Slice(writer.finish());
+    }
+
+    /* append a block's keys and finish it, reusing the writer like TabletWriter does */
+    @Benchmark
+    public Slice append() {
+        writer.reset();
+        for (Slice key : keys) {
+            writer.append(key, value);
+        }
+        return writer.finishInPlace();
+    }
+
+    @Benchmark
+    public KV find() {
+        Slice key = shuffled[next++ % shuffled.length];
+        return new BlockReader(block).find(key).next();
+    }
+
+    @Benchmark
+    public void findAll(Blackhole bh) {
+        Iterator<KV> kvs = new BlockReader(block).find();
+        while (kvs.hasNext()) {
+            bh.consume(kvs.next());
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.Batch;
+import com.thefactory.datastore.Database;
+import com.thefactory.datastore.DatastoreChannel;
+import com.thefactory.datastore.DiskFileSystem;
+import com.thefactory.datastore.FileSystem;
+import com.thefactory.datastore.FileTablet;
+import com.thefactory.datastore.KV;
+import com.thefactory.datastore.MemFileSystem;
+import com.thefactory.datastore.MemoryTablet;
+import com.thefactory.datastore.Slice;
+import com.thefactory.datastore.TabletReaderOptions;
+import com.thefactory.datastore.TabletWriter;
+import com.thefactory.datastore.TabletWriterOptions;
+import com.thefactory.datastore.TransactionLog;
+import com.thefactory.datastore.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* End to end benchmarks of Database, FileTablet and TransactionLog, after LevelDB's
+   db_bench and the C# BenchmarkTests. Run with
+
+     sbt "benchmarks/run-main com.thefactory.datastore.benchmarks.DbBench --num=1000000 --fs=mem,disk"
+
+   Settings are given as --name=value, see usage(). The benchmarks run in the order
+   given against one database per file system: the fill benchmarks start from an empty
+   database and the others use what the previous ones left, filling it first if
+   nothing has. Each reports ops/s, MB/s of keys and values and the latency of each
+   call. */
+public class DbBench {
+    private String benchmarks = "fillseq,fillrandom,overwrite,readseq,readrandom,findall,"
+        + "readwhilewriting,mixed,tabletfill,tabletfindall,tabletreadrandom,logwrite,logreplay";
+    private int num = 100000;
+    private int reads = -1;
+    private int threads = 1;
+    private int keySize = 16;
+    private int valueSize = 100;
+    private int readPercent = 90;
+    private long writeBufferSize = 4 * 1024 * 1024;
+    private long rowCacheSize = 0;
+    private String fileSystems = "mem";
+    private String dir = null;
+
+    // the database's file system and directory; the tablet and log benchmarks use
+    // files of their own in base on scratch, which outlive the databases
+    private FileSystem fs;
+    private FileSystem scratch;
+    private String base;
+    private String path;
+    private Database db = null;
+    private boolean filled = false;
+
+    public static void main(String[] args) throws Exception {
+        DbBench bench = new DbBench();
+        for (String arg : args) {
+            if (!bench.set(arg)) {
+                System.err.println("unknown argument " + arg);
+                usage();
+                System.exit(1);
+            }
+        }
+        bench.run();
+    }
+
+    private static void usage() {
+        System.err.println("DbBench [--name=value ...]\n"
+            + "  --benchmarks=a,b,...  fillseq fillrandom overwrite readseq readrandom findall\n"
+            + "                        readwhilewriting mixed tabletfill tabletfindall\n"
+            + "                        tabletreadrandom logwrite logreplay\n"
+            + "  --num=N               keys written by the fill benchmarks\n"
+            + "  --reads=N             lookups by the read benchmarks, --num by default\n"
+            + "  --threads=N           threads running each benchmark, splitting its work\n"
+            + "  --key_size=N --value_size=N\n"
+            + "  --read_percent=N      reads among the operations of mixed\n"
+            + "  --write_buffer_size=N bytes of the mutable tablet before it is flushed\n"
+            + "  --row_cache_size=N    bytes of Database.Options.rowCacheSize\n"
+            + "  --fs=mem,disk         file systems to run the benchmarks on, in turn\n"
+            + "  --db=DIR              database directory on disk, a temporary one by default");
+    }
+
+    private boolean set(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0) {
+            return false;
+        }
+        String name = arg.substring(2, eq);
+        String value = arg.substring(eq + 1);
+        if (name.equals("benchmarks")) {
+            benchmarks = value;
+        } else if (name.equals("num")) {
+            num = Integer.parseInt(value);
+        } else if (name.equals("reads")) {
+            reads = Integer.parseInt(value);
+        } else if (name.equals("threads")) {
+            threads = Math.max(1, Integer.parseInt(value));
+        } else if (name.equals("key_size")) {
+            keySize = Integer.parseInt(value);
+        } else if (name.equals("value_size")) {
+            valueSize = Integer.parseInt(value);
+        } else if (name.equals("read_percent")) {
+            readPercent = Integer.parseInt(value);
+        } else if (name.equals("write_buffer_size")) {
+            writeBufferSize = Long.parseLong(value);
+        } else if (name.equals("row_cache_size")) {
+            rowCacheSize = Long.parseLong(value);
+        } else if (name.equals("fs")) {
+            fileSystems = value;
+        } else if (name.equals("db")) {
+            dir = value;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void run() throws Exception {
+        if (reads < 0) {
+            reads = num;
+        }
+        for (String fsName : fileSystems.split(",")) {
+            if (fsName.equals("mem")) {
+                fs = new MemFileSystem();
+                scratch = new MemFileSystem();
+                base = "dbbench";
+            } else if (fsName.equals("disk")) {
+                fs = new DiskFileSystem();
+                scratch = fs;
+                base = dir != null ? dir : Utils.createTempDirectory("dbbench-").getPath();
+            } else {
+                throw new IllegalArgumentException("unknown file system " + fsName);
+            }
+            if (!scratch.exists(base)) {
+                scratch.mkdirs(base);
+            }
+            path = new File(base, "db").getPath();
+            printHeader(fsName);
+
+            filled = false;
+            try {
+                for (String name : benchmarks.split(",")) {
+                    runBenchmark(name.trim());
+                }
+            } finally {
+                destroy();
+                if (fs instanceof DiskFileSystem && dir == null) {
+                    Utils.deletePathRecursive(new File(base));
+                }
+            }
+        }
+    }
+
+    private void printHeader(String fsName) {
+        System.out.println(String.format("Keys:       %d bytes each", keySize));
+        System.out.println(String.format("Values:     %d bytes each (%d bytes after compression)", valueSize, valueSize / 2));
+        System.out.println(String.format("Entries:    %d", num));
+        System.out.println(String.format("Threads:    %d", threads));
+        System.out.println(String.format("FileSystem: %s %s", fsName, fsName.equals("disk") ? base : ""));
+        System.out.println(String.format("Java:       %s, %d cpus", System.getProperty("java.version"),
+                                         Runtime.getRuntime().availableProcessors()));
+        System.out.println("------------------------------------------------");
+    }
+
+    private void runBenchmark(String name) throws Exception {
+        Stats stats;
+        if (name.equals("fillseq")) {
+            fresh();
+            stats = runThreads(threads, new Write(true, num));
+            filled = true;
+        } else if (name.equals("fillrandom")) {
+            fresh();
+            stats = runThreads(threads, new Write(false, num));
+            filled = true;
+        } else if (name.equals("overwrite")) {
+            fill();
+            stats = runThreads(threads, new Write(false, num));
+        } else if (name.equals("readseq")) {
+            fill();
+            stats = runThreads(threads, new Read(true));
+        } else if (name.equals("readrandom")) {
+            fill();
+            stats = runThreads(threads, new Read(false));
+        } else if (name.equals("findall")) {
+            fill();
+            stats = runThreads(threads, new FindAll());
+        } else if (name.equals("readwhilewriting")) {
+            fill();
+            stats = readWhileWriting();
+        } else if (name.equals("mixed")) {
+            fill();
+            stats = runThreads(threads, new Mixed());
+        } else if (name.equals("tabletfill")) {
+            stats = tabletFill();
+        } else if (name.equals("tabletfindall")) {
+            stats = runThreads(threads, new TabletFindAll(tablet()));
+        } else if (name.equals("tabletreadrandom")) {
+            stats = runThreads(threads, new TabletRead(tablet()));
+        } else if (name.equals("logwrite")) {
+            stats = logWrite();
+        } else if (name.equals("logreplay")) {
+            stats = logReplay();
+        } else {
+            System.err.println("unknown benchmark " + name);
+            return;
+        }
+        System.out.println(stats.report(name));
+    }
+
+    /* the work of one benchmark, split among the threads running it */
+    private interface Workload {
+        void run(int thread, Stats stats) throws IOException;
+    }
+
+    /* run the workload on n threads started together, merging their stats */
+    private Stats runThreads(int n, final Workload workload) throws Exception {
+        final CountDownLatch ready = new CountDownLatch(n);
+        final CountDownLatch go = new CountDownLatch(1);
+        final List<Stats> results = new ArrayList<Stats>();
+        final List<Exception> errors = new ArrayList<Exception>();
+        List<Thread> running = new ArrayList<Thread>();
+
+        for (int i = 0; i < n; i++) {
+            final int thread = i;
+            final Stats stats = new Stats();
+            results.add(stats);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                        stats.start();
+                        workload.run(thread, stats);
+                        stats.finish();
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            }, "dbbench-" + i);
+            running.add(t);
+            t.start();
+        }
+
+        ready.await();
+        go.countDown();
+        for (Thread t : running) {
+            t.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+
+        Stats ret = results.get(0);
+        for (Stats stats : results.subList(1, results.size())) {
+            ret.merge(stats);
+        }
+        return ret;
+    }
+
+    /* the first and one past the last of count items done by thread */
+    private int begin(int thread, int count) {
+        return (int) ((long) count * thread / threads);
+    }
+
+    private int end(int thread, int count) {
+        return begin(thread + 1, count);
+    }
+
+    private class Write implements Workload {
+        private final boolean seq;
+        private final int count;
+
+        Write(boolean seq, int count) {
+            this.seq = seq;
+            this.count = count;
+        }
+
+        public void run(int thread, Stats stats) throws IOException {
+            Random random = new Random(1000 + thread);
+            Values values = new Values(random);
+            long bytes = 0;
+            for (int i = begin(thread, count); i < end(thread, count); i++) {
+                Slice key = key(seq ? i : random.nextInt(num));
+                Slice value = values.next(valueSize);
+                db.put(key, value);
+                bytes += key.getLength() + value.getLength();
+                stats.finishedOps(1);
+            }
+            stats.addBytes(bytes);
+        }
+    }
+
+    private class Read implements Workload {
+        private final boolean seq;
+
+        Read(boolean seq) {
+            this.seq = seq;
+        }
+
+        public void run(int thread, Stats stats) throws IOException {
+            Random random = new Random(2000 + thread);
+            long bytes = 0;
+            int found = 0;
+            for (int i = begin(thread, reads); i < end(thread, reads); i++) {
+                Slice key = key(seq ? i % num : random.nextInt(num));
+                Slice value = db.getOrElse(key, null);
+                if (value != null) {
+                    bytes += key.getLength() + value.getLength();
+                    found++;
+                }
+                stats.finishedOps(1);
+            }
+            stats.addBytes(bytes);
+            stats.addFound(found);
+        }
+    }
+
+    /* every thread scans the whole database */
+    private class FindAll implements Workload {
+        public void run(int thread, Stats stats) throws IOException {
+            Iterator<KV> kvs = db.find();
+            long bytes = 0;
+            while (kvs.hasNext()) {
+                KV kv = kvs.next();
+                bytes += kv.getKey().getLength() + kv.getValue().getLength();
+                stats.finishedOps(1);
+            }
+            stats.addBytes(bytes);
+        }
+    }
+
+    private class Mixed implements Workload {
+        public void run(int thread, Stats stats) throws IOException {
+            Random random = new Random(3000 + thread);
+            Values values = new Values(random);
+            long bytes = 0;
+            for (int i = begin(thread, reads); i < end(thread, reads); i++) {
+                Slice key = key(random.nextInt(num));
+                if (random.nextInt(100) < readPercent) {
+                    Slice value = db.getOrElse(key, null);
+                    bytes += key.getLength() + (value == null ? 0 : value.getLength());
+                } else {
+                    Slice value = values.next(valueSize);
+                    db.put(key, value);
+                    bytes += key.getLength() + value.getLength();
+                }
+                stats.finishedOps(1);
+            }
+            stats.addBytes(bytes);
+        }
+    }
+
+    /* random reads on the benchmark threads while one more thread overwrites up to
+       num random keys as fast as it can; only the reads are reported. The writes are
+       bounded since nothing merges the tablets they flush. */
+    private Stats readWhileWriting() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final List<IOException> errors = new ArrayList<IOException>();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                Random random = new Random(4000);
+                Values values = new Values(random);
+                try {
+                    for (int i = 0; i < num && !done.get(); i++) {
+                        db.put(key(random.nextInt(num)), values.next(valueSize));
+                    }
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+            }
+        }, "dbbench-writer");
+        writer.start();
+
+        Stats ret;
+        try {
+            ret = runThreads(threads, new Read(false));
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        return ret;
+    }
+
+
+    /* write num sorted keys to a tablet */
+    private Stats tabletFill() throws IOException {
+        final Stats stats = new Stats();
+        final Values values = new Values(new Random(5000));
+        Iterator<KV> kvs = new Iterator<KV>() {
+            private int i = 0;
+            private long bytes = 0;
+
+            public boolean hasNext() {
+                return i < num;
+            }
+
+            public KV next() {
+                if (i >= num) {
+                    throw new NoSuchElementException();
+                }
+                KV ret = new KV(key(i++), values.next(valueSize));
+                stats.addBytes(ret.getKey().getLength() + ret.getValue().getLength());
+                stats.finishedOps(1);
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        stats.start();
+        DatastoreChannel out = scratch.create(scratchFile("bench.tab"));
+        try {
+            new TabletWriter(new TabletWriterOptions()).writeTablet(out, kvs);
+        } finally {
+            out.close();
+        }
+        stats.finish();
+        return stats;
+    }
+
+    private FileTablet tablet() throws IOException {
+        if (!scratch.exists(scratchFile("bench.tab"))) {
+            tabletFill();
+        }
+        return new FileTablet(scratch.open(scratchFile("bench.tab")), new TabletReaderOptions());
+    }
+
+    private static class TabletFindAll implements Workload {
+        private final FileTablet tablet;
+
+        TabletFindAll(FileTablet tablet) {
+            this.tablet = tablet;
+        }
+
+        public void run(int thread, Stats stats) throws IOException {
+            Iterator<KV> kvs = tablet.find();
+            long bytes = 0;
+            while (kvs.hasNext()) {
+                KV kv = kvs.next();
+                bytes += kv.getKey().getLength() + kv.getValue().getLength();
+                stats.finishedOps(1);
+            }
+            stats.addBytes(bytes);
+        }
+    }
+
+    private class TabletRead implements Workload {
+        private final FileTablet tablet;
+
+        TabletRead(FileTablet tablet) {
+            this.tablet = tablet;
+        }
+
+        public void run(int thread, Stats stats) throws IOException {
+            Random random = new Random(6000 + thread);
+            long bytes = 0;
+            for (int i = begin(thread, reads); i < end(thread, reads); i++) {
+                Iterator<KV> kvs = tablet.find(key(random.nextInt(num)));
+                if (kvs.hasNext()) {
+                    KV kv = kvs.next();
+                    bytes += kv.getKey().getLength() + kv.getValue().getLength();
+                }
+                stats.finishedOps(1);
+            }
+            stats.addBytes(bytes);
+        }
+    }
+
+    /* write num single put transactions to a transaction log */
+    private Stats logWrite() throws IOException {
+        Stats stats = new Stats();
+        Values values = new Values(new Random(7000));
+        Batch batch = new Batch();
+        TransactionLog.Writer writer = new TransactionLog(scratch).getWriter(scratchFile("bench.log"));
+        stats.start();
+        try {
+            for (int i = 0; i < num; i++) {
+                batch.clear();
+                batch.put(key(i), values.next(valueSize));
+                Slice data = batch.asSlice();
+                writer.writeTransaction(data);
+                stats.addBytes(data.getLength());
+                stats.finishedOps(1);
+            }
+        } finally {
+            writer.close();
+        }
+        stats.finish();
+        return stats;
+    }
+
+    /* read the transaction log back into a memory tablet, as opening a database does */
+    private Stats logReplay() throws IOException {
+        if (!scratch.exists(scratchFile("bench.log"))) {
+            logWrite();
+        }
+        Stats stats = new Stats();
+        MemoryTablet tablet = new MemoryTablet();
+        TransactionLog.Reader reader = new TransactionLog(scratch).getReader(scratchFile("bench.log"));
+        stats.start();
+        try {
+            Iterator<Slice> transactions = reader.transactions();
+            while (transactions.hasNext()) {
+                Slice data = transactions.next();
+                stats.addBytes(data.getLength());
+                tablet.apply(Batch.wrap(data));
+                stats.finishedOps(1);
+            }
+        } finally {
+            reader.close();
+        }
+        stats.finish();
+        return stats;
+    }
+
+    private String scratchFile(String name) {
+        return new File(base, name).getPath();
+    }
+
+    /* keySize bytes: the key number in decimal, padded with zeros */
+    private Slice key(int k) {
+        byte[] ret = new byte[keySize];
+        for (int i = ret.length - 1; i >= 0; i--) {
+            ret[i] = (byte) ('0' + k % 10);
+            k /= 10;
+        }
+        return new Slice(ret);
+    }
+
+    /* Values cut from a buffer of half random, half repeated bytes, so they compress
+       to about half their size. */
+    private static class Values {
+        private final byte[] data = new byte[1024 * 1024];
+        private int pos = 0;
+
+        Values(Random random) {
+            byte[] chunk = new byte[100];
+            for (int i = 0; i < data.length; i += chunk.length) {
+                random.nextBytes(chunk);
+                for (int j = 0; j < chunk.length && i + j < data.length; j++) {
+                    data[i + j] = j < chunk.length / 2 ? chunk[j] : chunk[j % 10];
+                }
+            }
+        }
+
+        Slice next(int size) {
+            if (pos + size > data.length) {
+                pos = 0;
+            }
+            Slice ret = new Slice(data, pos, Math.min(size, data.length));
+            pos += size;
+            return ret;
+        }
+    }
+
+    private Database.Options options() {
+        Database.Options ret = new Database.Options(fs, writeBufferSize);
+        ret.rowCacheSize = rowCacheSize;
+        // the database is thrown away after the benchmarks
+        ret.flushOnClose = false;
+        return ret;
+    }
+
+    /* start over with an empty database */
+    private void fresh() throws IOException {
+        destroy();
+        db = Database.open(path, options());
+        filled = false;
+    }
+
+    /* make sure the database has keys for the read benchmarks */
+    private void fill() throws Exception {
+        if (db == null) {
+            db = Database.open(path, options());
+        }
+        if (!filled) {
+            runThreads(threads, new Write(true, num));
+            filled = true;
+        }
+    }
+
+    private void destroy() throws IOException {
+        if (db != null) {
+            db.close();
+            db = null;
+        }
+        if (fs instanceof DiskFileSystem) {
+            Utils.deletePathRecursive(new File(path));
+        } else {
+            fs = new MemFileSystem();
+        }
+    }
+}
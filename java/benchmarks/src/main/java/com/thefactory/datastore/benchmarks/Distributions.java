@@ -0,0 +1,132 @@
+package com.thefactory.datastore.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/* The item distributions of YCSB (Cooper et al., "Benchmarking Cloud Serving Systems
+   with YCSB"), choosing among a number of items that may grow as a workload inserts.
+   Safe to share between threads. */
+class Distributions {
+
+    interface Distribution {
+        /* an item in [0, items) */
+        long next(long items);
+    }
+
+    static Distribution forName(String name) {
+        if (name.equals("uniform")) {
+            return new Uniform();
+        } else if (name.equals("zipfian")) {
+            return new ScrambledZipfian();
+        } else if (name.equals("latest")) {
+            return new Latest();
+        }
+        throw new IllegalArgumentException("unknown distribution " + name);
+    }
+
+    static class Uniform implements Distribution {
+        public long next(long items) {
+            return (long) (ThreadLocalRandom.current().nextDouble() * items);
+        }
+    }
+
+    static final double ZIPFIAN_CONSTANT = 0.99;
+
+    /* Items by Gray et al.'s "Quickly Generating Billion-Record Synthetic Databases":
+       item 0 is the most popular, then item 1 and so on. When the number of items
+       grows, zeta is extended from the previous count rather than recomputed. */
+    static class Zipfian implements Distribution {
+        private final double theta;
+        private final double zeta2theta;
+        private final double alpha;
+        private long countForZeta;
+        private double zetan;
+        private double eta;
+
+        Zipfian(long items) {
+            this(items, ZIPFIAN_CONSTANT, zeta(0, items, ZIPFIAN_CONSTANT, 0));
+        }
+
+        /* with zetan precomputed for items */
+        Zipfian(long items, double theta, double zetan) {
+            this.theta = theta;
+            this.zeta2theta = zeta(0, 2, theta, 0);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.countForZeta = items;
+            this.zetan = zetan;
+            this.eta = eta(items);
+        }
+
+        /* the sum of 1 / i^theta for i in (from, to], added to initial */
+        private static double zeta(long from, long to, double theta, double initial) {
+            double ret = initial;
+            for (long i = from; i < to; i++) {
+                ret += 1 / Math.pow(i + 1, theta);
+            }
+            return ret;
+        }
+
+        private double eta(long items) {
+            return (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2theta / zetan);
+        }
+
+        public long next(long items) {
+            double zetan, eta;
+            synchronized (this) {
+                if (items != countForZeta) {
+                    if (items > countForZeta) {
+                        this.zetan = zeta(countForZeta, items, theta, this.zetan);
+                    } else {
+                        this.zetan = zeta(0, items, theta, 0);
+                    }
+                    this.eta = eta(items);
+                    countForZeta = items;
+                }
+                zetan = this.zetan;
+                eta = this.eta;
+            }
+
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < 1.0 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    /* Zipfian with the popular items spread over the key space: a zipfian choice among
+       ten billion items, hashed into the actual ones, so the zeta of the large count is
+       a constant and growing the items costs nothing. */
+    static class ScrambledZipfian implements Distribution {
+        private static final long ITEM_COUNT = 10000000000L;
+        private static final double ZETAN = 26.46902820178302;
+        private final Zipfian zipfian = new Zipfian(ITEM_COUNT, ZIPFIAN_CONSTANT, ZETAN);
+
+        public long next(long items) {
+            return fnvHash64(zipfian.next(ITEM_COUNT)) % items;
+        }
+    }
+
+    /* Zipfian favouring the most recently inserted items. */
+    static class Latest implements Distribution {
+        private final Zipfian zipfian = new Zipfian(1);
+
+        public long next(long items) {
+            return items - 1 - zipfian.next(items);
+        }
+    }
+
+    /* FNV-1a of the long's bytes, least significant first, made non-negative */
+    static long fnvHash64(long value) {
+        long ret = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            ret ^= value & 0xff;
+            ret *= 1099511628211L;
+            value >>>= 8;
+        }
+        return ret & Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,49 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.Slice;
+import java.util.Random;
+
+/* Keys and values for the benchmarks: keys share a prefix, like the keys of one
+   tablet usually do, and end in a zero-padded counter so they sort by number. */
+class Keys {
+    private static final Random random = new Random(42);
+
+    static Slice key(int i, int size) {
+        String counter = String.format("%010d", i);
+        byte[] ret = new byte[Math.max(size, counter.length())];
+        for (int j = 0; j < ret.length - counter.length(); j++) {
+            ret[j] = (byte) ('a' + j % 26);
+        }
+        System.arraycopy(counter.getBytes(), 0, ret, ret.length - counter.length(), counter.length());
+        return new Slice(ret);
+    }
+
+    static Slice value(int size) {
+        // half random, half repeated, so the values compress about as well as real ones
+        byte[] ret = new byte[size];
+        byte[] noise = new byte[size / 2];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, ret, 0, noise.length);
+        return new Slice(ret);
+    }
+
+    static Slice[] keys(int count, int size) {
+        Slice[] ret = new Slice[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = key(i, size);
+        }
+        return ret;
+    }
+
+    /* the keys in random order */
+    static Slice[] shuffled(int count, int size) {
+        Slice[] ret = keys(count, size);
+        for (int i = ret.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Slice tmp = ret[i];
+            ret[i] = ret[j];
+            ret[j] = tmp;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,51 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.MemoryTablet;
+import com.thefactory.datastore.Slice;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Inserting keys in random order into a mutable tablet of up to COUNT keys. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryTabletBenchmark {
+    private static final int COUNT = 100000;
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"16", "256"})
+    public int valueSize;
+
+    private Slice[] keys;
+    private Slice value;
+    private MemoryTablet tablet;
+    private int next;
+
+    @Setup
+    public void setup() {
+        keys = Keys.shuffled(COUNT, keySize);
+        value = Keys.value(valueSize);
+    }
+
+    @Setup(Level.Iteration)
+    public void newTablet() {
+        tablet = new MemoryTablet();
+        next = 0;
+    }
+
+    @Benchmark
+    public MemoryTablet set() {
+        if (next == keys.length) {
+            // keep the tablet size bounded, as flushes do
+            tablet = new MemoryTablet();
+            next = 0;
+        }
+        tablet.set(keys[next++], value);
+        return tablet;
+    }
+}
@@ -0,0 +1,69 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.Msgpack;
+import com.thefactory.datastore.Slice;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Decoding the integers and raw headers blocks are made of: each operation reads 1024. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(MsgpackBenchmark.COUNT)
+public class MsgpackBenchmark {
+    static final int COUNT = 1024;
+
+    // the largest value encoded: 100 fits a fixnum, 60000 a uint16, 1 << 30 a uint32
+    @Param({"100", "60000", "1073741824"})
+    public long maxValue;
+
+    private byte[] uints;
+    private int uintsLength;
+    private byte[] raws;
+    private int rawsLength;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(COUNT * 9);
+        for (int i = 0; i < COUNT; i++) {
+            Msgpack.writeUint(buf, maxValue - i % 8);
+        }
+        uints = buf.array();
+        uintsLength = buf.position();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(out);
+        for (int i = 0; i < COUNT; i++) {
+            Msgpack.writeRawLength(dos, (int) Math.min(maxValue - i % 8, Integer.MAX_VALUE));
+        }
+        raws = out.toByteArray();
+        rawsLength = raws.length;
+    }
+
+    @Benchmark
+    public long readUint() throws IOException {
+        Slice in = new Slice(uints, 0, uintsLength);
+        long ret = 0;
+        for (int i = 0; i < COUNT; i++) {
+            ret += Msgpack.readUint(in);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public long readRawLength() throws IOException {
+        Slice in = new Slice(raws, 0, rawsLength);
+        long ret = 0;
+        for (int i = 0; i < COUNT; i++) {
+            ret += Msgpack.readRawLength(in);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,54 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.Slice;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SliceBenchmark {
+    @Param({"16", "64", "256"})
+    public int keySize;
+
+    private Slice key;
+    private Slice equal;
+    private Slice differsLast;
+    private Slice differsFirst;
+
+    @Setup
+    public void setup() {
+        key = Keys.key(1, keySize);
+        // a copy at an offset, so compares can't take the x == y shortcut
+        byte[] copy = new byte[keySize + 3];
+        System.arraycopy(key.array, 0, copy, 3, keySize);
+        equal = new Slice(copy, 3, keySize);
+        differsLast = Keys.key(2, keySize);
+        byte[] first = key.toArray().clone();
+        first[0]++;
+        differsFirst = new Slice(first);
+    }
+
+    @Benchmark
+    public int compareEqual() {
+        return Slice.compare(key, equal);
+    }
+
+    @Benchmark
+    public int compareDiffersLast() {
+        return Slice.compare(key, differsLast);
+    }
+
+    @Benchmark
+    public int compareDiffersFirst() {
+        return Slice.compare(key, differsFirst);
+    }
+
+    @Benchmark
+    public long hash64() {
+        return key.hash64();
+    }
+}
@@ -0,0 +1,71 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.Histogram;
+
+/* Operations, bytes and per-call latencies of one benchmark thread; the threads'
+   stats are merged into one for the report. */
+class Stats {
+    private final Histogram latencies = new Histogram();
+    private long start;
+    private long finish;
+    private long lastOp;
+    private long ops = 0;
+    private long bytes = 0;
+    // lookups that found their key, or -1 when the benchmark doesn't look keys up
+    private long found = -1;
+
+    void start() {
+        start = System.nanoTime();
+        lastOp = start;
+    }
+
+    void finish() {
+        finish = System.nanoTime();
+    }
+
+    /* count n operations done since the previous call, e.g. the puts of one batch */
+    void finishedOps(int n) {
+        long now = System.nanoTime();
+        latencies.record(now - lastOp);
+        lastOp = now;
+        ops += n;
+    }
+
+    void addBytes(long n) {
+        bytes += n;
+    }
+
+    void addFound(long n) {
+        found = Math.max(0, found) + n;
+    }
+
+    /* merge the stats of a thread run alongside this one */
+    void merge(Stats that) {
+        latencies.merge(that.latencies);
+        ops += that.ops;
+        bytes += that.bytes;
+        start = Math.min(start, that.start);
+        finish = Math.max(finish, that.finish);
+        if (that.found >= 0) {
+            addFound(that.found);
+        }
+    }
+
+    String report(String name) {
+        double seconds = (finish - start) / 1e9;
+        long n = Math.max(1, ops);
+        StringBuilder ret = new StringBuilder();
+        ret.append(String.format("%-18s : %10.3f micros/op %10.0f ops/s", name, seconds * 1e6 / n, ops / seconds));
+        if (bytes > 0) {
+            ret.append(String.format(" %8.1f MB/s", bytes / 1048576.0 / seconds));
+        }
+        ret.append(String.format("  (%d ops)", ops));
+        if (found >= 0) {
+            ret.append(String.format(" (%d found)", found));
+        }
+        ret.append(String.format("%n%-18s   latency micros/call: p50 %.2f p99 %.2f p99.9 %.2f max %.2f",
+                                 "", latencies.percentile(50.0) / 1e3, latencies.percentile(99.0) / 1e3,
+                                 latencies.percentile(99.9) / 1e3, latencies.max() / 1e3));
+        return ret.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.BlockCodec;
+import com.thefactory.datastore.BlockReader;
+import com.thefactory.datastore.DatastoreChannel;
+import com.thefactory.datastore.FileSystem;
+import com.thefactory.datastore.FileTablet;
+import com.thefactory.datastore.MemFileSystem;
+import com.thefactory.datastore.MemoryTablet;
+import com.thefactory.datastore.Slice;
+import com.thefactory.datastore.TabletReader;
+import com.thefactory.datastore.TabletReaderOptions;
+import com.thefactory.datastore.TabletWriter;
+import com.thefactory.datastore.TabletWriterOptions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Unpacking a data block read from a tablet: uncompressing and checksumming it. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TabletReaderBenchmark {
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"16", "256"})
+    public int valueSize;
+
+    @Param({"SNAPPY", "LZ4", "ZSTD"})
+    public BlockCodec codec;
+
+    @Param({"false", "true"})
+    public boolean verifyChecksum;
+
+    private TabletReader reader = new TabletReader();
+    private byte[] packed;
+
+    @Setup
+    public void setup() throws Exception {
+        MemoryTablet mem = new MemoryTablet();
+        Slice value = Keys.value(valueSize);
+        for (Slice key : Keys.keys(1000, keySize)) {
+            mem.set(key, value);
+        }
+
+        TabletWriterOptions opts = new TabletWriterOptions();
+        opts.codec = codec;
+        FileSystem fs = new MemFileSystem();
+        DatastoreChannel out = fs.create("tablet");
+        new TabletWriter(opts).writeTablet(out, mem.find());
+        out.close();
+
+        // the first data block, as FileTablet reads it
+        FileTablet tablet = new FileTablet(fs.open("tablet"), new TabletReaderOptions());
+        TabletReader.TabletIndexRecord first = tablet.index().get(0);
+        tablet.close();
+        packed = new byte[first.length];
+        DatastoreChannel in = fs.open("tablet");
+        in.read(ByteBuffer.wrap(packed), first.offset);
+        in.close();
+    }
+
+    @Benchmark
+    public BlockReader readBlock() throws Exception {
+        return reader.readBlock(new Slice(packed), verifyChecksum);
+    }
+}
@@ -0,0 +1,453 @@
+package com.thefactory.datastore.benchmarks;
+
+import com.thefactory.datastore.Database;
+import com.thefactory.datastore.DiskFileSystem;
+import com.thefactory.datastore.FileSystem;
+import com.thefactory.datastore.Histogram;
+import com.thefactory.datastore.KV;
+import com.thefactory.datastore.MemFileSystem;
+import com.thefactory.datastore.Slice;
+import com.thefactory.datastore.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* The YCSB core workloads against Database: the database is loaded with --records
+   records, then --threads threads run the workload's operations, first for --warmup
+   seconds that aren't measured and then until --operations operations or --duration
+   seconds. Every --status seconds the throughput and latencies of that window are
+   printed, so stalls show up as they happen rather than averaged away. Run with
+
+     sbt "benchmarks/run-main com.thefactory.datastore.benchmarks.Ycsb --workload=a --threads=8"
+
+   The workloads, as in YCSB:
+
+     a  50% reads, 50% updates, zipfian
+     b  95% reads, 5% updates, zipfian
+     c  reads only, zipfian
+     d  95% reads, 5% inserts, reading the latest inserts most
+     e  95% scans of up to --max_scan_length records, 5% inserts, zipfian
+     f  50% reads, 50% read-modify-writes, zipfian
+
+   Their proportions and distribution can be overridden, e.g. --read_proportion=0.9. */
+public class Ycsb {
+    // the workload
+    private double readProportion;
+    private double updateProportion;
+    private double insertProportion;
+    private double scanProportion;
+    private double rmwProportion;
+    private String requestDistribution;
+    private int maxScanLength = 100;
+    private String scanLengthDistribution = "uniform";
+
+    // the data
+    private long records = 100000;
+    private int keySize = 24;
+    private int valueLength = 100;
+    private int minValueLength = 1;
+    private String valueLengthDistribution = "constant";
+
+    // the run
+    private int threads = 1;
+    private long operations = 1000000;
+    private int warmup = 10;
+    private int duration = 0;
+    private int status = 10;
+    private long writeBufferSize = 4 * 1024 * 1024;
+    private long rowCacheSize = 0;
+    private String fileSystem = "disk";
+    private String dir = null;
+
+    private Database db;
+    private Distributions.Distribution keys;
+    private Distributions.Distribution scanLengths;
+    private Distributions.Distribution valueLengths;
+    // the records loaded or inserted so far; inserts take the next key number
+    private final AtomicLong inserted = new AtomicLong();
+    private final byte[] values = new byte[1024 * 1024];
+
+    private enum Op { READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE }
+
+    private final Histogram[] totals = new Histogram[Op.values().length];
+    private final List<AtomicReference<Histogram>> windows = new ArrayList<AtomicReference<Histogram>>();
+    private volatile boolean measuring = false;
+    private volatile boolean stopping = false;
+
+    public Ycsb() {
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = new Histogram();
+            windows.add(new AtomicReference<Histogram>(new Histogram()));
+        }
+        ThreadLocalRandom.current().nextBytes(values);
+        workload("a");
+    }
+
+    private void workload(String name) {
+        readProportion = updateProportion = insertProportion = scanProportion = rmwProportion = 0;
+        requestDistribution = "zipfian";
+        if (name.equals("a")) {
+            readProportion = 0.5;
+            updateProportion = 0.5;
+        } else if (name.equals("b")) {
+            readProportion = 0.95;
+            updateProportion = 0.05;
+        } else if (name.equals("c")) {
+            readProportion = 1.0;
+        } else if (name.equals("d")) {
+            readProportion = 0.95;
+            insertProportion = 0.05;
+            requestDistribution = "latest";
+        } else if (name.equals("e")) {
+            scanProportion = 0.95;
+            insertProportion = 0.05;
+        } else if (name.equals("f")) {
+            readProportion = 0.5;
+            rmwProportion = 0.5;
+        } else {
+            throw new IllegalArgumentException("unknown workload " + name);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Ycsb ycsb = new Ycsb();
+        for (String arg : args) {
+            if (!ycsb.set(arg)) {
+                System.err.println("unknown argument " + arg);
+                usage();
+                System.exit(1);
+            }
+        }
+        ycsb.run();
+    }
+
+    private static void usage() {
+        System.err.println("Ycsb [--name=value ...]\n"
+            + "  --workload=a..f            sets the proportions and distribution below; give it first\n"
+            + "  --read_proportion=P --update_proportion=P --insert_proportion=P\n"
+            + "  --scan_proportion=P --rmw_proportion=P\n"
+            + "  --request_distribution=D   uniform, zipfian or latest\n"
+            + "  --max_scan_length=N --scan_length_distribution=D  constant, uniform or zipfian\n"
+            + "  --records=N                records loaded before the run\n"
+            + "  --key_size=N               keys are user followed by a hashed number padded to N bytes\n"
+            + "  --value_length=N --min_value_length=N\n"
+            + "  --value_length_distribution=D  constant, uniform or zipfian\n"
+            + "  --threads=N --operations=N --duration=SECONDS --warmup=SECONDS --status=SECONDS\n"
+            + "  --write_buffer_size=N --row_cache_size=N\n"
+            + "  --fs=disk|mem --db=DIR");
+    }
+
+    private boolean set(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0) {
+            return false;
+        }
+        String name = arg.substring(2, eq);
+        String value = arg.substring(eq + 1);
+        if (name.equals("workload")) {
+            workload(value.toLowerCase());
+        } else if (name.equals("read_proportion")) {
+            readProportion = Double.parseDouble(value);
+        } else if (name.equals("update_proportion")) {
+            updateProportion = Double.parseDouble(value);
+        } else if (name.equals("insert_proportion")) {
+            insertProportion = Double.parseDouble(value);
+        } else if (name.equals("scan_proportion")) {
+            scanProportion = Double.parseDouble(value);
+        } else if (name.equals("rmw_proportion")) {
+            rmwProportion = Double.parseDouble(value);
+        } else if (name.equals("request_distribution")) {
+            requestDistribution = value;
+        } else if (name.equals("max_scan_length")) {
+            maxScanLength = Integer.parseInt(value);
+        } else if (name.equals("scan_length_distribution")) {
+            scanLengthDistribution = value;
+        } else if (name.equals("records")) {
+            records = Long.parseLong(value);
+        } else if (name.equals("key_size")) {
+            keySize = Integer.parseInt(value);
+        } else if (name.equals("value_length")) {
+            valueLength = Integer.parseInt(value);
+        } else if (name.equals("min_value_length")) {
+            minValueLength = Integer.parseInt(value);
+        } else if (name.equals("value_length_distribution")) {
+            valueLengthDistribution = value;
+        } else if (name.equals("threads")) {
+            threads = Math.max(1, Integer.parseInt(value));
+        } else if (name.equals("operations")) {
+            operations = Long.parseLong(value);
+        } else if (name.equals("duration")) {
+            duration = Integer.parseInt(value);
+        } else if (name.equals("warmup")) {
+            warmup = Integer.parseInt(value);
+        } else if (name.equals("status")) {
+            status = Integer.parseInt(value);
+        } else if (name.equals("write_buffer_size")) {
+            writeBufferSize = Long.parseLong(value);
+        } else if (name.equals("row_cache_size")) {
+            rowCacheSize = Long.parseLong(value);
+        } else if (name.equals("fs")) {
+            fileSystem = value;
+        } else if (name.equals("db")) {
+            dir = value;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void run() throws Exception {
+        if (records < 1) {
+            throw new IllegalArgumentException("--records must be at least 1");
+        }
+        keys = Distributions.forName(requestDistribution);
+        scanLengths = lengths(scanLengthDistribution, maxScanLength);
+        valueLengths = lengths(valueLengthDistribution, valueLength - minValueLength + 1);
+
+        FileSystem fs;
+        String path;
+        if (fileSystem.equals("mem")) {
+            fs = new MemFileSystem();
+            path = "ycsb";
+        } else {
+            fs = new DiskFileSystem();
+            path = dir != null ? dir : Utils.createTempDirectory("ycsb-").getPath();
+        }
+        Database.Options options = new Database.Options(fs, writeBufferSize);
+        options.rowCacheSize = rowCacheSize;
+        options.flushOnClose = false;
+        db = Database.open(path, options);
+
+        try {
+            System.out.println(String.format("read %.2f update %.2f insert %.2f scan %.2f rmw %.2f, %s requests, %d threads",
+                                             readProportion, updateProportion, insertProportion, scanProportion,
+                                             rmwProportion, requestDistribution, threads));
+            load();
+            runWorkload();
+        } finally {
+            db.close();
+            if (fs instanceof DiskFileSystem && dir == null) {
+                Utils.deletePathRecursive(new File(path));
+            }
+        }
+    }
+
+    /* lengths in [0, n), with null for the constant n - 1; zipfian favours short ones */
+    private static Distributions.Distribution lengths(String name, long n) {
+        if (name.equals("constant")) {
+            return null;
+        } else if (name.equals("zipfian")) {
+            return new Distributions.Zipfian(n);
+        }
+        return Distributions.forName(name);
+    }
+
+    /* insert the records, split among the threads */
+    private void load() throws Exception {
+        final AtomicLong next = new AtomicLong();
+        long start = System.nanoTime();
+        runThreads(new Runnable() {
+            public void run() {
+                long n;
+                while ((n = next.getAndIncrement()) < records) {
+                    try {
+                        db.put(key(n), value());
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        inserted.set(records);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("load: %d records in %.1f s, %.0f records/s", inserted.get(), seconds, inserted.get() / seconds));
+    }
+
+    private void runWorkload() throws Exception {
+        final AtomicLong remaining = new AtomicLong(operations);
+        final long[] measured = new long[2];
+
+        Thread timer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    TimeUnit.SECONDS.sleep(warmup);
+                    resetWindows();
+                    measuring = true;
+                    measured[0] = System.nanoTime();
+                    long end = duration > 0 ? measured[0] + TimeUnit.SECONDS.toNanos(duration) : Long.MAX_VALUE;
+                    long window = System.nanoTime();
+                    while (!stopping && System.nanoTime() < end) {
+                        TimeUnit.MILLISECONDS.sleep(100);
+                        long now = System.nanoTime();
+                        if (status > 0 && now - window >= TimeUnit.SECONDS.toNanos(status)) {
+                            printWindow((now - measured[0]) / 1e9, (now - window) / 1e9);
+                            window = now;
+                        }
+                    }
+                    stopping = true;
+                } catch (InterruptedException e) {
+                    stopping = true;
+                }
+            }
+        }, "ycsb-timer");
+        timer.start();
+
+        runThreads(new Runnable() {
+            public void run() {
+                try {
+                    while (!stopping) {
+                        // read once, so only operations counted towards --operations are recorded
+                        boolean counted = measuring;
+                        if (counted && remaining.getAndDecrement() <= 0) {
+                            break;
+                        }
+                        operation(counted);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    stopping = true;
+                }
+            }
+        });
+        measured[1] = System.nanoTime();
+        timer.interrupt();
+        timer.join();
+
+        if (!measuring) {
+            System.out.println("the run ended during the warm-up; nothing was measured");
+            return;
+        }
+        printTotals((measured[1] - measured[0]) / 1e9);
+    }
+
+    /* one operation of the workload, recorded if measured */
+    private void operation(boolean measured) throws IOException {
+        double p = ThreadLocalRandom.current().nextDouble()
+            * (readProportion + updateProportion + insertProportion + scanProportion + rmwProportion);
+        long start = System.nanoTime();
+        Op op;
+        if ((p -= readProportion) < 0) {
+            op = Op.READ;
+            db.getOrElse(key(keys.next(inserted.get())), null);
+        } else if ((p -= updateProportion) < 0) {
+            op = Op.UPDATE;
+            db.put(key(keys.next(inserted.get())), value());
+        } else if ((p -= insertProportion) < 0) {
+            op = Op.INSERT;
+            // readers may choose the key before it is written, like a read racing an insert
+            db.put(key(inserted.getAndIncrement()), value());
+        } else if ((p -= scanProportion) < 0) {
+            op = Op.SCAN;
+            long length = scanLengths == null ? maxScanLength : 1 + scanLengths.next(maxScanLength);
+            Iterator<KV> kvs = db.find(key(keys.next(inserted.get())));
+            for (long i = 0; i < length && kvs.hasNext(); i++) {
+                kvs.next();
+            }
+        } else {
+            op = Op.READ_MODIFY_WRITE;
+            Slice key = key(keys.next(inserted.get()));
+            db.getOrElse(key, null);
+            db.put(key, value());
+        }
+        if (measured) {
+            long nanos = System.nanoTime() - start;
+            totals[op.ordinal()].record(nanos);
+            windows.get(op.ordinal()).get().record(nanos);
+        }
+    }
+
+    /* user followed by the hash of the key number, padded with zeros to keySize, so
+       inserts are spread over the key space as in YCSB's hashed insert order */
+    private Slice key(long number) {
+        String hash = Long.toString(Distributions.fnvHash64(number));
+        StringBuilder ret = new StringBuilder("user");
+        for (int i = ret.length() + hash.length(); i < keySize; i++) {
+            ret.append('0');
+        }
+        return new Slice(ret.append(hash).toString().getBytes());
+    }
+
+    private Slice value() {
+        int length = valueLengths == null ? valueLength
+            : minValueLength + (int) valueLengths.next(valueLength - minValueLength + 1);
+        length = Math.min(length, values.length);
+        int offset = ThreadLocalRandom.current().nextInt(values.length - length + 1);
+        return new Slice(values, offset, length);
+    }
+
+    /* run body on every thread, started together, rethrowing the first failure */
+    private void runThreads(final Runnable body) throws Exception {
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> running = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        go.await();
+                        body.run();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                        stopping = true;
+                    }
+                }
+            }, "ycsb-" + i);
+            running.add(t);
+            t.start();
+        }
+        go.countDown();
+        for (Thread t : running) {
+            t.join();
+        }
+        if (error.get() != null) {
+            throw new Exception("a workload thread failed", error.get());
+        }
+    }
+
+    private void resetWindows() {
+        for (AtomicReference<Histogram> window : windows) {
+            window.set(new Histogram());
+        }
+    }
+
+    private void printWindow(double elapsed, double seconds) {
+        StringBuilder line = new StringBuilder(String.format("%6.0f s:", elapsed));
+        long ops = 0;
+        StringBuilder latencies = new StringBuilder();
+        for (Op op : Op.values()) {
+            Histogram window = windows.get(op.ordinal()).getAndSet(new Histogram());
+            if (window.count() > 0) {
+                ops += window.count();
+                latencies.append(String.format(" %s [p50 %.0f p99 %.0f max %.0f us]", op,
+                                               window.percentile(50.0) / 1e3, window.percentile(99.0) / 1e3,
+                                               window.max() / 1e3));
+            }
+        }
+        System.out.println(line.append(String.format(" %.0f ops/s", ops / seconds)).append(latencies));
+    }
+
+    private void printTotals(double seconds) {
+        long ops = 0;
+        for (Histogram total : totals) {
+            ops += total.count();
+        }
+        System.out.println(String.format("run: %d operations in %.1f s, %.0f ops/s", ops, seconds, ops / seconds));
+        for (Op op : Op.values()) {
+            Histogram total = totals[op.ordinal()];
+            if (total.count() > 0) {
+                System.out.println(String.format("%-18s: %d operations, latency us: mean %.1f p50 %.1f p95 %.1f p99 %.1f p99.9 %.1f max %.1f",
+                                                 op, total.count(), total.mean() / 1e3, total.percentile(50.0) / 1e3,
+                                                 total.percentile(95.0) / 1e3, total.percentile(99.0) / 1e3,
+                                                 total.percentile(99.9) / 1e3, total.max() / 1e3));
+            }
+        }
+    }
+}
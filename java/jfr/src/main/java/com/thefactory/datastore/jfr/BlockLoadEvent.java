@@ -0,0 +1,35 @@
+package com.thefactory.datastore.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/* Blocks are loaded for nearly every read, so only the slow ones are recorded by default. */
+@Name("com.thefactory.datastore.BlockLoad")
+@Label("Block Load")
+@Description("A data block read from a tablet file and decoded")
+@Category({"Datastore", "Reads"})
+@Threshold("10 ms")
+@StackTrace(false)
+class BlockLoadEvent extends jdk.jfr.Event {
+    @Label("Tablet")
+    String tablet;
+
+    @Label("Offset")
+    long offset;
+
+    @Label("Size")
+    @Description("The block's bytes as stored, i.e. compressed")
+    @DataAmount
+    int bytes;
+
+    @Label("Decode Time")
+    @Description("Decompressing the block and checking its checksum")
+    @Timespan
+    long decodeNanos;
+}
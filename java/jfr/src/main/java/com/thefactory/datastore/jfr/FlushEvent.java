@@ -0,0 +1,25 @@
+package com.thefactory.datastore.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.thefactory.datastore.Flush")
+@Label("Flush")
+@Description("An immutable tablet written to a file tablet and pushed on the stack")
+@Category({"Datastore", "Writes"})
+@StackTrace(false)
+class FlushEvent extends jdk.jfr.Event {
+    @Label("Tablet")
+    String tablet;
+
+    @Label("Keys")
+    long keys;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+}
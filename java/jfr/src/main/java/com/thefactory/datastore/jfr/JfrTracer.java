@@ -0,0 +1,119 @@
+package com.thefactory.datastore.jfr;
+
+import com.thefactory.datastore.Tracer;
+
+/* Records the datastore's events with Java Flight Recorder. Loaded by Tracer when this
+   module is on the class path; every event is enabled with the thresholds of its class
+   unless a recording's settings say otherwise, e.g.
+
+     -XX:StartFlightRecording=settings=profile,com.thefactory.datastore.BlockLoad#threshold=1ms
+
+   An event is only timed while a recording has it enabled, and its fields are only set
+   once it passes the threshold. */
+public class JfrTracer extends Tracer {
+
+    @Override
+    public Object beginBlockLoad() {
+        BlockLoadEvent ret = new BlockLoadEvent();
+        if (!ret.isEnabled()) {
+            return null;
+        }
+        ret.begin();
+        return ret;
+    }
+
+    @Override
+    public void endBlockLoad(Object event, String tablet, long offset, int bytes, long decodeNanos) {
+        BlockLoadEvent e = (BlockLoadEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.tablet = tablet;
+            e.offset = offset;
+            e.bytes = bytes;
+            e.decodeNanos = decodeNanos;
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object beginTransactionLogWrite() {
+        TransactionLogWriteEvent ret = new TransactionLogWriteEvent();
+        if (!ret.isEnabled()) {
+            return null;
+        }
+        ret.begin();
+        return ret;
+    }
+
+    @Override
+    public void endTransactionLogWrite(Object event, int bytes) {
+        TransactionLogWriteEvent e = (TransactionLogWriteEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.bytes = bytes;
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object beginFlush() {
+        FlushEvent ret = new FlushEvent();
+        if (!ret.isEnabled()) {
+            return null;
+        }
+        ret.begin();
+        return ret;
+    }
+
+    @Override
+    public void endFlush(Object event, String tablet, long keys, long bytes) {
+        FlushEvent e = (FlushEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.tablet = tablet;
+            e.keys = keys;
+            e.bytes = bytes;
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object beginMergeIterator() {
+        MergeIteratorEvent ret = new MergeIteratorEvent();
+        if (!ret.isEnabled()) {
+            return null;
+        }
+        ret.begin();
+        return ret;
+    }
+
+    @Override
+    public void endMergeIterator(Object event, int tablets, boolean seek) {
+        MergeIteratorEvent e = (MergeIteratorEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.tablets = tablets;
+            e.seek = seek;
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object beginStall() {
+        StallEvent ret = new StallEvent();
+        if (!ret.isEnabled()) {
+            return null;
+        }
+        ret.begin();
+        return ret;
+    }
+
+    @Override
+    public void endStall(Object event) {
+        StallEvent e = (StallEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.commit();
+        }
+    }
+}
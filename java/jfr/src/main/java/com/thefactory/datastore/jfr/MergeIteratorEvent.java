@@ -0,0 +1,24 @@
+package com.thefactory.datastore.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/* Created by every get and scan, so only the slow ones are recorded by default. */
+@Name("com.thefactory.datastore.MergeIterator")
+@Label("Merge Iterator")
+@Description("A merge iterator over all tablets created and positioned on its first key")
+@Category({"Datastore", "Reads"})
+@Threshold("10 ms")
+@StackTrace(false)
+class MergeIteratorEvent extends jdk.jfr.Event {
+    @Label("Tablets")
+    int tablets;
+
+    @Label("Seek")
+    @Description("Whether the iterator starts at a key rather than the first one")
+    boolean seek;
+}
@@ -0,0 +1,13 @@
+package com.thefactory.datastore.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.thefactory.datastore.Stall")
+@Label("Write Stall")
+@Description("A write waiting for the previous flush to finish")
+@Category({"Datastore", "Writes"})
+class StallEvent extends jdk.jfr.Event {
+}
@@ -0,0 +1,22 @@
+package com.thefactory.datastore.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/* Every write appends to the log, so only the slow appends are recorded by default. */
+@Name("com.thefactory.datastore.TransactionLogWrite")
+@Label("Transaction Log Write")
+@Description("A batch appended to the transaction log")
+@Category({"Datastore", "Writes"})
+@Threshold("10 ms")
+@StackTrace(false)
+class TransactionLogWriteEvent extends jdk.jfr.Event {
+    @Label("Size")
+    @DataAmount
+    int bytes;
+}
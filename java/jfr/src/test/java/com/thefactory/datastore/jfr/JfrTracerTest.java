@@ -0,0 +1,56 @@
+package com.thefactory.datastore.jfr;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import com.thefactory.datastore.Database;
+import com.thefactory.datastore.MemFileSystem;
+import com.thefactory.datastore.Slice;
+import com.thefactory.datastore.Tracer;
+
+public class JfrTracerTest extends TestCase {
+
+    public void testEvents() throws Exception {
+        assertTrue(Tracer.current() instanceof JfrTracer);
+
+        Recording recording = new Recording();
+        for (String name : new String[]{"BlockLoad", "TransactionLogWrite", "Flush", "MergeIterator", "Stall"}) {
+            recording.enable("com.thefactory.datastore." + name).withThreshold(Duration.ZERO);
+        }
+        recording.start();
+        Database db = Database.open("db", new Database.Options(new MemFileSystem()));
+        for (int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("key%04d", i).getBytes()), new Slice("value".getBytes()));
+        }
+        db.flush();
+        assertEquals(new Slice("value".getBytes()), db.get(new Slice("key0042".getBytes())));
+        db.close();
+        recording.stop();
+
+        File file = File.createTempFile("datastore", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            Set<String> names = new HashSet<String>();
+            long keys = 0;
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                names.add(event.getEventType().getName());
+                if (event.getEventType().getName().equals("com.thefactory.datastore.Flush")) {
+                    keys = event.getLong("keys");
+                }
+            }
+            assertTrue(names.contains("com.thefactory.datastore.BlockLoad"));
+            assertTrue(names.contains("com.thefactory.datastore.TransactionLogWrite"));
+            assertTrue(names.contains("com.thefactory.datastore.Flush"));
+            assertTrue(names.contains("com.thefactory.datastore.MergeIterator"));
+            assertEquals(100, keys);
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import sbt._
+import Keys._
+
+/* The library's settings are in build.sbt. The JMH benchmarks are a subproject of their
+   own so the library doesn't depend on JMH; run them with
+
+     sbt "benchmarks/run"
+
+   which takes JMH's usual arguments, e.g. "benchmarks/run -p keySize=16 Block". The end
+   to end benchmarks of the database are run with
+
+     sbt "benchmarks/run-main com.thefactory.datastore.benchmarks.DbBench --fs=mem,disk"
+
+   The Java Flight Recorder events are in the jfr subproject, which needs JDK 11: the
+   library runs on older JVMs and records the events when datastore-jfr is on the class
+   path, see Tracer. */
+object DatastoreBuild extends Build {
+  lazy val datastore = Project(id = "datastore", base = file("."))
+
+  lazy val benchmarks = Project(id = "benchmarks", base = file("benchmarks")) dependsOn(datastore) settings(
+    autoScalaLibrary := false,
+    crossPaths := false,
+    publishArtifact := false,
+    libraryDependencies ++= Seq(
+      "org.openjdk.jmh" % "jmh-core" % "1.21",
+      // generates the benchmark harness classes at compile time
+      "org.openjdk.jmh" % "jmh-generator-annprocess" % "1.21"
+    ),
+    fork in run := true,
+    mainClass in (Compile, run) := Some("com.thefactory.datastore.benchmarks.BenchmarkMain")
+  )
+
+  lazy val jfr = Project(id = "jfr", base = file("jfr")) dependsOn(datastore) settings(
+    name := "datastore-jfr",
+    autoScalaLibrary := false,
+    crossPaths := false,
+    javacOptions ++= Seq("-source", "11", "-target", "11"),
+    libraryDependencies ++= Seq(
+      "com.novocode" % "junit-interface" % "0.9" % "test",
+      "junit" % "junit" % "4.11" % "test"
+    )
+  )
+}
@@ -9,6 +9,9 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferOutputStream;
 
 public class Batch {
+    // marks a range deletion record: a msgpack fixarray of its start and end keys
+    private static final int RANGE_TOMBSTONE = 0x92;
+
     private final ChannelBuffer buffer;
     private final DataOutput out;
     
@@ -50,6 +53,34 @@ public class Batch {
         } 
      }
 
+    /* combine operand with key's value, see MergeOperator */
+    public void merge(Slice key, Slice operand) {
+        if(!buffer.writable()){
+            throw new UnsupportedOperationException("Batch with fixed size cannot grow");
+        }
+        try {
+            out.writeByte(TabletConstants.MERGE_OPERAND);
+            writeSlice(key);
+            writeSlice(operand);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /* delete the keys in [start, end) */
+    public void deleteRange(Slice start, Slice end) {
+        if(!buffer.writable()){
+            throw new UnsupportedOperationException("Batch with fixed size cannot grow");
+        }
+        try {
+            out.writeByte(RANGE_TOMBSTONE);
+            writeSlice(start);
+            writeSlice(end);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     public void clear() {
         buffer.clear();
     }
@@ -59,7 +90,7 @@ public class Batch {
     }
 
     public Slice asSlice(){
-        return new Slice(buffer.array(), buffer.readerIndex(), bytesLeft());
+        return new Slice(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), bytesLeft());
     }
 
     private void writeSlice(Slice slice) throws IOException {
@@ -86,12 +117,22 @@ public class Batch {
             return null;
         } 
         int len = readLength();
-        Slice ret = new Slice(buffer.array(), buffer.readerIndex(), len);
+        Slice ret = new Slice(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), len);
         buffer.skipBytes(len);
         return ret;
     }
 
     private KV readOne() throws IOException {
+        if(buffer.getUnsignedByte(buffer.readerIndex()) == RANGE_TOMBSTONE) {
+            buffer.skipBytes(1);
+            Slice start = readSlice();
+            return new KV().rangeTombstone(start, readSlice());
+        }
+        if(buffer.getUnsignedByte(buffer.readerIndex()) == TabletConstants.MERGE_OPERAND) {
+            buffer.skipBytes(1);
+            Slice key = readSlice();
+            return new KV().mergeOperand(key, readSlice());
+        }
         Slice key = readSlice();
         Slice value = readSlice();
         KV ret = new KV(key, value);
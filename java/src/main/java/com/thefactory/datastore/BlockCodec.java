@@ -0,0 +1,146 @@
+package com.thefactory.datastore;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import net.jpountz.lz4.LZ4Factory;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+
+/* Block compression codecs. A block's codec is recorded in its type byte:
+
+   0b00DKKKTC
+
+   C: 1 = Snappy, the only codec before K was introduced
+   K: 0 = uncompressed or Snappy (see C), 1 = LZ4, 2 = Zstandard
+   D: the block was compressed with the tablet's Zstandard dictionary
+
+   LZ4 and Zstandard block data starts with the uncompressed length as a
+   big-endian uint32. */
+public enum BlockCodec {
+    NONE(0x00),
+    SNAPPY(0x01),
+    LZ4(0x01 << 2),
+    ZSTD(0x02 << 2);
+
+    public static final int DICTIONARY_FLAG = 0x01 << 5;
+
+    private static final int CODEC_MASK = 0x07 << 2;
+    private static final int SNAPPY_FLAG = 0x01;
+
+    private static final LZ4Factory lz4 = LZ4Factory.fastestInstance();
+
+    private final int flags;
+
+    private BlockCodec(int flags) {
+        this.flags = flags;
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    public static BlockCodec fromFlags(int flags) throws IOException {
+        switch (flags & CODEC_MASK) {
+        case 0:
+            return (flags & SNAPPY_FLAG) != 0 ? SNAPPY : NONE;
+        case 0x01 << 2:
+            return LZ4;
+        case 0x02 << 2:
+            return ZSTD;
+        default:
+            throw new IOException(String.format("unknown block codec in block type 0x%02x", flags));
+        }
+    }
+
+    public int maxCompressedLength(int length) {
+        switch (this) {
+        case SNAPPY:
+            return Snappy.maxCompressedLength(length);
+        case LZ4:
+            return 4 + lz4.fastCompressor().maxCompressedLength(length);
+        case ZSTD:
+            return 4 + (int) Zstd.compressBound(length);
+        default:
+            return length;
+        }
+    }
+
+    /* Compress src into dst, which must hold maxCompressedLength(length) bytes, and return
+       the compressed length. level and dictionary only apply to Zstandard; dictionary may be null. */
+    public int compress(byte[] src, int offset, int length, byte[] dst, int level, ZstdDictCompress dictionary) throws IOException {
+        switch (this) {
+        case SNAPPY:
+            return Snappy.compress(src, offset, length, dst, 0);
+        case LZ4:
+            writeLength(dst, length);
+            return 4 + lz4.fastCompressor().compress(src, offset, length, dst, 4, dst.length - 4);
+        case ZSTD:
+            writeLength(dst, length);
+            long n;
+            if (dictionary != null) {
+                n = Zstd.compressFastDict(dst, 4, src, offset, length, dictionary);
+            } else {
+                n = Zstd.compressByteArray(dst, 4, dst.length - 4, src, offset, length, level);
+            }
+            return 4 + (int) checkZstd(n);
+        default:
+            System.arraycopy(src, offset, dst, 0, length);
+            return length;
+        }
+    }
+
+    /* uncompress a block; dictionary is required for blocks flagged with DICTIONARY_FLAG */
+    public byte[] uncompress(byte[] src, int offset, int length, ZstdDictDecompress dictionary) throws IOException {
+        switch (this) {
+        case SNAPPY: {
+            byte[] ret = new byte[Snappy.uncompressedLength(src, offset, length)];
+            Snappy.uncompress(src, offset, length, ret, 0);
+            return ret;
+        }
+        case LZ4: {
+            byte[] ret = new byte[readLength(src, offset)];
+            lz4.fastDecompressor().decompress(src, offset + 4, ret, 0, ret.length);
+            return ret;
+        }
+        case ZSTD: {
+            byte[] ret = new byte[readLength(src, offset)];
+            long n;
+            if (dictionary != null) {
+                n = Zstd.decompressFastDict(ret, 0, src, offset + 4, length - 4, dictionary);
+            } else {
+                n = Zstd.decompressByteArray(ret, 0, ret.length, src, offset + 4, length - 4);
+            }
+            if (checkZstd(n) != ret.length) {
+                throw new IOException("zstd block uncompressed to an unexpected length");
+            }
+            return ret;
+        }
+        default: {
+            byte[] ret = new byte[length];
+            System.arraycopy(src, offset, ret, 0, length);
+            return ret;
+        }
+        }
+    }
+
+    private static long checkZstd(long n) throws IOException {
+        if (Zstd.isError(n)) {
+            throw new IOException("zstd: " + Zstd.getErrorName(n));
+        }
+        return n;
+    }
+
+    private static void writeLength(byte[] dst, int length) {
+        dst[0] = (byte) (length >> 24);
+        dst[1] = (byte) (length >> 16);
+        dst[2] = (byte) (length >> 8);
+        dst[3] = (byte) length;
+    }
+
+    private static int readLength(byte[] src, int offset) {
+        return ((src[offset] & 0xff) << 24) | ((src[offset + 1] & 0xff) << 16)
+            | ((src[offset + 2] & 0xff) << 8) | (src[offset + 3] & 0xff);
+    }
+}
@@ -14,9 +14,15 @@ public class BlockReader {
     private final Slice kvs;
 
     private final int numRestarts;
+    private final KeyComparator comparator;
 
     public BlockReader(final Slice block) {
+        this(block, KeyComparator.LEXICOGRAPHIC);
+    }
+
+    public BlockReader(final Slice block, final KeyComparator comparator) {
         this.block = block;
+        this.comparator = comparator;
         this.numRestarts = (int) Utils.toUInt32(block.subslice(-4));
 
         int end = block.getLength() - 4 * this.numRestarts - 4;
@@ -28,28 +34,32 @@ public class BlockReader {
     }
 
     public Iterator<KV> find(Slice term) {
+        PerfContext perf = PerfContext.current();
         if (term == null || term.getLength() == 0 || numRestarts <= 1) {
-            return pairs(kvs, term);
+            return pairs(kvs, term, perf);
         }
 
-        int restart = search(term);
+        int restart = search(term, perf);
 
         if (restart == 0) {
-            return pairs(kvs, term);
+            return pairs(kvs, term, perf);
         } else if (restart >= numRestarts) {
             return empty();
         }
 
-        return pairs(kvs.subslice(restartValue(restart - 1)), term);
+        return pairs(kvs.subslice(restartValue(restart - 1)), term, perf);
     }
 
-    private int search(Slice term) {
+    private int search(Slice term, PerfContext perf) {
         int ret = 0;
         try {
             int upper = numRestarts - 1;
             while (ret < upper) {
                 int probe = ret + (upper - ret) / 2;
-                if (Slice.compare(restartKey(probe), term) <= 0) {
+                if (perf != null) {
+                    perf.keysCompared += 1;
+                }
+                if (comparator.compare(restartKey(probe), term) <= 0) {
                     ret = probe + 1;
                 } else {
                     upper = probe;
@@ -78,7 +88,7 @@ public class BlockReader {
         };
     }
 
-    private Iterator<KV> pairs(final Slice slice, final Slice fromKey) {
+    private Iterator<KV> pairs(final Slice slice, final Slice fromKey, final PerfContext perf) {
         final SliceReader reader = new SliceReader(slice);
         return new Iterator<KV>() {
             private KV startKey = null;
@@ -87,7 +97,10 @@ public class BlockReader {
                     try {
                         while(hasNext()) {
                             startKey = reader.readOne();
-                            if ((Slice.compare(startKey.getKey(), fromKey) >= 0)) {
+                            if (perf != null) {
+                                perf.keysCompared += 1;
+                            }
+                            if ((comparator.compare(startKey.getKey(), fromKey) >= 0)) {
                                 break;
                             }
                             startKey = null;
@@ -165,6 +178,22 @@ public class BlockReader {
 
             previousKey = key;
 
+            if (slice.getAt(pos) == TabletConstants.VALUE_POINTER) {
+                stream.skip(1);
+                pos += 1;
+                int start = pos;
+                for (int i = 0; i < 3; i++) {
+                    readUInt32();
+                }
+                return kv.valuePointer(key, slice.subslice(start, pos - start));
+            }
+
+            if (slice.getAt(pos) == TabletConstants.MERGE_OPERAND) {
+                stream.skip(1);
+                pos += 1;
+                return kv.mergeOperand(key, readSubslice(readRawLength()));
+            }
+
             int valueLength = readRawLength();
             if(valueLength == -1){
                 return kv.tombstone(key);
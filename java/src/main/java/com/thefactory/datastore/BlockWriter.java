@@ -1,67 +1,154 @@
 package com.thefactory.datastore;
 
-import org.msgpack.MessagePack;
-import org.msgpack.packer.Packer;
-
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Arrays;
 
+/* Encodes prefix-compressed blocks, writing the msgpack uint and raw headers straight
+   into a growable byte array. */
 public class BlockWriter {
     private TabletWriterOptions opts;
 
-    private Packer packer;
+    private byte[] buf;
+    private int length;
 
-    private ByteArrayOutputStream buf;
-    private ByteArrayOutputStream restarts;
+    private int[] restarts = new int[16];
+    private int numRestarts;
 
-    private byte[] prevKey;
+    // a copy of the last key appended, reused across appends
+    private byte[] prevKey = new byte[64];
+    private int prevKeyLength;
     private byte[] firstKey;
     private int keyCount;
 
     public BlockWriter(TabletWriterOptions opts) {
         this.opts = opts;
-        this.buf = new ByteArrayOutputStream(2*opts.blockSize);
-
-        MessagePack msgpack = new MessagePack();
-        this.packer = msgpack.createPacker(this.buf);
+        this.buf = new byte[2*opts.blockSize];
 
-        this.restarts = new ByteArrayOutputStream();
+        this.numRestarts = 0;
         this.keyCount = 0;
     }
 
-	public void append(byte[] key, byte[] value) throws IOException {
-        if (buf.size() == 0) {
-            firstKey = Arrays.copyOf(key, key.length);
+    public void append(byte[] key, byte[] value) throws IOException {
+        append(new Slice(key), value == null ? null : new Slice(value));
+    }
+
+    /* append key and value, or a tombstone for key if value is null */
+    public void append(Slice key, Slice value) {
+        append(key, value, 0);
+    }
+
+    /* append a value log pointer (three msgpack uints) as key's value */
+    public void appendValuePointer(Slice key, Slice pointer) {
+        append(key, pointer, TabletConstants.VALUE_POINTER);
+    }
+
+    /* append a merge operand for key */
+    public void appendMergeOperand(Slice key, Slice operand) {
+        append(key, operand, TabletConstants.MERGE_OPERAND);
+    }
+
+    /* marker (if not 0) precedes the value: a value pointer is stored as is, other values as raws */
+    private void append(Slice key, Slice value, int marker) {
+        int keyLength = key.getLength();
+        if (length == 0) {
+            firstKey = Arrays.copyOfRange(key.array, key.getOffset(), key.getOffset() + keyLength);
         }
 
         int shared = 0;
 
         if (keyCount % opts.keyRestartInterval == 0) {
-            writeInt(restarts, buf.size());
+            if (numRestarts == restarts.length) {
+                restarts = Arrays.copyOf(restarts, 2 * restarts.length);
+            }
+            restarts[numRestarts++] = length;
+        } else {
+            shared = commonPrefix(key);
+        }
+
+        int valueLength = value == null ? 0 : value.getLength();
+        ensureCapacity(16 + keyLength - shared + valueLength);
+
+        writeUint(shared);
+        writeRaw(key.array, key.getOffset() + shared, keyLength - shared);
+        if (value == null) {
+            buf[length++] = (byte) Msgpack.NIL_VALUE;
+        } else if (marker == TabletConstants.VALUE_POINTER) {
+            buf[length++] = (byte) marker;
+            System.arraycopy(value.array, value.getOffset(), buf, length, valueLength);
+            length += valueLength;
         } else {
-            shared = Utils.commonPrefix(prevKey, key);
+            if (marker != 0) {
+                buf[length++] = (byte) marker;
+            }
+            writeRaw(value.array, value.getOffset(), valueLength);
+        }
+
+        if (prevKey.length < keyLength) {
+            prevKey = new byte[Math.max(keyLength, 2 * prevKey.length)];
+        }
+        System.arraycopy(key.array, key.getOffset(), prevKey, 0, keyLength);
+        prevKeyLength = keyLength;
+        keyCount += 1;
+    }
+
+    private int commonPrefix(Slice key) {
+        int num = Math.min(prevKeyLength, key.getLength());
+        byte[] array = key.array;
+        int offset = key.getOffset();
+        int count = 0;
+        while (count < num && prevKey[count] == array[offset + count]) {
+            count++;
+        }
+        return count;
+    }
+
+    private void ensureCapacity(int n) {
+        if (length + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(length + n, 2 * buf.length));
         }
+    }
 
-        packer.write(shared);
-        packer.write(key, shared, key.length-shared);
-        packer.write(value);
+    private void writeUint(int n) {
+        if (n <= Msgpack.MAXIMUM_FIXED_POS) {
+            buf[length++] = (byte) n;
+        } else if (n <= 0xff) {
+            buf[length++] = (byte) Msgpack.MSG_UINT_8;
+            buf[length++] = (byte) n;
+        } else if (n <= 0xffff) {
+            buf[length++] = (byte) Msgpack.MSG_UINT_16;
+            buf[length++] = (byte) (n >> 8);
+            buf[length++] = (byte) n;
+        } else {
+            buf[length++] = (byte) Msgpack.MSG_UINT_32;
+            writeInt(n);
+        }
+    }
 
-        this.prevKey = key;
-        this.keyCount += 1;
+    private void writeRaw(byte[] src, int offset, int len) {
+        if (len < 32) {
+            buf[length++] = (byte) (Msgpack.MINIMUM_FIXED_RAW | len);
+        } else if (len < 65536) {
+            buf[length++] = (byte) Msgpack.MSG_RAW_16;
+            buf[length++] = (byte) (len >> 8);
+            buf[length++] = (byte) len;
+        } else {
+            buf[length++] = (byte) Msgpack.MSG_RAW_32;
+            writeInt(len);
+        }
+        System.arraycopy(src, offset, buf, length, len);
+        length += len;
     }
 
-    private void writeInt(OutputStream out, int pos) throws IOException {
-        out.write((byte) (pos >> 24));
-        out.write((byte) (pos >> 16));
-        out.write((byte) (pos >> 8));
-        out.write((byte) (pos));
+    private void writeInt(int n) {
+        buf[length++] = (byte) (n >> 24);
+        buf[length++] = (byte) (n >> 16);
+        buf[length++] = (byte) (n >> 8);
+        buf[length++] = (byte) n;
     }
 
     public int size() {
         // include 4 bytes for the restarts count
-        return buf.size() + restarts.size() + 4;
+        return length + 4 * numRestarts + 4;
     }
 
     public byte[] getFirstKey() {
@@ -69,15 +156,33 @@ public class BlockWriter {
     }
 
     public byte[] finish() throws IOException {
-        buf.write(restarts.toByteArray());
-        writeInt(buf, restarts.size() / 4);
-        return buf.toByteArray();
+        Slice block = finishInPlace();
+        return Arrays.copyOf(block.array, block.getLength());
+    }
+
+    /* Finish the block, returning it in the writer's own buffer: it is only valid until reset(). */
+    public Slice finishInPlace() {
+        ensureCapacity(4 * numRestarts + 4);
+        for (int i = 0; i < numRestarts; i++) {
+            writeInt(restarts[i]);
+        }
+        writeInt(numRestarts);
+        return new Slice(buf, 0, length);
+    }
+
+    /* Finish the block and hand over the buffer holding it, continuing with spare (which
+       may be null) as the writer's buffer. The returned block stays valid after reset(). */
+    public Slice finishAndSwap(byte[] spare) {
+        Slice block = finishInPlace();
+        buf = spare != null ? spare : new byte[block.array.length];
+        length = 0;
+        return block;
     }
 
     public void reset() {
-        buf.reset();
-        restarts.reset();
-        prevKey = null;
+        length = 0;
+        numRestarts = 0;
+        prevKeyLength = 0;
         firstKey = null;
         keyCount = 0;
     }
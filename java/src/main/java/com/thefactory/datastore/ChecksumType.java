@@ -0,0 +1,87 @@
+package com.thefactory.datastore;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/* The checksum of a tablet's blocks, recorded in the version byte of its header:
+
+   0x01: CRC32, the only checksum before CRC32C was introduced
+   0x02: CRC32C (Castagnoli), which current JVMs compute with a single instruction
+
+   Readers that predate version 0x02 read such tablets fine but fail to verify them. */
+public enum ChecksumType {
+    CRC32(1),
+    CRC32C(2);
+
+    private static final Constructor<?> jdkCrc32c = loadJdkCrc32c();
+
+    private final int version;
+
+    private ChecksumType(int version) {
+        this.version = version;
+    }
+
+    /* the header version of tablets with this checksum */
+    public int version() {
+        return version;
+    }
+
+    public static ChecksumType fromVersion(int version) throws IOException {
+        switch (version) {
+        case 1:
+            return CRC32;
+        case 2:
+            return CRC32C;
+        default:
+            throw new IOException(String.format("unknown tablet version %d", version));
+        }
+    }
+
+    public Checksum newChecksum() {
+        if (this == CRC32) {
+            return new java.util.zip.CRC32();
+        }
+        if (jdkCrc32c != null) {
+            try {
+                return (Checksum) jdkCrc32c.newInstance();
+            } catch (Exception e) {
+                // fall back to ours
+            }
+        }
+        return new Crc32c();
+    }
+
+    public long checksum(byte[] bytes, int offset, int length) {
+        Checksum ret = newChecksum();
+        ret.update(bytes, offset, length);
+        return ret.getValue();
+    }
+
+    /* add the remaining bytes of buf to checksum, leaving buf's position alone */
+    public static void update(Checksum checksum, ByteBuffer buf) {
+        if (checksum instanceof java.util.zip.CRC32) {
+            ((java.util.zip.CRC32) checksum).update(buf.duplicate());
+        } else if (buf.hasArray()) {
+            checksum.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            ByteBuffer in = buf.duplicate();
+            byte[] chunk = new byte[Math.min(in.remaining(), 8192)];
+            while (in.hasRemaining()) {
+                int n = Math.min(in.remaining(), chunk.length);
+                in.get(chunk, 0, n);
+                checksum.update(chunk, 0, n);
+            }
+        }
+    }
+
+    /* the constructor of java.util.zip.CRC32C, which is intrinsified from JDK 9 on */
+    private static Constructor<?> loadJdkCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").getDeclaredConstructor();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.thefactory.datastore;
+
+import java.util.zip.Checksum;
+
+/* CRC32C (Castagnoli) for JVMs without java.util.zip.CRC32C, eight bytes at a time
+   with the slicing-by-8 tables. */
+class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;  // reversed
+    private static final int[][] tables = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            }
+            tables[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                tables[t][i] = (tables[t - 1][i] >>> 8) ^ tables[0][tables[t - 1][i] & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public void update(int b) {
+        crc = (crc >>> 8) ^ tables[0][(crc ^ b) & 0xff];
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        int c = crc;
+        int end = offset + length;
+        int[] t0 = tables[0], t1 = tables[1], t2 = tables[2], t3 = tables[3];
+        int[] t4 = tables[4], t5 = tables[5], t6 = tables[6], t7 = tables[7];
+        while (end - offset >= 8) {
+            int lo = c ^ ((bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+                          | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24);
+            c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                ^ t3[bytes[offset + 4] & 0xff] ^ t2[bytes[offset + 5] & 0xff]
+                ^ t1[bytes[offset + 6] & 0xff] ^ t0[bytes[offset + 7] & 0xff];
+            offset += 8;
+        }
+        while (offset < end) {
+            c = (c >>> 8) ^ t0[(c ^ bytes[offset++]) & 0xff];
+        }
+        crc = c;
+    }
+
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
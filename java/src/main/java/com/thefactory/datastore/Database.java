@@ -2,12 +2,21 @@ package com.thefactory.datastore;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Closeable;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.lang.Override;
 import java.lang.Thread;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory; 
 
@@ -15,7 +24,16 @@ import org.apache.commons.logging.LogFactory;
 public class Database implements Closeable {
     public final Options options;
     private final Tablets tablets = new Tablets();
+    // held while the stack is changed and written, so changes aren't lost or reordered
+    private final Object stackLock = new Object();
     private final FileManager fileManager;
+    private final TabletCache tabletCache;
+    private final RowCache rowCache;
+    private final Statistics statistics = new Statistics();
+    private final DatabaseListeners listeners;
+    private final ReadOptions defaultReadOptions;
+    private ObjectName mbean = null;
+    private ValueLog valueLog;
     private Closeable lock = null;
     private TransactionLog.Writer transactionLogWriter = null;
     private Log log = LogFactory.getLog(Database.class);
@@ -26,22 +44,44 @@ public class Database implements Closeable {
 
         public boolean deleteOnClose;
         public boolean createIfMissing;
+        // check the checksum of every tablet block when first read, unless a read's
+        // ReadOptions say otherwise
         public boolean verifyChecksums;
+        // the checksum of the blocks of flushed tablets
+        public ChecksumType tabletChecksum;
+        // maximum number of file tablets kept open; <= 0 means no limit
+        public int maxOpenTablets;
+        // flush the mutable tablet on close so the next open has no log to replay;
+        // with false, close leaves that work to the next open, but still waits for a
+        // flush already running to finish
+        public boolean flushOnClose;
+        // number of threads compressing blocks when flushing a tablet
+        public int flushThreads;
+        // number of threads used to open tablets when opening the database;
+        // 0 defers opening every tablet to its first access
+        public int tabletOpenThreads;
+        // values of at least this many bytes are moved to value logs when their tablet
+        // is flushed, leaving a pointer in the tablet; 0 keeps all values inline
+        public int valueLogThreshold;
+        // combines the operands written with merge() with values
+        public MergeOperator mergeOperator;
+        // the order of keys; a database can't be opened with a comparator other than
+        // the one its tablets were written with
+        public KeyComparator comparator;
+        // bytes of recently read keys and values cached by get(); 0 disables the cache
+        public long rowCacheSize;
+        // registers getStats() with the platform MBean server as
+        // com.thefactory.datastore:type=Database,name=<mbeanName>; null doesn't
+        public String mbeanName;
+        // notified of flushes, stalls and other background work, see DatabaseListener
+        public List<DatabaseListener> listeners;
 
         public Options() {
-            createIfMissing = true;
-            verifyChecksums = false;
-            deleteOnClose = false;
-            fileSystem = new DiskFileSystem();
-            maxMutableTabletSize = 1024 * 1024 * 4;
+            this(new DiskFileSystem());
         }
 
         public Options(final FileSystem fileSystem) {
-            createIfMissing = true;
-            verifyChecksums = false;
-            deleteOnClose = false;
-            this.fileSystem = fileSystem;
-            maxMutableTabletSize = 1024 * 1024 * 4;
+            this(fileSystem, 1024 * 1024 * 4);
         }
 
         public Options(final FileSystem fileSystem,
@@ -50,7 +90,28 @@ public class Database implements Closeable {
             this.maxMutableTabletSize = maxMutableTabletSize;
             this.createIfMissing = true;
             this.verifyChecksums = false;
+            this.tabletChecksum = ChecksumType.CRC32;
             this.deleteOnClose = false;
+            this.flushOnClose = true;
+            this.maxOpenTablets = 1000;
+            this.tabletOpenThreads = Runtime.getRuntime().availableProcessors();
+            this.flushThreads = Runtime.getRuntime().availableProcessors();
+            this.valueLogThreshold = 0;
+            this.comparator = KeyComparator.LEXICOGRAPHIC;
+            this.rowCacheSize = 0;
+            this.mbeanName = null;
+            this.listeners = new ArrayList<DatabaseListener>();
+        }
+    }
+
+    /* Options of a single read, overriding the database's. */
+    public static class ReadOptions {
+        // check the checksums of the tablet blocks read that haven't been verified
+        // before; reads that verify what the database doesn't skip the row cache
+        public boolean verifyChecksums;
+
+        public ReadOptions(boolean verifyChecksums) {
+            this.verifyChecksums = verifyChecksums;
         }
     }
 
@@ -59,8 +120,9 @@ public class Database implements Closeable {
     }
 
     private class Tablets {
-        public final Deque<String> stack = new LinkedBlockingDeque<String>();
-        public final Deque<FileTablet> file = new LinkedBlockingDeque<FileTablet>();        
+        // replaced rather than changed in place when a tablet is inserted below the top
+        public volatile Deque<String> stack = new LinkedBlockingDeque<String>();
+        public volatile Deque<FileTablet> file = new LinkedBlockingDeque<FileTablet>();        
         public MemoryTablet mutable = new MemoryTablet();
         public MemoryTablet saving = null;
     }
@@ -68,6 +130,10 @@ public class Database implements Closeable {
     private Database(final String path, final Options options) {
         this.options = options;
         this.fileManager = new FileManager(path, options.fileSystem, options.createIfMissing);
+        this.tabletCache = new TabletCache(options.maxOpenTablets);
+        this.rowCache = options.rowCacheSize > 0 ? new RowCache(options.rowCacheSize, 16) : null;
+        this.listeners = new DatabaseListeners(options.listeners);
+        this.defaultReadOptions = new ReadOptions(options.verifyChecksums);
     }
 
     public static Database open(final String path, final Options options) throws IOException {
@@ -96,38 +162,300 @@ public class Database implements Closeable {
         return db;
     }
 
+    public enum IngestMode {
+        MOVE, // rename the files into the database directory
+        LINK  // hard link them, leaving the originals in place
+    }
+
+    /* Add tablets built elsewhere (e.g. with TabletWriter) without writing their keys
+       again: no transaction log, no mutable tablet. Their keys replace older values as
+       if they had just been written. Each tablet goes right above the newest tablet
+       whose keys it overlaps, and the mutable tablet is flushed first if it overlaps
+       any of them. Paths are on options.fileSystem; later tablets replace earlier ones. */
+    public synchronized void ingestTablets(Iterable<String> paths, IngestMode mode) throws IOException {
+        List<String> sources = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        List<KeyRange> ranges = new ArrayList<KeyRange>();
+        List<Integer> positions = new ArrayList<Integer>();
+        int count;
+        for(String path : paths) {
+            FileTablet tablet = new FileTablet(options.fileSystem, path, readerOptions(), null);
+            try {
+                ranges.add(validateIngest(tablet, path));
+            } finally {
+                tablet.close();
+            }
+            sources.add(path);
+        }
+
+        if(!canSave()) {
+            throw new InterruptedIOException("interrupted while waiting for pending flush");
+        }
+        for(KeyRange range : ranges) {
+            if(range.overlaps(tablets.mutable)) {
+                flush();
+                break;
+            }
+        }
+
+        // move or link every tablet in before touching the stack, putting back the ones
+        // done if one fails, so a failed ingest leaves the caller's files where they were
+        for(int i = 0; i < sources.size(); i++) {
+            String name = UUID.randomUUID().toString();
+            try {
+                if(mode == IngestMode.LINK) {
+                    options.fileSystem.link(sources.get(i), fileManager.dbFilename(name));
+                } else {
+                    options.fileSystem.rename(sources.get(i), fileManager.dbFilename(name));
+                }
+            } catch (RuntimeException e) {
+                unmove(names, sources, mode);
+                throw new IOException(String.format("Ingesting %s failed: %s", sources.get(i), e.getMessage()));
+            }
+            names.add(name);
+        }
+
+        // a flush pushing its tablet meanwhile would be lost from the rebuilt stack
+        synchronized(stackLock) {
+            List<FileTablet> file = new ArrayList<FileTablet>(tablets.file);
+            List<String> stack = new ArrayList<String>(tablets.stack);
+            List<KeyRange> fileRanges = new ArrayList<KeyRange>();
+            for(FileTablet tablet : file) {
+                fileRanges.add(keyRange(tablet));
+            }
+
+            List<FileTablet> added = new ArrayList<FileTablet>();
+            for(int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                int pos = file.size();
+                while(pos > 0 && !fileRanges.get(pos - 1).overlaps(ranges.get(i))) {
+                    pos--;
+                }
+                FileTablet tablet = newFileTablet(name);
+                added.add(tablet);
+                file.add(pos, tablet);
+                stack.add(pos, name);
+                fileRanges.add(pos, ranges.get(i));
+                log.debug(String.format("Ingested tablet %s as %s at %d of %d", sources.get(i), name, pos, file.size()));
+            }
+
+            Deque<FileTablet> oldFile;
+            Deque<String> oldStack;
+            synchronized(tablets) {
+                oldFile = tablets.file;
+                oldStack = tablets.stack;
+                tablets.file = new LinkedBlockingDeque<FileTablet>(file);
+                tablets.stack = new LinkedBlockingDeque<String>(stack);
+            }
+            try {
+                fileManager.writeTabletFilenames(stack);
+            } catch (Exception e) {
+                synchronized(tablets) {
+                    tablets.file = oldFile;
+                    tablets.stack = oldStack;
+                }
+                try {
+                    fileManager.writeTabletFilenames(oldStack);
+                } catch (Exception again) {
+                    log.error(String.format("Restoring %s failed with %s", FileManager.TABLET_META_FILE, again));
+                }
+                for(FileTablet tablet : added) {
+                    tabletCache.evict(tablet);
+                }
+                unmove(names, sources, mode);
+                throw new IOException(String.format("Ingesting tablets failed: %s", e.getMessage()));
+            }
+            for(String name : names) {
+                positions.add(stack.indexOf(name));
+            }
+            count = stack.size();
+        }
+        if(rowCache != null) {
+            rowCache.clear();
+        }
+        for(int i = 0; i < names.size(); i++) {
+            listeners.onTabletPushed(names.get(i), positions.get(i), count);
+        }
+    }
+
+    /* put ingested tablets back where they came from */
+    private void unmove(List<String> names, List<String> sources, IngestMode mode) {
+        for(int i = 0; i < names.size(); i++) {
+            if(mode == IngestMode.LINK) {
+                options.fileSystem.remove(fileManager.dbFilename(names.get(i)));
+            } else {
+                options.fileSystem.rename(fileManager.dbFilename(names.get(i)), sources.get(i));
+            }
+        }
+    }
+
+    /* Check that a tablet can be read, its keys are in order and its values are its own,
+       and return its key range. A tablet written by a database that separates values
+       points into that database's value logs, which mean nothing here. */
+    private KeyRange validateIngest(FileTablet tablet, String path) throws IOException {
+        List<TabletReader.TabletIndexRecord> index;
+        try {
+            index = tablet.index();
+        } catch (Exception e) {
+            throw new IOException(String.format("%s is not a readable tablet: %s", path, e.getMessage()));
+        }
+        for(int i = 1; i < index.size(); i++) {
+            if(options.comparator.compare(index.get(i - 1).data, index.get(i).data) >= 0) {
+                throw new IOException(String.format("%s has blocks out of key order", path));
+            }
+        }
+        Iterator<KV> kvs = tablet.find();
+        while(kvs.hasNext()) {
+            if(kvs.next().isValuePointer()) {
+                throw new IOException(String.format("%s has values in value logs", path));
+            }
+        }
+        return keyRange(tablet);
+    }
+
+    private KeyRange keyRange(FileTablet tablet) throws IOException {
+        KeyRange ret = new KeyRange();
+        ret.add(tablet.firstKey(), tablet.lastKey());
+        for(RangeTombstone range : tablet.rangeTombstones()) {
+            ret.add(range.start, range.end);
+        }
+        return ret;
+    }
+
+    /* The keys a tablet holds or deletes, as an inclusive range: a range tombstone's
+       end is counted as deleted, which can only make a tablet look like it overlaps. */
+    private class KeyRange {
+        private Slice first;
+        private Slice last;
+
+        private void add(Slice start, Slice end) {
+            if(start == null) {
+                return;
+            }
+            if(first == null || options.comparator.compare(start, first) < 0) {
+                first = start;
+            }
+            if(last == null || options.comparator.compare(end, last) > 0) {
+                last = end;
+            }
+        }
+
+        public boolean overlaps(KeyRange that) {
+            return first != null && that.first != null
+                && options.comparator.compare(first, that.last) <= 0 && options.comparator.compare(that.first, last) <= 0;
+        }
+
+        public boolean overlaps(MemoryTablet tablet) {
+            return first != null && tablet.overlaps(first, last);
+        }
+    }
+
     public void pushTablet(String name) throws IOException {
-        synchronized(tablets){
-            DatastoreChannel tabletChannel = options.fileSystem.open(fileManager.dbFilename(name));
-            tablets.file.addLast(new FileTablet(tabletChannel, new TabletReaderOptions()));
-            tablets.stack.addLast(name);
-        }    
+        int count = push(name);
+        listeners.onTabletPushed(name, count - 1, count);
+    }
+
+    /* add name to the top of the stack, returning the number of tablets on it */
+    private int push(String name) throws IOException {
+        FileTablet tablet = newFileTablet(name);
+        tabletCache.open(tablet);
+
+        int count;
+        synchronized(stackLock) {
+            synchronized(tablets){
+                tablets.file.addLast(tablet);
+                tablets.stack.addLast(name);
+                count = tablets.file.size();
+            }    
+
+            fileManager.writeTabletFilenames(tablets.stack);
+        }
+        return count;
+    }
+
+    private FileTablet newFileTablet(String name) {
+        return new FileTablet(options.fileSystem, fileManager.dbFilename(name), readerOptions(), tabletCache);
+    }
 
-        fileManager.writeTabletFilenames(tablets.stack);
+    private TabletReaderOptions readerOptions() {
+        return new TabletReaderOptions(options.verifyChecksums, options.comparator, statistics);
     }
 
+    /* The database's statistics since it was opened, with the current sizes of its tablets. */
+    public Statistics.Snapshot getStats() {
+        long mutableBytes, immutableBytes;
+        int fileTablets;
+        synchronized(tablets) {
+            mutableBytes = tablets.mutable.size();
+            immutableBytes = tablets.saving == null ? 0 : tablets.saving.size();
+            fileTablets = tablets.file.size();
+        }
+        return new Statistics.Snapshot(statistics, mutableBytes, immutableBytes, fileTablets, tabletCache.size(), rowCache);
+    }
+
+    /* key's value. Values can share their bytes with the row cache, so they may be read,
+       which only moves the returned Slice, but their array must not be modified. */
     public Slice get(Slice key) throws KeyNotFoundException, IOException {
-        Iterator<KV> kvs = find(key);        
-        if(!kvs.hasNext()) {
+        return get(key, defaultReadOptions);
+    }
+
+    public Slice get(Slice key, ReadOptions readOptions) throws KeyNotFoundException, IOException {
+        Slice ret = lookup(key, readOptions);
+        if(ret == null) {
             throw new KeyNotFoundException(key.toUTF8String());
         }
-        KV kv = kvs.next();
-        if((Slice.compare(kv.getKey(), key) == 0) && (!kv.isDeleted())) {
-            return kv.getValue().detach();
-        }        
-        throw new KeyNotFoundException(key.toUTF8String());
+        return ret;
     }
 
     public Slice getOrElse(Slice key, Slice def) throws IOException {
-        Iterator<KV> kvs = find(key);        
+        return getOrElse(key, def, defaultReadOptions);
+    }
+
+    public Slice getOrElse(Slice key, Slice def, ReadOptions readOptions) throws IOException {
+        Slice ret = lookup(key, readOptions);
+        return ret == null ? def : ret;
+    }
+
+    private Slice lookup(Slice key, ReadOptions readOptions) throws IOException {
+        long start = System.nanoTime();
+        Slice ret = cachedLookup(key, readOptions);
+        statistics.record(Statistics.Timer.GET, System.nanoTime() - start);
+        statistics.add(Statistics.Counter.GETS, 1);
+        if(ret != null) {
+            statistics.add(Statistics.Counter.GETS_FOUND, 1);
+            statistics.add(Statistics.Counter.BYTES_READ, ret.getLength());
+        }
+        return ret;
+    }
+
+    /* key's value, from the row cache if there is one, or null */
+    private Slice cachedLookup(Slice key, ReadOptions readOptions) throws IOException {
+        long version = 0;
+        if(rowCache != null) {
+            // cached values were read with the database's verifyChecksums
+            Slice ret = readOptions.verifyChecksums && !options.verifyChecksums ? null : rowCache.get(key);
+            if(ret != null) {
+                // a view of its own, since reading a Slice moves its offset
+                return new Slice(ret.array, ret.getOffset(), ret.getLength());
+            }
+            version = rowCache.version(key);
+        }
+
+        Iterator<KV> kvs = merged(key, ANY, readOptions);
         if(!kvs.hasNext()) {
-            return def;
+            return null;
         }
         KV kv = kvs.next();
-        if((Slice.compare(kv.getKey(), key) == 0) && (!kv.isDeleted())) {
-            return kv.getValue().detach();
+        if((options.comparator.compare(kv.getKey(), key) != 0) || kv.isDeleted()) {
+            return null;
         }        
-        return def;
+        Slice ret = kv.getValue().detach();
+        if(rowCache != null) {
+            Slice cached = new Slice(Arrays.copyOfRange(key.array, key.getOffset(), key.getOffset() + key.getLength()));
+            // the cache keeps a view of its own, since reading a Slice moves its offset
+            rowCache.put(cached, new Slice(ret.array, ret.getOffset(), ret.getLength()), version);
+        }
+        return ret;
     }
 
     public void put(Slice key, Slice value) throws IOException  {
@@ -142,17 +470,65 @@ public class Database implements Closeable {
         apply(batch);
     }
 
+    /* Combine operand with key's value using Options.mergeOperator. The operand is
+       only combined with older values when the key is read. */
+    public void merge(Slice key, Slice operand) throws IOException  {
+        if(options.mergeOperator == null) {
+            throw new IllegalStateException("merge requires Options.mergeOperator");
+        }
+        Batch batch = new Batch();
+        batch.merge(key, operand);
+        apply(batch);
+    }
+
+    /* delete the keys in [start, end) with a single range tombstone */
+    public void deleteRange(Slice start, Slice end) throws IOException  {
+        Batch batch = new Batch();
+        batch.deleteRange(start, end);
+        apply(batch);
+    }
+
 
     @Override
     public void close() throws IOException {
-        if (transactionLogWriter != null) {
-            transactionLogWriter.close();
-            transactionLogWriter = null;
+        if (mbean != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+            } catch (JMException e) {
+                log.warn(String.format("Unregistering the statistics MBean failed with %s", e));
+            }
+            mbean = null;
         }
 
-        if (lock != null) {
-            lock.close();
-            lock = null;
+        try {
+            // on a clean close nothing is left in the transaction logs to replay
+            if (transactionLogWriter != null && options.flushOnClose && !options.deleteOnClose) {
+                flush();
+            }
+        } finally {
+            // a failed flush still releases the lock and the tablets; its mutable tablet
+            // is replayed from the transaction log on the next open
+            try {
+                if (transactionLogWriter != null) {
+                    // don't release the lock under a background save still writing to the directory
+                    canSave();
+                    transactionLogWriter.close();
+                    transactionLogWriter = null;
+                }
+            } finally {
+                try {
+                    tabletCache.close();
+                    if (valueLog != null) {
+                        valueLog.close();
+                    }
+                } finally {
+                    // last, since closing the value logs deletes removed ones
+                    if (lock != null) {
+                        lock.close();
+                        lock = null;
+                    }
+                }
+            }
         }
 
         if(options.deleteOnClose) {
@@ -172,16 +548,53 @@ public class Database implements Closeable {
         });
     }
 
+    private static final KVPredicate ANY = new KVPredicate() {
+        public boolean evaluate(final KV kv) {
+            return true;
+        }
+    };
+
     public Iterator<KV> find(final Slice term) throws IOException {
-        return findWhile(term, new KVPredicate() {
-            public boolean evaluate(final KV kv) {
-                return true;
-            }
-        });
+        return findWhile(term, ANY);
+    }
+
+    public Iterator<KV> find(final Slice term, final ReadOptions readOptions) throws IOException {
+        return findWhile(term, ANY, readOptions);
     }
 
     public Iterator<KV> findWhile(final Slice term, final KVPredicate predicate) throws IOException {
+        return findWhile(term, predicate, defaultReadOptions);
+    }
 
+    public Iterator<KV> findWhile(final Slice term, final KVPredicate predicate, final ReadOptions readOptions) throws IOException {
+        final long start = System.nanoTime();
+        final Iterator<KV> merged = merged(term, predicate, readOptions);
+        statistics.record(Statistics.Timer.SEEK, System.nanoTime() - start);
+        statistics.add(Statistics.Counter.SEEKS, 1);
+        return new Iterator<KV>() {
+            private boolean done = false;
+
+            public boolean hasNext() {
+                boolean ret = merged.hasNext();
+                if(!ret && !done) {
+                    done = true;
+                    statistics.record(Statistics.Timer.SCAN, System.nanoTime() - start);
+                }
+                return ret;
+            }
+
+            public KV next() {
+                return merged.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* the keys from term on, merged from all tablets, while predicate holds */
+    private Iterator<KV> merged(final Slice term, final KVPredicate predicate, final ReadOptions readOptions) throws IOException {
         return new Iterator<KV>() {
             class QueueItem {
                 public final int priority;
@@ -195,10 +608,15 @@ public class Database implements Closeable {
                 }
             }
 
+            private final PerfContext perf = PerfContext.current();
+
             private TreeSet<QueueItem> queue = new TreeSet<QueueItem> (
                 new Comparator<QueueItem>() {
                     public int compare(QueueItem x, QueueItem y) {
-                        int ret = Slice.compare(x.kv.getKey(), y.kv.getKey());
+                        if (perf != null) {
+                            perf.keysCompared += 1;
+                        }
+                        int ret = options.comparator.compare(x.kv.getKey(), y.kv.getKey());
                         if (ret != 0) {
                             return ret;
                         }
@@ -207,23 +625,48 @@ public class Database implements Closeable {
                 }
             );
 
+            class RangeItem {
+                public final int priority;
+                public final RangeTombstone range;
+
+                public RangeItem(final RangeTombstone range, final int priority) {
+                    this.range = range;
+                    this.priority = priority;
+                }
+            }
+
+            private List<RangeItem> ranges = new ArrayList<RangeItem>();
+
             private KV current = null;
 
             {
+                Object event = Tracer.current().beginMergeIterator();
+                long start = perf == null ? 0 : System.nanoTime();
                 int priority = 0;
                 Iterator<FileTablet> it = tablets.file.iterator();
                 while(it.hasNext()){
-                    enqueueNextItem(it.next().find(term), priority++);
+                    FileTablet tablet = it.next();
+                    addRanges(tablet.rangeTombstones(), priority);
+                    enqueueNextItem(tablet.find(term, readOptions.verifyChecksums), priority++);
                 }
                 if(tablets.saving != null) {
+                    addRanges(tablets.saving.rangeTombstones(), priority);
                     enqueueNextItem(tablets.saving.find(term), priority++);                    
                 }
+                addRanges(tablets.mutable.rangeTombstones(), priority);
                 enqueueNextItem(tablets.mutable.find(term), priority);
 
                 current = pop();
                 if((current != null) && (!predicate.evaluate(current))) {
                     current = null;
                 }
+                if(perf != null) {
+                    perf.tabletsProbed += priority + 1;
+                    perf.seekNanos += System.nanoTime() - start;
+                }
+                if(event != null) {
+                    Tracer.current().endMergeIterator(event, priority + 1, term != null);
+                }
             }
 
             @Override
@@ -236,11 +679,15 @@ public class Database implements Closeable {
                 if(current == null) {
                     throw new NoSuchElementException("iterator reached end");
                 }
+                long start = perf == null ? 0 : System.nanoTime();
                 KV ret = current;
                 current = pop();
                 if((current != null) && (!predicate.evaluate(current))) {
                     current = null;
                 }
+                if(perf != null) {
+                    perf.nextNanos += System.nanoTime() - start;
+                }
 
                 return ret;
             }
@@ -256,34 +703,109 @@ public class Database implements Closeable {
                     if (ret == null) {
                         return null;
                     }
-                    if (ret.isDeleted()) {
+                    if (ret.isDeleted() || deletedByRange(ret.getKey(), lastPriority)) {
+                        if (perf != null) {
+                            perf.tombstonesSkipped += 1;
+                        }
                         continue;
                     }
-                    return ret;
+                    return resolve(ret);
                 }
             }
 
+            private int lastPriority;
+
+            /* the newest version of the next key, with merge operands combined with
+               the older versions they apply to */
             private KV nextKey() {
                 KV ret = nextQueueItem();
                 if(ret == null){
                     return null;
                 }
-                while((queue.size() > 0) && ((Slice.compare(queue.first().kv.getKey(), ret.getKey()) == 0))){
-                    nextQueueItem();
+                int priority = lastPriority;
+                List<Slice> operands = null;
+                KV base = null;
+                boolean folding = ret.isMergeOperand();
+                while((queue.size() > 0) && ((options.comparator.compare(queue.first().kv.getKey(), ret.getKey()) == 0))){
+                    KV older = nextQueueItem();
+                    if(perf != null) {
+                        perf.shadowedSkipped += 1;
+                    }
+                    if(!folding) {
+                        continue;
+                    }
+                    if(deletedByRange(older.getKey(), lastPriority)) {
+                        folding = false;
+                    } else if(older.isMergeOperand()) {
+                        if(operands == null) {
+                            operands = new ArrayList<Slice>();
+                        }
+                        operands.add(older.getValue());
+                    } else {
+                        base = older.isDeleted() ? null : older;
+                        folding = false;
+                    }
+                }
+                lastPriority = priority;
+
+                if(ret.isMergeOperand()) {
+                    ret = fold(ret, operands, base);
                 }
                 return ret;
             }
 
+            private KV fold(KV newest, List<Slice> operands, KV base) {
+                if(options.mergeOperator == null) {
+                    throw new IllegalStateException("found merge operands, but no merge operator is configured");
+                }
+                Slice key = newest.getKey();
+                Slice value = base == null ? null : resolve(base).getValue();
+                if(operands != null) {
+                    for(int i = operands.size() - 1; i >= 0; i--) {
+                        value = options.mergeOperator.merge(key, value, operands.get(i));
+                    }
+                }
+                return new KV(key, options.mergeOperator.merge(key, value, newest.getValue()));
+            }
+
+            private KV resolve(KV kv) {
+                if(!kv.isValuePointer()) {
+                    return kv;
+                }
+                try {
+                    return valueLog.resolve(kv);
+                } catch (IOException e) {
+                    throw new NoSuchElementException(e.getMessage());
+                }
+            }
+
             private KV nextQueueItem() {
                 if(queue.size() == 0) {
                     return null;
                 }
                 QueueItem item = queue.pollFirst();
+                lastPriority = item.priority;
                 KV ret = item.kv.detach();
                 enqueueNextItem(item.iterator, item.priority);
                 return ret;
             }
 
+            private void addRanges(List<RangeTombstone> tabletRanges, int priority) {
+                for(RangeTombstone range : tabletRanges) {
+                    ranges.add(new RangeItem(range, priority));
+                }
+            }
+
+            /* whether a range tombstone newer than the key's source deletes it */
+            private boolean deletedByRange(Slice key, int priority) {
+                for(RangeItem item : ranges) {
+                    if(item.priority > priority && item.range.covers(key, options.comparator)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
             private void enqueueNextItem(Iterator<KV> iterator, int priority) {
                 if(iterator.hasNext()){
                     queue.add(new QueueItem(iterator, iterator.next(), priority)); 
@@ -294,54 +816,157 @@ public class Database implements Closeable {
 
     private void open() throws IOException {
         lock = options.fileSystem.lock(fileManager.getLockFile());
-
-        String transactionLogPath = fileManager.getTransactionLog();
-        transactionLogWriter = new TransactionLog(options.fileSystem).getWriter(transactionLogPath, 
-            options.fileSystem.exists(transactionLogPath));
-        
-        tablets.mutable = fromLogOrElse(transactionLogPath, new MemoryTablet());
-        tablets.saving = fromLogOrElse(fileManager.getSecondaryTransactionLog(), null);
+        valueLog = new ValueLog(options.fileSystem, fileManager);
 
         Collection<String> fileTablets = fileManager.loadTabletFilenames();
-        for(String fileTablet : fileTablets) {
-            pushTablet(fileTablet);
+        synchronized(tablets) {
+            for(String fileTablet : fileTablets) {
+                tablets.file.addLast(newFileTablet(fileTablet));
+                tablets.stack.addLast(fileTablet);
+            }
+        }
+
+        // open the tablets and replay the immutable tablet's log in the background
+        // while the current transaction log is being replayed
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Void> openTablets = executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    // the most recent tablets are opened up front, the rest on first access
+                    if(options.tabletOpenThreads > 0) {
+                        tabletCache.openAll(tablets.file, options.tabletOpenThreads);
+                    }
+                    return null;
+                }
+            });
+            Future<MemoryTablet> saving = executor.submit(new Callable<MemoryTablet>() {
+                public MemoryTablet call() throws IOException {
+                    return fromLogOrElse(fileManager.getSecondaryTransactionLog(), null);
+                }
+            });
+
+            String transactionLogPath = fileManager.getTransactionLog();
+            tablets.mutable = fromLogOrElse(transactionLogPath, new MemoryTablet(options.mergeOperator, options.comparator));
+            tablets.saving = Utils.await(saving);
+            Utils.await(openTablets);
+
+            transactionLogWriter = new TransactionLog(options.fileSystem).getWriter(transactionLogPath, 
+                options.fileSystem.exists(transactionLogPath));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // an immutable tablet left over from an unclean shutdown still needs saving
+        if(tablets.saving != null) {
+            beginSave();
+            saveInBackground();
+        }
+
+        if(options.mbeanName != null) {
+            registerMBean();
         }
     }
 
-    private MemoryTablet fromLogOrElse(final String transactionLogPath, final MemoryTablet tablet) {
+    private void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(String.format("com.thefactory.datastore:type=Database,name=%s", ObjectName.quote(options.mbeanName)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StatisticsMBean(this), name);
+            mbean = name;
+        } catch (JMException e) {
+            log.warn(String.format("Registering the statistics MBean failed with %s", e));
+        }
+    }
+
+    private MemoryTablet fromLogOrElse(final String transactionLogPath, final MemoryTablet tablet) throws IOException {
         MemoryTablet ret = tablet;
         if(!options.fileSystem.exists(transactionLogPath)) {
             return ret;
         }
 
         if(ret == null) {
-            ret = new MemoryTablet();
+            ret = new MemoryTablet(options.mergeOperator, options.comparator);
         }
 
         TransactionLog.Reader reader = new TransactionLog(options.fileSystem).getReader(transactionLogPath);
-        Iterator<Slice> iterator = reader.transactions();
-        while(iterator.hasNext()){
-            ret.apply(Batch.wrap(iterator.next()));            
-        }       
+        try {
+            Iterator<Slice> iterator = reader.transactions();
+            while(iterator.hasNext()){
+                ret.apply(Batch.wrap(iterator.next()));            
+            }       
+        } finally {
+            reader.close();
+        }
         return ret; 
     }
 
-    private synchronized void apply(Batch batch) throws IOException {
-        transactionLogWriter.writeTransaction(batch.asSlice());
+    private void apply(Batch batch) throws IOException {
+        long start = System.nanoTime();
+        write(batch);
+        statistics.record(Statistics.Timer.WRITE, System.nanoTime() - start);
+        statistics.add(Statistics.Counter.WRITES, 1);
+    }
+
+    private synchronized void write(Batch batch) throws IOException {
+        Slice data = batch.asSlice();
+        Object event = Tracer.current().beginTransactionLogWrite();
+        long start = System.nanoTime();
+        transactionLogWriter.writeTransaction(data);
+        statistics.add(Statistics.Counter.WAL_WRITE_NANOS, System.nanoTime() - start);
+        if(event != null) {
+            Tracer.current().endTransactionLogWrite(event, data.getLength());
+        }
+        statistics.add(Statistics.Counter.WAL_BYTES, data.getLength());
         tablets.mutable.apply(batch);    
+        if(rowCache != null) {
+            // only once the write is visible, see RowCache; applying consumed batch
+            invalidate(Batch.wrap(data));
+        }
 
-        if(shouldSave() && canSave()){
-            save();
+        if(shouldSave()){
+            boolean stalled = isSaving();
+            Object stallEvent = null;
+            if(stalled) {
+                listeners.onStallBegin();
+                stallEvent = Tracer.current().beginStall();
+            }
+            start = System.nanoTime();
+            boolean ready = canSave();
+            long stall = System.nanoTime() - start;
+            if(stalled) {
+                statistics.add(Statistics.Counter.STALL_NANOS, stall);
+                if(stallEvent != null) {
+                    Tracer.current().endStall(stallEvent);
+                }
+                listeners.onStallEnd(stall);
+            }
+            if(ready) {
+                save();
+            }
+        }
+    }
+
+    private void invalidate(Batch batch) {
+        Iterator<KV> kvs = batch.pairs();
+        while(kvs.hasNext()) {
+            KV kv = kvs.next();
+            if(kv.isRangeTombstone()) {
+                rowCache.invalidate(new RangeTombstone(kv.getKey(), kv.getValue()), options.comparator);
+            } else {
+                rowCache.invalidate(kv.getKey());
+            }
         }
     }
 
-    private Boolean canSaveFlag = Boolean.TRUE;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    private final Object saveLock = new Object();
+    private boolean saveInProgress = false;
     
     public boolean canSave() {
-        synchronized (canSaveFlag) {
-            while (canSaveFlag.booleanValue() == false) {
+        synchronized (saveLock) {
+            while (saveInProgress) {
                 try {
-                    canSaveFlag.wait();
+                    saveLock.wait();
                 } catch (InterruptedException e) {
                     return false;
                 } 
@@ -350,10 +975,16 @@ public class Database implements Closeable {
         return true;
     }
 
+    private boolean isSaving() {
+        synchronized (saveLock) {
+            return saveInProgress;
+        }
+    }
+
     public void signalSaveComplete() {
-        synchronized (canSaveFlag) {
-            canSaveFlag = Boolean.TRUE;
-            canSaveFlag.notifyAll();
+        synchronized (saveLock) {
+            saveInProgress = false;
+            saveLock.notifyAll();
         }
     }
 
@@ -363,48 +994,415 @@ public class Database implements Closeable {
         }
     }
 
+    /* Write the mutable tablet (and an immutable one still pending from an earlier
+       flush) to file tablets, waiting until they are part of the tablet stack. */
+    public synchronized void flush() throws IOException {
+        if(!canSave()) {
+            throw new InterruptedIOException("interrupted while waiting for pending flush");
+        }
+
+        if(tablets.saving != null) {
+            beginSave();
+            saveImmutable();
+        }
+
+        if(tablets.mutable.size() > 0) {
+            beginSave();
+            rotate();
+            saveImmutable();
+        }
+    }
+
+    /* Make dir, which must not exist yet, a copy of the database as it is now that can be
+       opened as a database of its own. Tablets and value logs never change once written,
+       so they are hard linked instead of copied, which takes no time or space but needs
+       dir on the same file system. Writes wait while the memory tablets are flushed, or
+       with flush false only while the transaction logs are copied instead. */
+    public void checkpoint(String dir) throws IOException {
+        checkpoint(dir, true);
+    }
+
+    public synchronized void checkpoint(String dir, boolean flush) throws IOException {
+        if(options.fileSystem.exists(dir)) {
+            throw new IOException(String.format("checkpoint directory %s already exists", dir));
+        }
+        // holding the write lock, once a pending flush is done no other starts, so the
+        // stack and the value logs stay as they are and the logs are all sealed
+        if(!canSave()) {
+            throw new InterruptedIOException("interrupted while waiting for pending flush");
+        }
+        if(flush) {
+            flush();
+        }
+
+        FileManager dest = new FileManager(dir, options.fileSystem, true);
+        List<String> stack = new ArrayList<String>(tablets.stack);
+        for(String name : stack) {
+            options.fileSystem.link(fileManager.dbFilename(name), dest.dbFilename(name));
+        }
+        List<String> logs = new ArrayList<String>();
+        for(long number : valueLog.sealedLogs()) {
+            options.fileSystem.link(fileManager.getValueLog(number), dest.getValueLog(number));
+            logs.add(Long.toString(number));
+        }
+        if(!flush) {
+            copy(fileManager.getTransactionLog(), dest.getTransactionLog());
+        }
+        // left over by a failed flush
+        if(tablets.saving != null && options.fileSystem.exists(fileManager.getSecondaryTransactionLog())) {
+            copy(fileManager.getSecondaryTransactionLog(), dest.getSecondaryTransactionLog());
+        }
+        dest.writeValueLogNumbers(logs, valueLog.nextNumber());
+        dest.writeTabletFilenames(stack);
+        log.debug(String.format("Checkpointed %d tablets and %d value logs to %s", stack.size(), logs.size(), dir));
+    }
+
+    /* Back the database up to dir, which may hold an earlier backup of it: only the
+       tablets and value logs that aren't in the backup yet are copied, and the ones no
+       longer in the database removed, so a backup reads what changed since the last one
+       rather than the whole database. The files are copied from a checkpoint taken in
+       the database directory, so writes only wait for the checkpoint. Like a checkpoint,
+       dir can be opened as a database. Returns the number of bytes copied. */
+    public long backup(String dir) throws IOException {
+        return backup(dir, true);
+    }
+
+    public long backup(String dir, boolean flush) throws IOException {
+        String tmp = fileManager.dbFilename(String.format("backup-%s.tmp", UUID.randomUUID()));
+        FileManager source = null;
+        try {
+            checkpoint(tmp, flush);
+            // directories don't exist on every FileSystem, e.g. MemFileSystem
+            source = new FileManager(tmp, options.fileSystem, true);
+            return backup(source, dir);
+        } finally {
+            if(source != null) {
+                removeCheckpoint(source);
+            }
+        }
+    }
+
+    private long backup(FileManager source, String dir) throws IOException {
+        Collection<String> stack = source.loadTabletFilenames();
+        Collection<String> logs = source.loadValueLogNumbers();
+        FileManager dest = new FileManager(dir, options.fileSystem, true);
+        Collection<String> oldStack = new ArrayList<String>(dest.loadTabletFilenames());
+        Collection<String> oldLogs = new ArrayList<String>(dest.loadValueLogNumbers());
+        // Tablet names are unique, and value log numbers are never reused where the list
+        // has a next number, so a file the last backup listed has the same contents. Any
+        // other file, e.g. one left by a backup that failed, is copied again.
+        Collection<String> backedUpLogs = dest.loadNextValueLogNumber() == 0 ? new ArrayList<String>() : oldLogs;
+        long ret = 0;
+        for(String name : stack) {
+            if(!oldStack.contains(name)) {
+                ret += copy(source.dbFilename(name), dest.dbFilename(name));
+            }
+        }
+        for(String number : logs) {
+            if(!backedUpLogs.contains(number)) {
+                long n = Long.parseLong(number);
+                ret += copy(source.getValueLog(n), dest.getValueLog(n));
+            }
+        }
+        String[] transactionLogs = new String[]{FileManager.TABLET_WRITE_LOG_FILE, FileManager.IMMUTABLE_TABLET_WRITE_LOG_FILE};
+        for(String name : transactionLogs) {
+            if(options.fileSystem.exists(source.dbFilename(name))) {
+                ret += copy(source.dbFilename(name), dest.dbFilename(name));
+            } else {
+                options.fileSystem.remove(dest.dbFilename(name));
+            }
+        }
+        dest.writeValueLogNumbers(logs, source.loadNextValueLogNumber());
+        dest.writeTabletFilenames(stack);
+
+        oldStack.removeAll(stack);
+        for(String name : oldStack) {
+            options.fileSystem.remove(dest.dbFilename(name));
+        }
+        oldLogs.removeAll(logs);
+        for(String number : oldLogs) {
+            options.fileSystem.remove(dest.getValueLog(Long.parseLong(number)));
+        }
+        log.debug(String.format("Backed up %d tablets and %d value logs to %s, copying %d bytes", stack.size(), logs.size(), dir, ret));
+        return ret;
+    }
+
+    /* remove a checkpoint taken for a backup, carrying on past files that can't be */
+    private void removeCheckpoint(FileManager checkpoint) {
+        List<String> names = new ArrayList<String>();
+        try {
+            names.addAll(checkpoint.loadTabletFilenames());
+            for(String number : checkpoint.loadValueLogNumbers()) {
+                names.add(new File(checkpoint.getValueLog(Long.parseLong(number))).getName());
+            }
+        } catch (Exception e) {
+            log.warn(String.format("Reading checkpoint %s failed with %s", checkpoint.dir, e));
+        }
+        names.add(FileManager.TABLET_WRITE_LOG_FILE);
+        names.add(FileManager.IMMUTABLE_TABLET_WRITE_LOG_FILE);
+        names.add(FileManager.VALUE_LOG_META_FILE);
+        names.add(FileManager.TABLET_META_FILE);
+        for(String name : names) {
+            removeQuietly(checkpoint.dbFilename(name));
+        }
+        removeQuietly(checkpoint.dir);
+    }
+
+    private void removeQuietly(String path) {
+        try {
+            options.fileSystem.remove(path);
+        } catch (RuntimeException e) {
+            log.warn(String.format("Removing %s failed with %s", path, e));
+        }
+    }
+
+    /* copy src to dest a buffer at a time, returning the number of bytes copied */
+    private long copy(String src, String dest) throws IOException {
+        DatastoreChannel in = options.fileSystem.open(src);
+        DatastoreChannel out = null;
+        try {
+            out = options.fileSystem.create(dest);
+            long size = in.size();
+            ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long pos = 0;
+            while(pos < size) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), size - pos));
+                while(buf.hasRemaining()) {
+                    if(in.read(buf, pos + buf.position()) < 0) {
+                        throw new IOException(String.format("%s is truncated", src));
+                    }
+                }
+                buf.flip();
+                while(buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                pos += buf.limit();
+            }
+            return size;
+        } finally {
+            in.close();
+            if(out != null) {
+                out.close();
+            }
+        }
+    }
+
     private void save() throws IOException {
-        if(canSave() && !shouldSave()) {
+        if(!shouldSave()) {
             return;
         }
 
+        beginSave();
+        rotate();
+        saveInBackground();
+    }
+
+    private void beginSave() {
+        synchronized (saveLock) {
+            saveInProgress = true;
+        }
+    }
+
+    /* make the mutable tablet immutable and start a new transaction log for its successor */
+    private void rotate() throws IOException {
         transactionLogWriter.close();
         options.fileSystem.rename(fileManager.getTransactionLog(), fileManager.getSecondaryTransactionLog());
         transactionLogWriter = new TransactionLog(options.fileSystem).getWriter(fileManager.getTransactionLog(), false);        
 
         synchronized(tablets){
             tablets.saving = tablets.mutable;
-            tablets.mutable = new MemoryTablet();
+            tablets.mutable = new MemoryTablet(options.mergeOperator, options.comparator);
         }
+        String rotated = fileManager.getSecondaryTransactionLog();
+        listeners.onTransactionLogRotated(rotated, options.fileSystem.size(rotated));
+    }
 
+    private void saveInBackground() {
         new Thread() {
             public void run() {
-                String name = UUID.randomUUID().toString();
                 try {
-                    writeTablet(name);
-                    if(fileManager.exists(name, 10)) {
-                        pushTablet(name);
-                        synchronized(tablets) {
-                            tablets.saving = null;     
-                        }                            
-                        options.fileSystem.remove(fileManager.getSecondaryTransactionLog());
-                    } else {
-                        log.error(String.format("Failed to save tablet: %s", name));                        
-                    }
+                    saveImmutable();
                 } catch (IOException e) {
                     log.error(String.format("Flushing tablet failed with %s", e));
-                } finally {
-                   signalSaveComplete(); 
-                }            
-                log.debug(String.format("Successfully flushed tablet (%s)", name));
+                    listeners.onBackgroundError(e);
+                }
             }
         }.start();
     }
 
-    private void writeTablet(String name) throws IOException {
-        TabletWriter writer = new TabletWriter(new TabletWriterOptions());
+    private void saveImmutable() throws IOException {
+        String name = UUID.randomUUID().toString();
+        long start = System.nanoTime();
+        Object event = Tracer.current().beginFlush();
+        long keys, bytes, nanos;
+        int count;
+        try {
+            listeners.onFlushBegin(name, tablets.saving.size());
+            keys = writeTablet(name);
+            if(!fileManager.exists(name, 10)) {
+                throw new IOException(String.format("Failed to save tablet: %s", name));
+            }
+            bytes = options.fileSystem.size(fileManager.dbFilename(name));
+            statistics.add(Statistics.Counter.FLUSH_BYTES, bytes);
+            count = push(name);
+            synchronized(tablets) {
+                tablets.saving = null;     
+            }                            
+            options.fileSystem.remove(fileManager.getSecondaryTransactionLog());
+            nanos = System.nanoTime() - start;
+            statistics.add(Statistics.Counter.FLUSHES, 1);
+            statistics.record(Statistics.Timer.FLUSH, nanos);
+            if(event != null) {
+                Tracer.current().endFlush(event, name, keys, bytes);
+            }
+        } finally {
+           signalSaveComplete(); 
+        }            
+        // once writers waiting for this flush can go on, so these may write themselves
+        listeners.onTabletPushed(name, count - 1, count);
+        listeners.onFlushCompleted(name, keys, bytes, nanos);
+        log.debug(String.format("Successfully flushed tablet (%s)", name));
+    }
+
+    /* write the immutable tablet to the file tablet name, returning its number of keys */
+    private long writeTablet(String name) throws IOException {
+        TabletWriterOptions writerOptions = new TabletWriterOptions();
+        writerOptions.compressionThreads = options.flushThreads;
+        writerOptions.comparator = options.comparator;
+        writerOptions.checksum = options.tabletChecksum;
+        TabletWriter writer = new TabletWriter(writerOptions);
+        CountingIterator counted = new CountingIterator(tablets.saving.find());
+        Iterator<KV> kvs = counted;
+        ValueLog.Writer values = null;
+        if (options.valueLogThreshold > 0) {
+            values = valueLog.newWriter();
+            kvs = values.separate(kvs, options.valueLogThreshold);
+        }
         DatastoreChannel channel = options.fileSystem.create(fileManager.dbFilename(name));
-        writer.writeTablet(channel, tablets.saving.find());
+        Map<String, byte[]> meta = new TreeMap<String, byte[]>();
+        if(!tablets.saving.rangeTombstones().isEmpty()) {
+            meta.put(TabletConstants.RANGE_TOMBSTONES_BLOCK, RangeTombstone.encode(tablets.saving.rangeTombstones()));
+        }
+        try {
+            writer.writeTablet(channel, kvs, meta);
+        } finally {
+            channel.close();
+            if (values != null) {
+                values.close();
+            }
+        }
+        return counted.count;
     }
-}
 
+    private static class CountingIterator implements Iterator<KV> {
+        private final Iterator<KV> iterator;
+        private long count = 0;
+
+        public CountingIterator(Iterator<KV> iterator) {
+            this.iterator = iterator;
+        }
+
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        public KV next() {
+            KV ret = iterator.next();
+            count++;
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /* Garbage collect the value logs. A log value is stale once its key has been
+       overwritten or deleted; the live values of logs with at least minStaleRatio of
+       their bytes stale are written again and the logs removed. Returns the stats of
+       all logs that were checked. Iterators created before can still read from removed
+       logs, so their space is only freed when the database is closed. */
+    public List<ValueLog.Stats> collectValueLogGarbage(double minStaleRatio) throws IOException {
+        List<ValueLog.Stats> ret = new ArrayList<ValueLog.Stats>();
+        for (long number : valueLog.sealedLogs()) {
+            ValueLog.Stats stats = new ValueLog.Stats(number);
+            Iterator<ValueLog.Entry> entries = valueLog.entries(number);
+            while (entries.hasNext()) {
+                ValueLog.Entry entry = entries.next();
+                stats.totalBytes += entry.valueLength;
+                if (isLive(entry)) {
+                    stats.liveBytes += entry.valueLength;
+                }
+            }
+            ret.add(stats);
+
+            if (stats.staleRatio() < minStaleRatio) {
+                continue;
+            }
+
+            entries = valueLog.entries(number);
+            while (entries.hasNext()) {
+                relocate(entries.next());
+            }
+            valueLog.remove(number);
+            log.debug(String.format("Removed value log %d, %d of %d bytes stale", number,
+                stats.totalBytes - stats.liveBytes, stats.totalBytes));
+        }
+        return ret;
+    }
+
+    /* Whether entry's value is the key's current value, or the one its merge operands
+       apply to: walk the key's versions from the newest, past any merge operands. */
+    private boolean isLive(ValueLog.Entry entry) throws IOException {
+        List<Iterator<KV>> versions = new ArrayList<Iterator<KV>>();
+        List<List<RangeTombstone>> ranges = new ArrayList<List<RangeTombstone>>();
+        synchronized(tablets) {
+            versions.add(tablets.mutable.find(entry.key));
+            ranges.add(tablets.mutable.rangeTombstones());
+            if(tablets.saving != null) {
+                versions.add(tablets.saving.find(entry.key));
+                ranges.add(tablets.saving.rangeTombstones());
+            }
+            Iterator<FileTablet> it = tablets.file.descendingIterator();
+            while(it.hasNext()) {
+                FileTablet tablet = it.next();
+                versions.add(tablet.find(entry.key));
+                ranges.add(tablet.rangeTombstones());
+            }
+        }
+
+        for(int i = 0; i < versions.size(); i++) {
+            for(int j = 0; j < i; j++) {
+                for(RangeTombstone range : ranges.get(j)) {
+                    if(range.covers(entry.key, options.comparator)) {
+                        return false;
+                    }
+                }
+            }
+            Iterator<KV> kvs = versions.get(i);
+            if(!kvs.hasNext()) {
+                continue;
+            }
+            KV kv = kvs.next();
+            if(options.comparator.compare(kv.getKey(), entry.key) != 0 || kv.isMergeOperand()) {
+                continue;
+            }
+            return kv.isValuePointer() && Slice.compare(kv.getValue(), entry.pointer) == 0;
+        }
+        return false;
+    }
+
+    /* Write a live value again, checking it under the write lock so a concurrent write
+       wins. The key's current value includes any merge operands on top of it. */
+    private synchronized void relocate(ValueLog.Entry entry) throws IOException {
+        if (isLive(entry)) {
+            Slice value = getOrElse(entry.key, null);
+            if (value != null) {
+                Batch batch = new Batch();
+                batch.put(entry.key, value);
+                apply(batch);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.thefactory.datastore;
+
+/* Notified of a database's background work as it happens, see Database.Options.listeners.
+   Callbacks run on the thread doing the work and should return quickly; exceptions they
+   throw are logged and otherwise ignored. onFlushBegin, the stall callbacks and
+   onTransactionLogRotated run while writes are blocked, possibly by a writer waiting on
+   the very flush reporting them, so they must not call back into the database. The
+   other callbacks run once the flush is done and may. */
+public interface DatabaseListener {
+    /* the immutable tablet of memoryBytes started being written to tablet */
+    void onFlushBegin(String tablet, long memoryBytes);
+
+    /* tablet was written with keys keys in bytes bytes and pushed on the stack */
+    void onFlushCompleted(String tablet, long keys, long bytes, long nanos);
+
+    /* tablet was added to the stack at position, counted from the oldest, of tablets
+       file tablets, by a flush or an ingest */
+    void onTabletPushed(String tablet, int position, int tablets);
+
+    /* a write is waiting for the previous flush to finish before it can start one */
+    void onStallBegin();
+
+    void onStallEnd(long nanos);
+
+    /* the transaction log of the mutable tablet was moved to path, bytes long, and a
+       new one started */
+    void onTransactionLogRotated(String path, long bytes);
+
+    /* background work, e.g. a flush, failed; the database can't report it otherwise */
+    void onBackgroundError(Exception e);
+
+    /* ignores every event, to extend for the ones of interest */
+    public static class Adapter implements DatabaseListener {
+        public void onFlushBegin(String tablet, long memoryBytes) {
+        }
+
+        public void onFlushCompleted(String tablet, long keys, long bytes, long nanos) {
+        }
+
+        public void onTabletPushed(String tablet, int position, int tablets) {
+        }
+
+        public void onStallBegin() {
+        }
+
+        public void onStallEnd(long nanos) {
+        }
+
+        public void onTransactionLogRotated(String path, long bytes) {
+        }
+
+        public void onBackgroundError(Exception e) {
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.thefactory.datastore;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/* Passes every event on to a list of listeners, so one listener failing doesn't keep
+   the others from being notified or fail the database's work. */
+class DatabaseListeners implements DatabaseListener {
+    private final List<DatabaseListener> listeners;
+    private final Log log = LogFactory.getLog(DatabaseListeners.class);
+
+    public DatabaseListeners(List<DatabaseListener> listeners) {
+        this.listeners = new ArrayList<DatabaseListener>(listeners);
+    }
+
+    private void failed(DatabaseListener listener, RuntimeException e) {
+        log.warn(String.format("Database listener %s failed with %s", listener, e));
+    }
+
+    public void onFlushBegin(String tablet, long memoryBytes) {
+        for (DatabaseListener listener : listeners) {
+            try {
+                listener.onFlushBegin(tablet, memoryBytes);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void onFlushCompleted(String tablet, long keys, long bytes, long nanos) {
+        for (DatabaseListener listener : listeners) {
+            try {
+                listener.onFlushCompleted(tablet, keys, bytes, nanos);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void onTabletPushed(String tablet, int position, int tablets) {
+        for (DatabaseListener listener : listeners) {
+            try {
+                listener.onTabletPushed(tablet, position, tablets);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void onStallBegin() {
+        for (DatabaseListener listener : listeners) {
+            try {
+                listener.onStallBegin();
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void onStallEnd(long nanos) {
+        for (DatabaseListener listener : listeners) {
+            try {
+                listener.onStallEnd(nanos);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void onTransactionLogRotated(String path, long bytes) {
+        for (DatabaseListener listener : listeners) {
+            try {
+                listener.onTransactionLogRotated(path, bytes);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void onBackgroundError(Exception error) {
+        for (DatabaseListener listener : listeners) {
+            try {
+                listener.onBackgroundError(error);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+}
@@ -11,6 +11,8 @@ import java.io.IOException;
 import java.io.Closeable;
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.lang.Override;
 import java.util.Collection;
 import java.util.ArrayList;
@@ -63,6 +65,15 @@ public class DiskFileSystem implements FileSystem {
         throw new IllegalArgumentException("Failed to rename file: " + oldName + " to " + newName);
     }
 
+    @Override
+    public void link(String existingName, String newName) {
+        try {
+            Files.createLink(Paths.get(newName), Paths.get(existingName));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Failed to link file: " + existingName + " to " + newName + ": " + e);
+        }
+    }
+
     @Override
     public void mkdirs(String path) {
         if(!new File(path).mkdirs()) {
@@ -158,6 +169,16 @@ public class DiskFileSystem implements FileSystem {
             return channel.write(src);
         }
 
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return channel.write(srcs);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
         @Override
         public void close() throws IOException {
             channel.close();
@@ -15,6 +15,11 @@ public class FileManager {
     public static final String TABLET_WRITE_LOG_FILE = "write.log";
     public static final String IMMUTABLE_TABLET_WRITE_LOG_FILE = "write_imm.log";
     public static final String TABLET_META_FILE = "stack.txt";
+    public static final String VALUE_LOG_META_FILE = "vlogs.txt";
+    // the line of VALUE_LOG_META_FILE holding the number of the next value log, and
+    // the lines of removed logs whose files are still to be deleted
+    private static final String NEXT_VALUE_LOG = "next=";
+    private static final String REMOVED_VALUE_LOG = "removed=";
 
     private final FileSystem fs;
 
@@ -49,6 +54,63 @@ public class FileManager {
         return dbFilename(TABLET_META_FILE);
     }
 
+    public String getValueLog(long number) {
+        return dbFilename(String.format("%06d.vlog", number));
+    }
+
+    /* the numbers of the value logs, without the next number and the removed logs */
+    public Collection<String> loadValueLogNumbers() throws IOException {
+        Collection<String> ret = new ArrayList<String>();
+        for (String line : loadValueLogList()) {
+            if (!line.startsWith(NEXT_VALUE_LOG) && !line.startsWith(REMOVED_VALUE_LOG)) {
+                ret.add(line);
+            }
+        }
+        return ret;
+    }
+
+    public Collection<String> loadRemovedValueLogNumbers() throws IOException {
+        Collection<String> ret = new ArrayList<String>();
+        for (String line : loadValueLogList()) {
+            if (line.startsWith(REMOVED_VALUE_LOG)) {
+                ret.add(line.substring(REMOVED_VALUE_LOG.length()).trim());
+            }
+        }
+        return ret;
+    }
+
+    /* the number of the next value log, so the numbers of removed logs aren't used
+       again; 0 for lists written before it was stored */
+    public long loadNextValueLogNumber() throws IOException {
+        for (String line : loadValueLogList()) {
+            if (line.startsWith(NEXT_VALUE_LOG)) {
+                return Long.parseLong(line.substring(NEXT_VALUE_LOG.length()).trim());
+            }
+        }
+        return 0;
+    }
+
+    public void writeValueLogNumbers(Collection<String> numbers, long next) throws IOException {
+        writeValueLogNumbers(numbers, new ArrayList<String>(), next);
+    }
+
+    public void writeValueLogNumbers(Collection<String> numbers, Collection<String> removed, long next) throws IOException {
+        Collection<String> lines = new ArrayList<String>(numbers);
+        for (String number : removed) {
+            lines.add(REMOVED_VALUE_LOG + number);
+        }
+        lines.add(NEXT_VALUE_LOG + next);
+        fs.storeList(lines, dbFilename(VALUE_LOG_META_FILE));
+    }
+
+    private Collection<String> loadValueLogList() throws IOException {
+        if (fs.exists(dbFilename(VALUE_LOG_META_FILE))) {
+            return fs.loadList(dbFilename(VALUE_LOG_META_FILE));
+        }
+
+        return new ArrayList<String>();
+    }
+
     public Collection<String> loadTabletFilenames() throws IOException {
         if (fs.exists(dbFilename(TABLET_META_FILE))) {
             return fs.loadList(getTabletMetaFile());
@@ -23,6 +23,9 @@ public interface FileSystem {
     // Rename a resource
     void rename(String oldName, String newName);
 
+    // Make a resource available under a second name, sharing its contents
+    void link(String existingName, String newName);
+
     // Create full directory path to a resource
     void mkdirs(String name);
 
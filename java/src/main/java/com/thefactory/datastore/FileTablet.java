@@ -6,25 +6,88 @@ import java.util.NoSuchElementException;
 import java.util.List;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.nio.ByteBuffer;
 
 public class FileTablet {
-    private final DatastoreChannel in;
+    private final FileSystem fileSystem;
+    private final String path;
+    private final TabletCache cache;
     private final TabletReader reader = new TabletReader();
     private final TabletReaderOptions options;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile DatastoreChannel in;
     private List<TabletReader.TabletIndexRecord> dataIndex;
     private List<TabletReader.TabletIndexRecord> metaIndex;
+    private List<RangeTombstone> rangeTombstones;
+    private volatile Slice lastKey;
+    // read from the header when first needed
+    private volatile ChecksumType checksumType;
+    // the data blocks whose checksums have been verified, kept across reopens since
+    // tablets don't change; unsynchronized, so at worst a block is verified twice
+    private boolean[] verified;
 
     public FileTablet(DatastoreChannel in, TabletReaderOptions options) throws IOException {
-        this.in = in;
-        this.options = options; 
-        TabletReader.TabletFooter footer = loadFooter();
-        metaIndex = loadIndex(footer.metaIndexOffset, footer.metaIndexLength, TabletConstants.META_INDEX_MAGIC);
-        dataIndex = loadIndex(footer.dataIndexOffset, footer.dataIndexLength, TabletConstants.DATA_INDEX_MAGIC);
+        this.fileSystem = null;
+        this.path = null;
+        this.cache = null;
+        this.options = options;
+        reader.setComparator(options.comparator);
+        reader.setStatistics(options.statistics);
+        load(in);
+    }
+
+    /* A tablet that is opened on first access (through cache, if not null) and can be
+       closed and reopened again, e.g. when it gets evicted from the cache. */
+    public FileTablet(FileSystem fileSystem, String path, TabletReaderOptions options, TabletCache cache) {
+        this.fileSystem = fileSystem;
+        this.path = path;
+        this.cache = cache;
+        this.options = options;
+        reader.setComparator(options.comparator);
+        reader.setStatistics(options.statistics);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isOpen() {
+        return in != null;
+    }
+
+    public void open() throws IOException {
+        if (in != null) {
+            return;
+        }
+        if (path == null) {
+            throw new IOException("tablet has been closed");
+        }
+        lock.writeLock().lock();
+        try {
+            if (in == null) {
+                load(fileSystem.open(path));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public void close() throws IOException {
-        in.close();
+        lock.writeLock().lock();
+        try {
+            if (in == null) {
+                return;
+            }
+            in.close();
+            in = null;
+            dataIndex = null;
+            metaIndex = null;
+            rangeTombstones = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public Iterator<KV> find() throws IOException {
@@ -32,6 +95,55 @@ public class FileTablet {
     }
 
     public Iterator<KV> find(final Slice term) throws IOException {
+        return find(term, options.verifyChecksums);
+    }
+
+    /* the key ranges this tablet deletes from older tablets */
+    public List<RangeTombstone> rangeTombstones() throws IOException {
+        while (true) {
+            ensureOpen();
+            lock.readLock().lock();
+            try {
+                if (in != null) {
+                    return rangeTombstones;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /* the smallest key in the tablet, or null if it has none */
+    public Slice firstKey() throws IOException {
+        List<TabletReader.TabletIndexRecord> dataIndex = index();
+        return dataIndex.isEmpty() ? null : dataIndex.get(0).data;
+    }
+
+    /* the largest key in the tablet, or null if it has none */
+    public Slice lastKey() throws IOException {
+        if (lastKey != null) {
+            return lastKey;
+        }
+        List<TabletReader.TabletIndexRecord> dataIndex = index();
+        if (dataIndex.isEmpty()) {
+            return null;
+        }
+        Slice ret = null;
+        Iterator<KV> kvs = loadBlock(dataIndex, dataIndex.size() - 1, options.verifyChecksums).find();
+        while (kvs.hasNext()) {
+            ret = kvs.next().getKey();
+        }
+        lastKey = ret == null ? null : ret.detach();
+        return lastKey;
+    }
+
+    /* the keys from term on, checking the checksums of blocks not verified before if
+       verifyChecksums is set, whatever options.verifyChecksums says */
+    public Iterator<KV> find(final Slice term, final boolean verifyChecksums) throws IOException {
+        final List<TabletReader.TabletIndexRecord> dataIndex = index();
+        if (dataIndex.isEmpty()) {
+            return new ArrayList<KV>().iterator();
+        }
 
         return new Iterator<KV>() {
             private int currentBlockIndex = 0;
@@ -43,7 +155,7 @@ public class FileTablet {
                     currentBlockIndex = search(term);
                 }
 
-                currentBlock = loadBlock(currentBlockIndex);
+                currentBlock = loadBlock(dataIndex, currentBlockIndex, verifyChecksums);
                 blockIterator = currentBlock.find(term);
             }
 
@@ -57,7 +169,7 @@ public class FileTablet {
                 }
                 currentBlockIndex += 1;
                 try {
-                    currentBlock = loadBlock(currentBlockIndex);
+                    currentBlock = loadBlock(dataIndex, currentBlockIndex, verifyChecksums);
                 } catch (IOException e) {
                     throw new NoSuchElementException(e.getMessage());
                 }
@@ -70,11 +182,15 @@ public class FileTablet {
             }
 
             private int search(Slice term) {
+                PerfContext perf = PerfContext.current();
                 int lower = 0;
                 int upper = dataIndex.size();
                 while (lower < upper) {
                     int mid = lower + (upper - lower) / 2;
-                    if (Slice.compare(dataIndex.get(mid).data, term) <= 0) {
+                    if (perf != null) {
+                        perf.keysCompared += 1;
+                    }
+                    if (options.comparator.compare(dataIndex.get(mid).data, term) <= 0) {
                         lower = mid + 1;
                     } else {
                         upper = mid;
@@ -86,44 +202,172 @@ public class FileTablet {
     }
 
     public List<BlockReader> blocks() throws IOException {
+        List<TabletReader.TabletIndexRecord> dataIndex = index();
         ArrayList<BlockReader> ret = new ArrayList<BlockReader>();
         for(int i = 0; i < dataIndex.size(); i++){
-            ret.add(loadBlock(i));
+            ret.add(loadBlock(dataIndex, i, options.verifyChecksums));
         }
         return ret;
     }
 
-    public List<TabletReader.TabletIndexRecord> index() {
-        return dataIndex;
+    public List<TabletReader.TabletIndexRecord> index() throws IOException {
+        while (true) {
+            ensureOpen();
+            lock.readLock().lock();
+            try {
+                if (in != null) {
+                    return dataIndex;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
     }
 
-    private TabletReader.TabletFooter loadFooter() throws IOException {
-        byte[] bytes = readFully(in.size() - 40, 40);
+    private void ensureOpen() throws IOException {
+        if (in != null) {
+            if (cache != null) {
+                cache.touch(this);
+            }
+            return;
+        }
+        if (cache != null) {
+            cache.open(this);
+        } else {
+            open();
+        }
+    }
+
+    private void load(DatastoreChannel channel) throws IOException {
+        try {
+            TabletReader.TabletFooter footer = loadFooter(channel);
+            metaIndex = loadIndex(channel, footer.metaIndexOffset, footer.metaIndexLength, TabletConstants.META_INDEX_MAGIC);
+            dataIndex = loadIndex(channel, footer.dataIndexOffset, footer.dataIndexLength, TabletConstants.DATA_INDEX_MAGIC);
+            if (options.verifyChecksums && checksumType == null) {
+                setChecksumType(loadHeader(channel));
+            }
+            if (verified == null) {
+                verified = new boolean[dataIndex.size()];
+            }
+            byte[] dictionary = loadMetaBlock(channel, TabletConstants.ZSTD_DICTIONARY_BLOCK);
+            if (dictionary != null) {
+                reader.setDictionary(dictionary);
+            }
+            byte[] ranges = loadMetaBlock(channel, TabletConstants.RANGE_TOMBSTONES_BLOCK);
+            rangeTombstones = ranges == null ? new ArrayList<RangeTombstone>() : RangeTombstone.decode(new Slice(ranges));
+            checkComparator(loadMetaBlock(channel, TabletConstants.PROPERTIES_BLOCK));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        in = channel;
+    }
+
+    /* refuse to read a tablet whose keys are in another order than options.comparator's */
+    private void checkComparator(byte[] properties) throws IOException {
+        String name = KeyComparator.LEXICOGRAPHIC.name();
+        if (properties != null) {
+            String recorded = TabletProperties.decode(new Slice(properties)).get(TabletProperties.COMPARATOR);
+            if (recorded != null) {
+                name = recorded;
+            }
+        }
+        if (!name.equals(options.comparator.name())) {
+            throw new IOException(String.format("tablet keys are ordered by comparator %s, not %s", name, options.comparator.name()));
+        }
+    }
+
+    private ChecksumType loadHeader(DatastoreChannel channel) throws IOException {
+        return reader.readHeader(new Slice(readFully(channel, 0, 8))).checksumType();
+    }
+
+    private void setChecksumType(ChecksumType checksumType) {
+        reader.setChecksumType(checksumType);
+        this.checksumType = checksumType;
+    }
+
+    private TabletReader.TabletFooter loadFooter(DatastoreChannel channel) throws IOException {
+        byte[] bytes = readFully(channel, channel.size() - 40, 40);
         return reader.readFooter(new Slice(bytes));
     }
 
-    private List<TabletReader.TabletIndexRecord> loadIndex(long offset, long length, long magic) throws IOException {
-        byte[] bytes = readFully(offset, (int)length);
+    private byte[] loadMetaBlock(DatastoreChannel channel, String name) throws IOException {
+        for (TabletReader.TabletIndexRecord rec : metaIndex) {
+            if (name.equals(rec.data.toUTF8String())) {
+                byte[] bytes = readFully(channel, rec.offset, rec.length);
+                TabletReader.TabletBlockData block = new TabletReader.TabletBlockData(new Slice(bytes), null,
+                    options.verifyChecksums ? checksumType : null);
+                if (options.verifyChecksums && block.info.checksum != 0 && block.checksum != block.info.checksum) {
+                    throw new IOException(String.format("bad checksum of meta block %s", name));
+                }
+                return block.data;
+            }
+        }
+        return null;
+    }
+
+    private List<TabletReader.TabletIndexRecord> loadIndex(DatastoreChannel channel, long offset, long length, long magic) throws IOException {
+        byte[] bytes = readFully(channel, offset, (int)length);
         return reader.readIndex(new Slice(bytes), length, magic);
     }
 
-    private BlockReader loadBlock(long index) throws IOException {
-        long offset = dataIndex.get((int) index).offset;
-        int length = dataIndex.get((int) index).length;
+    private BlockReader loadBlock(List<TabletReader.TabletIndexRecord> dataIndex, int index, boolean verifyChecksums) throws IOException {
+        long offset = dataIndex.get(index).offset;
+        int length = dataIndex.get(index).length;
+        boolean verify = verifyChecksums && !verified[index];
+        if (verify && checksumType == null) {
+            setChecksumType(reader.readHeader(new Slice(read(0, 8))).checksumType());
+        }
 
-        byte[] bytes = readFully(offset, length);
-        BlockReader block = reader.readBlock(new Slice(bytes));
+        PerfContext perf = PerfContext.current();
+        Object event = Tracer.current().beginBlockLoad();
+        boolean timed = perf != null || event != null;
+        long start = timed ? System.nanoTime() : 0;
+        byte[] bytes = read(offset, length);
+        long read = timed ? System.nanoTime() : 0;
+        BlockReader block = reader.readBlock(new Slice(bytes), verify);
+        if (verify) {
+            verified[index] = true;
+        }
+        if (!timed) {
+            return block;
+        }
+        long decodeNanos = System.nanoTime() - read;
+        if (perf != null) {
+            perf.blockDecodeNanos += decodeNanos;
+            perf.blockReadNanos += read - start;
+            perf.blocksLoaded += 1;
+            perf.blockBytesRead += length;
+        }
+        if (event != null) {
+            Tracer.current().endBlockLoad(event, path, offset, length, decodeNanos);
+        }
         return block;
     }
 
-    private byte[] readFully(long pos, int bytes) throws IOException {
+    /* read from the tablet file, reopening it if it has been closed in the meantime */
+    private byte[] read(long pos, int bytes) throws IOException {
+        while (true) {
+            ensureOpen();
+            lock.readLock().lock();
+            try {
+                if (in != null) {
+                    return readFully(in, pos, bytes);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    private static byte[] readFully(DatastoreChannel channel, long pos, int bytes) throws IOException {
         byte[] ret = new byte[bytes];
         try {
             int n, ofs = 0;
             while(ofs < bytes) {
-                n = in.read(ByteBuffer.wrap(ret, ofs, bytes - ofs), pos);
+                n = channel.read(ByteBuffer.wrap(ret, ofs, bytes - ofs), pos + ofs);
                 if(n < 0){
-                    throw new IOException("failed to read all bytes from tablet file"); 
+                    throw new IOException("failed to read all bytes from tablet file");
                 }
                 ofs += n;
             }
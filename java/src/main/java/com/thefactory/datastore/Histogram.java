@@ -0,0 +1,140 @@
+package com.thefactory.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Counts of non-negative values, e.g. latencies in nanoseconds, in log-linear buckets:
+   values below 16 have a bucket each, and every power of two above is split into 16
+   buckets, so percentiles are within about 6% of the recorded values. Safe to record
+   from many threads at once. */
+public class Histogram {
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(-1);
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /* the smallest value counted in bucket i */
+    private static long lowerBound(int i) {
+        if (i < SUB_BUCKETS) {
+            return i;
+        }
+        int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {
+        }
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    /* add the values recorded in that */
+    public void merge(Histogram that) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = that.buckets.get(i);
+            if (n != 0) {
+                buckets.addAndGet(i, n);
+            }
+        }
+        count.addAndGet(that.count.get());
+        sum.addAndGet(that.sum.get());
+
+        long m, value = that.min.get();
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {
+        }
+        value = that.max.get();
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(-1);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sum() {
+        return sum.get();
+    }
+
+    public double mean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /* 0 when nothing has been recorded */
+    public long min() {
+        long ret = min.get();
+        return ret == Long.MAX_VALUE ? 0 : ret;
+    }
+
+    public long max() {
+        return Math.max(0, max.get());
+    }
+
+    /* the value below which p percent of the recorded values fall, interpolated
+       within its bucket; 0 when nothing has been recorded */
+    public double percentile(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0.0;
+        }
+        double threshold = n * (p / 100.0);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long inBucket = buckets.get(i);
+            if (inBucket == 0) {
+                continue;
+            }
+            if (cumulative + inBucket >= threshold) {
+                double lower = lowerBound(i);
+                double upper = i + 1 < BUCKETS ? lowerBound(i + 1) : Long.MAX_VALUE;
+                double ret = lower + (upper - lower) * (threshold - cumulative) / inBucket;
+                return Math.max(min(), Math.min(max(), ret));
+            }
+            cumulative += inBucket;
+        }
+        return max();
+    }
+
+    public double median() {
+        return percentile(50.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count %d mean %.2f min %d p50 %.2f p99 %.2f p99.9 %.2f max %d",
+                             count(), mean(), min(), percentile(50.0), percentile(99.0), percentile(99.9), max());
+    }
+}
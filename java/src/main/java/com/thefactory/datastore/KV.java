@@ -6,6 +6,9 @@ public class KV {
     private Slice key;
     private Slice value;
     private boolean isDeleted;
+    private boolean isValuePointer;
+    private boolean isRangeTombstone;
+    private boolean isMergeOperand;
     private final Slice emptySlice = new Slice(new byte[]{});
 
     public KV(){
@@ -26,6 +29,27 @@ public class KV {
         return this; 
     }
 
+    /* a value stored in a value log: value is the pointer to it (see ValueLog) */
+    public KV valuePointer(final Slice key, final Slice pointer){
+        reset(key, pointer, false);
+        isValuePointer = true;
+        return this;
+    }
+
+    /* an operand to combine with key's value, see MergeOperator */
+    public KV mergeOperand(final Slice key, final Slice operand){
+        reset(key, operand, false);
+        isMergeOperand = true;
+        return this;
+    }
+
+    /* a batch's deletion of the keys in [start, end) */
+    public KV rangeTombstone(final Slice start, final Slice end){
+        reset(start, end, true);
+        isRangeTombstone = true;
+        return this;
+    }
+
     public KV reset(final Slice key, final Slice value){
         reset(key, value, false);
         return this;        
@@ -41,6 +65,9 @@ public class KV {
         this.key = key;
         this.value = value;
         this.isDeleted = isDeleted;
+        this.isValuePointer = false;
+        this.isRangeTombstone = false;
+        this.isMergeOperand = false;
     }
 
     public Slice getKey() {
@@ -63,9 +90,25 @@ public class KV {
         return isDeleted;
     }
 
+    public boolean isMergeOperand() {
+        return isMergeOperand;
+    }
+
+    public boolean isRangeTombstone() {
+        return isRangeTombstone;
+    }
+
+    public boolean isValuePointer() {
+        return isValuePointer;
+    }
+
     public KV detach() {
         if(isDeleted) {
-            return tombstone(key.detach());
+            return new KV().tombstone(key.detach());
+        } else if(isValuePointer) {
+            return new KV().valuePointer(key.detach(), value.detach());
+        } else if(isMergeOperand) {
+            return new KV().mergeOperand(key.detach(), value.detach());
         } else {
             return new KV(key.detach(), value.detach());
         }
@@ -0,0 +1,14 @@
+package com.thefactory.datastore;
+
+import java.util.Comparator;
+
+/* The order of keys in tablets and databases (see Database.Options.comparator). Tablets
+   record the name of the comparator they were written with, and reading one with a
+   comparator of another name fails rather than returning keys out of order. */
+public interface KeyComparator extends Comparator<Slice> {
+    // unsigned lexicographic byte order, the default
+    KeyComparator LEXICOGRAPHIC = new LexicographicComparator();
+
+    /* identifies the order; comparators that order keys differently need different names */
+    String name();
+}
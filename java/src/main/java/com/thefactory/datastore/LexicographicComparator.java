@@ -0,0 +1,24 @@
+package com.thefactory.datastore;
+
+import java.util.Arrays;
+
+/* Unsigned lexicographic byte order. Arrays.mismatch checks the bounds once and finds the
+   first differing byte with vectorized word compares, without allocating. */
+public class LexicographicComparator implements KeyComparator {
+    public String name() {
+        return "lexicographic";
+    }
+
+    public int compare(Slice x, Slice y) {
+        return compare(x.array, x.getOffset(), x.getLength(), y.array, y.getOffset(), y.getLength());
+    }
+
+    public static int compare(byte[] x, int xOffset, int xLength, byte[] y, int yOffset, int yLength) {
+        int i = Arrays.mismatch(x, xOffset, xOffset + xLength, y, yOffset, yOffset + yLength);
+        if (i < 0 || i == xLength || i == yLength) {
+            // equal, or one is a prefix of the other
+            return xLength - yLength;
+        }
+        return (x[xOffset + i] & 0xff) - (y[yOffset + i] & 0xff);
+    }
+}
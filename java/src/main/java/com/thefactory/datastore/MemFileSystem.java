@@ -51,6 +51,7 @@ public class MemFileSystem implements FileSystem {
     @Override
     public void remove(String name) {
         buffers.remove(name);
+        lists.remove(name);
     }
 
     @Override
@@ -62,6 +63,15 @@ public class MemFileSystem implements FileSystem {
         buffers.put(newName, buffer);
     }
 
+    @Override
+    public void link(String existingName, String newName) {
+        ChannelBuffer buffer = buffers.get(existingName);
+        if(buffer == null) {
+            throw new IllegalArgumentException("Not found: " + existingName);
+        }
+        buffers.put(newName, buffer);
+    }
+
     @Override
     public void mkdirs(String path) {
     }
@@ -143,6 +153,21 @@ public class MemFileSystem implements FileSystem {
             return src.capacity();
         }
 
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long ret = 0;
+            for (int i = offset; i < offset + length; i++) {
+                ret += srcs[i].remaining();
+                buffer.writeBytes(srcs[i]);
+            }
+            return ret;
+        }
+
         @Override
         public void close() throws IOException {
         }
@@ -1,25 +1,40 @@
 package com.thefactory.datastore;
 
-import java.util.Comparator;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
 public class MemoryTablet {    
     private final ConcurrentSkipListMap<Slice, Slice> backing;
+    private final MergeOperator mergeOperator;
+    private final KeyComparator comparator;
     private long size = 0;
+    private final List<RangeTombstone> rangeTombstones = new CopyOnWriteArrayList<RangeTombstone>();
 
     public static Slice tombstone = new Slice(new byte[] {(byte)0x74, (byte)0x6f, (byte)0x6d, (byte)0x62});
 
+    // an operand whose value is in an older tablet
+    private static class Operand extends Slice {
+        public Operand(Slice operand) {
+            super(operand.array, operand.getOffset(), operand.getLength());
+        }
+    }
+
     public MemoryTablet() {
-        backing = new ConcurrentSkipListMap<Slice, Slice>(
-            new Comparator<Slice>() {
-                public int compare(Slice x, Slice y) {
-                    return Slice.compare(x, y);
-                }
-            }
-        );        
+        this(null);
+    }
+
+    public MemoryTablet(MergeOperator mergeOperator) {
+        this(mergeOperator, KeyComparator.LEXICOGRAPHIC);
+    }
+
+    public MemoryTablet(MergeOperator mergeOperator, KeyComparator comparator) {
+        this.mergeOperator = mergeOperator;
+        this.comparator = comparator;
+        backing = new ConcurrentSkipListMap<Slice, Slice>(comparator);
     }
 
     public void set(Slice key, Slice value) {
@@ -33,6 +48,61 @@ public class MemoryTablet {
         set(key, tombstone);
     }
 
+    /* Combine operand with key's value if this tablet has it, otherwise keep the
+       operand (combined with earlier ones) to apply to the value in older tablets. */
+    public void merge(Slice key, Slice operand) {
+        if (mergeOperator == null) {
+            throw new IllegalStateException("merge requires a merge operator");
+        }
+
+        Slice existing = backing.get(key);
+        if (existing == null && !deletedByRange(key)) {
+            set(key, new Operand(operand));
+        } else if (existing instanceof Operand) {
+            set(key, new Operand(mergeOperator.merge(key, existing, operand)));
+        } else if (existing == null || existing == tombstone) {
+            set(key, mergeOperator.merge(key, null, operand));
+        } else {
+            set(key, mergeOperator.merge(key, existing, operand));
+        }
+    }
+
+    private boolean deletedByRange(Slice key) {
+        for (RangeTombstone range : rangeTombstones) {
+            if (range.covers(key, comparator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* whether the tablet holds or deletes any key in [first, last] */
+    public boolean overlaps(Slice first, Slice last) {
+        if (!backing.subMap(first, true, last, true).isEmpty()) {
+            return true;
+        }
+        for (RangeTombstone range : rangeTombstones) {
+            if (comparator.compare(range.start, last) <= 0 && comparator.compare(first, range.end) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Delete the keys in [start, end): the ones in this tablet are removed, and the
+       range is kept to delete them from older tablets. */
+    public void deleteRange(Slice start, Slice end) {
+        backing.subMap(start, true, end, false).clear();
+        rangeTombstones.add(new RangeTombstone(start, end));
+        synchronized(this) {
+            size += start.getLength() + end.getLength();
+        }
+    }
+
+    public List<RangeTombstone> rangeTombstones() {
+        return rangeTombstones;
+    }
+
     public void close() {
         backing.clear();
     }
@@ -62,6 +132,8 @@ public class MemoryTablet {
                 KV ret = new KV();
                 if(item.getValue() == tombstone){
                     ret.tombstone(item.getKey());
+                } else if(item.getValue() instanceof Operand) {
+                    ret.mergeOperand(item.getKey(), item.getValue());
                 } else {
                     ret.reset(item.getKey(), item.getValue());
                 }
@@ -82,7 +154,11 @@ public class MemoryTablet {
         Iterator<KV> kvs = batch.pairs();
         while(kvs.hasNext()) {
             KV kv = kvs.next();
-            if(kv.isDeleted()) {
+            if(kv.isRangeTombstone()) {
+                deleteRange(kv.getKey().detach(), kv.getValue().detach());
+            } else if(kv.isMergeOperand()) {
+                merge(kv.getKey().detach(), kv.getValue().detach());
+            } else if(kv.isDeleted()) {
                 delete(kv.getKey().detach());
             } else {
                 set(kv.getKey().detach(), kv.getValue().detach());
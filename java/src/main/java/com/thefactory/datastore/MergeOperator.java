@@ -0,0 +1,10 @@
+package com.thefactory.datastore;
+
+/* Combines merge operands (see Database.merge) with the value they apply to. */
+public interface MergeOperator {
+    /* Combine existing, a key's value or an earlier operand (null if the key has no
+       value), with operand. Operands are combined with each other before the value
+       they apply to is known, so this must be associative:
+       merge(k, merge(k, a, b), c) equals merge(k, a, merge(k, b, c)). */
+    Slice merge(Slice key, Slice existing, Slice operand);
+}
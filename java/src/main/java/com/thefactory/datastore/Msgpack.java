@@ -2,6 +2,7 @@ package com.thefactory.datastore;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Msgpack {
     public static final int NIL_VALUE = 0xc0;
@@ -42,6 +43,29 @@ public class Msgpack {
         }
     }
 
+    public static int writeUint(ByteBuffer out, long n) {
+        if (n <= 0x7fL) {
+            out.put((byte) n);
+            return 1;
+        } else if (n <= 0xffL) {
+            out.put((byte) MSG_UINT_8);
+            out.put((byte) n);
+            return 2;
+        } else if (n <= 0xffffL) {
+            out.put((byte) MSG_UINT_16);
+            out.putShort((short) n);
+            return 3;
+        } else if (n <= 0xffffffffL) {
+            out.put((byte) MSG_UINT_32);
+            out.putInt((int) n);
+            return 5;
+        } else {
+            out.put((byte) MSG_UINT_64);
+            out.putLong(n);
+            return 9;
+        }
+    }
+
 
     public static long readUint(Slice in) throws IOException {
         int t = in.readByte();
@@ -0,0 +1,36 @@
+package com.thefactory.datastore;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/* A ByteArrayOutputStream whose contents can be used without copying them. */
+public class OutputBuffer extends ByteArrayOutputStream {
+
+    public OutputBuffer() {
+        super();
+    }
+
+    public OutputBuffer(int size) {
+        super(size);
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public Slice asSlice() {
+        return new Slice(buf, 0, count);
+    }
+
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /* Replace the backing array with spare (emptying the buffer) and return the old one. */
+    public byte[] swap(byte[] spare) {
+        byte[] ret = buf;
+        buf = spare;
+        count = 0;
+        return ret;
+    }
+}
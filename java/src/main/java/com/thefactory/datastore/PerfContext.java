@@ -0,0 +1,74 @@
+package com.thefactory.datastore;
+
+/* Where the time of the reads on one thread went, for slow query logs: enable a
+   context, run a get or a scan and print it. Counted while enabled by the tablets,
+   blocks and merge iterators the thread creates and reads:
+
+       PerfContext perf = PerfContext.enable();
+       Slice value = db.get(key);
+       if (perf.totalNanos() > threshold) {
+           log.info(String.format("slow get: %s", perf));
+       }
+       PerfContext.disable();
+
+   Contexts are not thread safe, so an iterator should be read on the thread that
+   created it while its context is enabled. */
+public class PerfContext {
+    private static final ThreadLocal<PerfContext> current = new ThreadLocal<PerfContext>();
+
+    public long tabletsProbed;            // file and memory tablets searched by a merge iterator
+    public long blocksLoaded;             // data blocks read from file tablets
+    public long blockBytesRead;           // their bytes as stored, i.e. compressed
+    public long keysCompared;             // by block and index searches and merge iterators
+    public long tombstonesSkipped;        // deleted keys read past, by tombstone or range
+    public long shadowedSkipped;          // older versions of keys read past
+
+    public long seekNanos;                // creating merge iterators, including their first key
+    public long nextNanos;                // advancing them
+    public long blockReadNanos;           // reading blocks from tablet files
+    public long blockDecodeNanos;         // decompressing them and checking their checksums
+
+    /* this thread's context, or null if it is not enabled */
+    public static PerfContext current() {
+        return current.get();
+    }
+
+    /* start counting the reads of this thread in a new context */
+    public static PerfContext enable() {
+        PerfContext ret = new PerfContext();
+        current.set(ret);
+        return ret;
+    }
+
+    public static void disable() {
+        current.remove();
+    }
+
+    public void reset() {
+        tabletsProbed = 0;
+        blocksLoaded = 0;
+        blockBytesRead = 0;
+        keysCompared = 0;
+        tombstonesSkipped = 0;
+        shadowedSkipped = 0;
+        seekNanos = 0;
+        nextNanos = 0;
+        blockReadNanos = 0;
+        blockDecodeNanos = 0;
+    }
+
+    /* the time spent in merge iterators, which includes loading their blocks */
+    public long totalNanos() {
+        return seekNanos + nextNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("tablets_probed=%d blocks_loaded=%d block_bytes_read=%d keys_compared=%d "
+                             + "tombstones_skipped=%d shadowed_skipped=%d seek_nanos=%d next_nanos=%d "
+                             + "block_read_nanos=%d block_decode_nanos=%d",
+                             tabletsProbed, blocksLoaded, blockBytesRead, keysCompared,
+                             tombstonesSkipped, shadowedSkipped, seekNanos, nextNanos,
+                             blockReadNanos, blockDecodeNanos);
+    }
+}
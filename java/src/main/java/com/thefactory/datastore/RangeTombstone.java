@@ -0,0 +1,61 @@
+package com.thefactory.datastore;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Deletes the keys in [start, end) written before it. In a tablet, that means the
+   keys of all older tablets; the tablet's own keys were written after it. */
+public class RangeTombstone {
+    public final Slice start;
+    public final Slice end;
+
+    public RangeTombstone(Slice start, Slice end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public boolean covers(Slice key) {
+        return covers(key, KeyComparator.LEXICOGRAPHIC);
+    }
+
+    public boolean covers(Slice key, KeyComparator comparator) {
+        return comparator.compare(start, key) <= 0 && comparator.compare(key, end) < 0;
+    }
+
+    /* the contents of a tablet's range tombstone meta block: start and end of each range as msgpack raws */
+    public static byte[] encode(List<RangeTombstone> ranges) throws IOException {
+        OutputBuffer buf = new OutputBuffer();
+        DataOutputStream dos = new DataOutputStream(buf);
+        for (RangeTombstone range : ranges) {
+            Msgpack.writeRawLength(dos, range.start.getLength());
+            dos.write(range.start.array, range.start.getOffset(), range.start.getLength());
+            Msgpack.writeRawLength(dos, range.end.getLength());
+            dos.write(range.end.array, range.end.getOffset(), range.end.getLength());
+        }
+        return buf.toByteArray();
+    }
+
+    public static List<RangeTombstone> decode(Slice in) throws IOException {
+        List<RangeTombstone> ret = new ArrayList<RangeTombstone>();
+        Slice data = new Slice(in.array, in.getOffset(), in.getLength());
+        while (data.getLength() > 0) {
+            Slice start = readRaw(data);
+            ret.add(new RangeTombstone(start, readRaw(data)));
+        }
+        return ret;
+    }
+
+    private static Slice readRaw(Slice in) throws IOException {
+        int length = (int) Msgpack.readRawLength(in);
+        Slice ret = in.subslice(0, length);
+        in.forward(length);
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s, %s)", start.toUTF8String(), end.toUTF8String());
+    }
+}
@@ -0,0 +1,160 @@
+package com.thefactory.datastore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Recently read values by key, bounded by the bytes of keys and values and split into
+   segments by key hash, each evicting its least recently used entries.
+
+   A reader takes version(key) before reading a value from the tablets and passes it to
+   put(); if the key was invalidated by a write in the meantime the value is dropped,
+   since it may have been read before that write. */
+public class RowCache {
+    // per-entry overhead counted against the capacity
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RowCache(long capacity, int segmentCount) {
+        segments = new Segment[Math.max(1, segmentCount)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(capacity / segments.length);
+        }
+    }
+
+    private static class Segment {
+        private final long capacity;
+        private final LinkedHashMap<Slice, Slice> entries = new LinkedHashMap<Slice, Slice>(16, 0.75f, true);
+        private long size = 0;
+        // bumped by every invalidation, see put()
+        private long version = 0;
+
+        public Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        public synchronized Slice get(Slice key) {
+            return entries.get(key);
+        }
+
+        public synchronized long version() {
+            return version;
+        }
+
+        public synchronized void put(Slice key, Slice value, long version) {
+            long bytes = bytes(key, value);
+            if (version != this.version || bytes > capacity) {
+                return;
+            }
+            Slice old = entries.put(key, value);
+            if (old != null) {
+                size -= bytes(key, old);
+            }
+            size += bytes;
+
+            Iterator<Map.Entry<Slice, Slice>> it = entries.entrySet().iterator();
+            while (size > capacity && it.hasNext()) {
+                Map.Entry<Slice, Slice> eldest = it.next();
+                size -= bytes(eldest.getKey(), eldest.getValue());
+                it.remove();
+            }
+        }
+
+        public synchronized void invalidate(Slice key) {
+            version++;
+            Slice old = entries.remove(key);
+            if (old != null) {
+                size -= bytes(key, old);
+            }
+        }
+
+        public synchronized void invalidate(RangeTombstone range, KeyComparator comparator) {
+            version++;
+            Iterator<Map.Entry<Slice, Slice>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Slice, Slice> entry = it.next();
+                if (range.covers(entry.getKey(), comparator)) {
+                    size -= bytes(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        public synchronized void clear() {
+            version++;
+            entries.clear();
+            size = 0;
+        }
+
+        public synchronized long size() {
+            return size;
+        }
+
+        private static long bytes(Slice key, Slice value) {
+            return key.getLength() + value.getLength() + ENTRY_OVERHEAD;
+        }
+    }
+
+    private Segment segment(Slice key) {
+        long h = key.hash64();
+        return segments[(int) ((h >>> 1) % segments.length)];
+    }
+
+    /* the cached value of key, or null */
+    public Slice get(Slice key) {
+        Slice ret = segment(key).get(key);
+        if (ret == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return ret;
+    }
+
+    /* to be taken before reading key's value for put() */
+    public long version(Slice key) {
+        return segment(key).version();
+    }
+
+    /* cache a value read after taking version; the key and value must not change */
+    public void put(Slice key, Slice value, long version) {
+        segment(key).put(key, value, version);
+    }
+
+    public void invalidate(Slice key) {
+        segment(key).invalidate(key);
+    }
+
+    public void invalidate(RangeTombstone range, KeyComparator comparator) {
+        for (Segment segment : segments) {
+            segment.invalidate(range, comparator);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /* the bytes of the cached keys and values, including overhead */
+    public long size() {
+        long ret = 0;
+        for (Segment segment : segments) {
+            ret += segment.size();
+        }
+        return ret;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+}
@@ -169,11 +169,85 @@ public class Slice implements Comparable<Slice> {
 
     @Override
     public int hashCode() {
-        int result = this.length;
-        result = 31 * result + offset;
-        return 31 * result + (array != null ? array.hashCode() : 0);
+        long h = hash64();
+        return (int) (h ^ (h >>> 32));
     }    
 
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    /* XXH64 of the contents, with seed 0 */
+    public long hash64() {
+        int pos = offset;
+        int end = offset + length;
+        long h;
+
+        if (length >= 32) {
+            long v1 = PRIME64_1 + PRIME64_2;
+            long v2 = PRIME64_2;
+            long v3 = 0;
+            long v4 = -PRIME64_1;
+            for (; pos + 32 <= end; pos += 32) {
+                v1 = round(v1, readLongLE(pos));
+                v2 = round(v2, readLongLE(pos + 8));
+                v3 = round(v3, readLongLE(pos + 16));
+                v4 = round(v4, readLongLE(pos + 24));
+            }
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = PRIME64_5;
+        }
+
+        h += length;
+        for (; pos + 8 <= end; pos += 8) {
+            h ^= round(0, readLongLE(pos));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (pos + 4 <= end) {
+            h ^= (readIntLE(pos) & 0xffffffffL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            pos += 4;
+        }
+        for (; pos < end; pos++) {
+            h ^= (array[pos] & 0xff) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private long readLongLE(int pos) {
+        return (readIntLE(pos) & 0xffffffffL) | ((long) readIntLE(pos + 4) << 32);
+    }
+
+    private int readIntLE(int pos) {
+        return (array[pos] & 0xff) | ((array[pos + 1] & 0xff) << 8)
+            | ((array[pos + 2] & 0xff) << 16) | ((array[pos + 3] & 0xff) << 24);
+    }
+
     @Override
     public String toString() {
         StringWriter w = new StringWriter();
@@ -210,17 +284,7 @@ public class Slice implements Comparable<Slice> {
             return 1;
         }
 
-        int length = java.lang.Math.min(x.length, y.length);
-
-        for (int xi = x.offset, yi = y.offset; xi < x.offset + length; xi++, yi++) {
-            if (x.array[xi] != y.array[yi]) {
-                // Java bytes are signed, cast to int before substracting to ensure
-                // correct results for all values with bit 7 set ...
-                return ((int)x.array[xi] & 0xff) - ((int)y.array[yi] & 0xff);
-            }
-        }
-
-        return x.length - y.length;
+        return LexicographicComparator.compare(x.array, x.offset, x.length, y.array, y.offset, y.length);
     }
 
     public Slice detach() {
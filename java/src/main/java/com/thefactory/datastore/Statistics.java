@@ -0,0 +1,149 @@
+package com.thefactory.datastore;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Counters and latency histograms of a database, kept for its lifetime. Updated by
+   the database and its tablet readers from any thread; see Database.getStats() for a
+   snapshot including the current sizes of the tablets. */
+public class Statistics {
+    public enum Counter {
+        WRITES,               // batches applied: puts, deletes, merges and range deletes
+        WAL_BYTES,            // bytes of the batches written to the transaction log
+        WAL_WRITE_NANOS,      // time spent writing them
+        GETS,
+        GETS_FOUND,
+        BYTES_READ,           // bytes of the values returned by get
+        SEEKS,                // iterators created by find and friends
+        BLOCKS_READ,          // data blocks read from tablets
+        BLOCK_BYTES_READ,     // their bytes as stored, i.e. compressed
+        BLOCKS_DECOMPRESSED,
+        BLOCKS_VERIFIED,      // blocks whose checksum was checked
+        CHECKSUM_FAILURES,
+        FLUSHES,
+        FLUSH_BYTES,          // bytes of the tablets written by flushes
+        STALL_NANOS           // time writes waited for a flush to finish
+    }
+
+    public enum Timer {
+        GET,                  // get and getOrElse, including the row cache
+        WRITE,                // applying a batch, including waiting for other writers
+        SEEK,                 // creating an iterator, i.e. finding its first key
+        SCAN,                 // an iterator from its creation until it ran out of keys, including
+                              // the caller's time between them; iterators dropped early aren't timed
+        FLUSH                 // writing an immutable tablet and pushing it on the stack
+    }
+
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final Histogram[] timers = new Histogram[Timer.values().length];
+
+    public Statistics() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Histogram();
+        }
+    }
+
+    public void add(Counter counter, long n) {
+        counters.addAndGet(counter.ordinal(), n);
+    }
+
+    public long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /* record a latency in nanoseconds */
+    public void record(Timer timer, long nanos) {
+        timers[timer.ordinal()].record(nanos);
+    }
+
+    public Histogram histogram(Timer timer) {
+        return timers[timer.ordinal()];
+    }
+
+    /* A histogram's count and distribution, in microseconds. */
+    public static class Latency {
+        public final long count;
+        public final double mean;
+        public final double p50;
+        public final double p95;
+        public final double p99;
+        public final double p999;
+        public final double max;
+
+        public Latency(Histogram h) {
+            this.count = h.count();
+            this.mean = h.mean() / 1e3;
+            this.p50 = h.percentile(50.0) / 1e3;
+            this.p95 = h.percentile(95.0) / 1e3;
+            this.p99 = h.percentile(99.0) / 1e3;
+            this.p999 = h.percentile(99.9) / 1e3;
+            this.max = h.max() / 1e3;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d mean %.1f p50 %.1f p95 %.1f p99 %.1f p99.9 %.1f max %.1f us",
+                                 count, mean, p50, p95, p99, p999, max);
+        }
+    }
+
+    /* The statistics at one point in time, with the database's current sizes. */
+    public static class Snapshot {
+        public final Map<Counter, Long> counters;
+        public final Map<Timer, Latency> latencies;
+        public final long mutableTabletBytes;
+        public final long immutableTabletBytes;    // 0 unless a flush is in progress
+        public final int fileTablets;
+        public final int openFileTablets;
+        public final long rowCacheBytes;
+        public final long rowCacheHits;
+        public final long rowCacheMisses;
+
+        public Snapshot(Statistics stats, long mutableTabletBytes, long immutableTabletBytes, int fileTablets,
+                        int openFileTablets, RowCache rowCache) {
+            EnumMap<Counter, Long> counters = new EnumMap<Counter, Long>(Counter.class);
+            for (Counter counter : Counter.values()) {
+                counters.put(counter, stats.get(counter));
+            }
+            EnumMap<Timer, Latency> latencies = new EnumMap<Timer, Latency>(Timer.class);
+            for (Timer timer : Timer.values()) {
+                latencies.put(timer, new Latency(stats.histogram(timer)));
+            }
+            this.counters = Collections.unmodifiableMap(counters);
+            this.latencies = Collections.unmodifiableMap(latencies);
+            this.mutableTabletBytes = mutableTabletBytes;
+            this.immutableTabletBytes = immutableTabletBytes;
+            this.fileTablets = fileTablets;
+            this.openFileTablets = openFileTablets;
+            this.rowCacheBytes = rowCache == null ? 0 : rowCache.size();
+            this.rowCacheHits = rowCache == null ? 0 : rowCache.hits();
+            this.rowCacheMisses = rowCache == null ? 0 : rowCache.misses();
+        }
+
+        public long get(Counter counter) {
+            return counters.get(counter);
+        }
+
+        public Latency get(Timer timer) {
+            return latencies.get(timer);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder ret = new StringBuilder();
+            for (Map.Entry<Counter, Long> e : counters.entrySet()) {
+                ret.append(String.format("%s: %d%n", e.getKey(), e.getValue()));
+            }
+            for (Map.Entry<Timer, Latency> e : latencies.entrySet()) {
+                ret.append(String.format("%s: %s%n", e.getKey(), e.getValue()));
+            }
+            ret.append(String.format("MUTABLE_TABLET_BYTES: %d%n", mutableTabletBytes));
+            ret.append(String.format("IMMUTABLE_TABLET_BYTES: %d%n", immutableTabletBytes));
+            ret.append(String.format("FILE_TABLETS: %d (%d open)%n", fileTablets, openFileTablets));
+            ret.append(String.format("ROW_CACHE: %d bytes, %d hits, %d misses%n", rowCacheBytes, rowCacheHits, rowCacheMisses));
+            return ret.toString();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.thefactory.datastore;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/* A database's statistics as read-only JMX attributes, see Database.Options.mbeanName:
+   the counters (e.g. WalBytes), each timer's count and latencies in microseconds (e.g.
+   GetP99Micros) and the sizes of the tablets (e.g. FileTablets). Every read takes a new
+   Database.getStats() snapshot. */
+public class StatisticsMBean implements DynamicMBean {
+    private final Database db;
+    private final MBeanInfo info;
+
+    public StatisticsMBean(Database db) {
+        this.db = db;
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> e : attributes(db.getStats()).entrySet()) {
+            String type = e.getValue() instanceof Double ? "double" : "long";
+            attributes.add(new MBeanAttributeInfo(e.getKey(), type, e.getKey(), true, false, false));
+        }
+        this.info = new MBeanInfo(getClass().getName(), "Datastore database statistics",
+                                  attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                                  null, new MBeanOperationInfo[0], null);
+    }
+
+    private static Map<String, Number> attributes(Statistics.Snapshot stats) {
+        Map<String, Number> ret = new LinkedHashMap<String, Number>();
+        for (Map.Entry<Statistics.Counter, Long> e : stats.counters.entrySet()) {
+            ret.put(camelCase(e.getKey().name()), e.getValue());
+        }
+        for (Map.Entry<Statistics.Timer, Statistics.Latency> e : stats.latencies.entrySet()) {
+            String name = camelCase(e.getKey().name());
+            Statistics.Latency latency = e.getValue();
+            ret.put(name + "Count", latency.count);
+            ret.put(name + "MeanMicros", latency.mean);
+            ret.put(name + "P50Micros", latency.p50);
+            ret.put(name + "P95Micros", latency.p95);
+            ret.put(name + "P99Micros", latency.p99);
+            ret.put(name + "P999Micros", latency.p999);
+            ret.put(name + "MaxMicros", latency.max);
+        }
+        ret.put("MutableTabletBytes", stats.mutableTabletBytes);
+        ret.put("ImmutableTabletBytes", stats.immutableTabletBytes);
+        ret.put("FileTablets", (long) stats.fileTablets);
+        ret.put("OpenFileTablets", (long) stats.openFileTablets);
+        ret.put("RowCacheBytes", stats.rowCacheBytes);
+        ret.put("RowCacheHits", stats.rowCacheHits);
+        ret.put("RowCacheMisses", stats.rowCacheMisses);
+        return ret;
+    }
+
+    /* BLOCK_BYTES_READ -> BlockBytesRead */
+    private static String camelCase(String name) {
+        StringBuilder ret = new StringBuilder();
+        for (String word : name.split("_")) {
+            ret.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+        }
+        return ret.toString();
+    }
+
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Number ret = attributes(db.getStats()).get(name);
+        if (ret == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return ret;
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Number> attributes = attributes(db.getStats());
+        AttributeList ret = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                ret.add(new Attribute(name, attributes.get(name)));
+            }
+        }
+        return ret;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
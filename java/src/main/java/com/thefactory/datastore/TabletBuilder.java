@@ -0,0 +1,371 @@
+package com.thefactory.datastore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/* Builds tablets from keys added in any order, e.g. for Database.ingestTablets.
+
+   Added keys are buffered until the buffer reaches its share of the memory budget,
+   then sorted and spilled to a run (a temporary tablet) on a pool of sort threads.
+   finish() merges the runs into tablets of at most maxTabletSize bytes of keys and
+   values. When a key is added more than once, the last write wins; deletes are kept
+   as tombstones so the tablets delete the keys from older ones. */
+public class TabletBuilder implements Closeable {
+    private final FileSystem fs;
+    private final String dir;
+    private final Options options;
+    private final ExecutorService sorters;
+    private final Semaphore sorting;
+    private final List<Future<String>> runs = new ArrayList<Future<String>>();
+    private List<KV> buffer = new ArrayList<KV>();
+    private long bufferSize = 0;
+    private int nextRun = 0;
+    private Log log = LogFactory.getLog(TabletBuilder.class);
+
+    public static class Options {
+        // memory for buffered keys, shared by the buffer being filled and the ones being sorted
+        public long memoryBudget;
+        public int sortThreads;
+        // the most runs merged at once; more are first merged into bigger runs
+        public int mergeWidth;
+        // output tablets are cut after this many bytes of keys and values
+        public long maxTabletSize;
+        public TabletWriterOptions writerOptions;
+
+        public Options() {
+            this.memoryBudget = 256L * 1024 * 1024;
+            this.sortThreads = Runtime.getRuntime().availableProcessors();
+            this.mergeWidth = 64;
+            this.maxTabletSize = 256L * 1024 * 1024;
+            this.writerOptions = new TabletWriterOptions();
+        }
+    }
+
+    // per-entry overhead counted against the memory budget
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Comparator<KV> keyOrder = new Comparator<KV>() {
+        public int compare(KV x, KV y) {
+            return comparator().compare(x.getKey(), y.getKey());
+        }
+    };
+
+    /* Runs and tablets are written to dir on fs; the tablets are named tablet-000000 and so on. */
+    public TabletBuilder(FileSystem fs, String dir, Options options) {
+        this.fs = fs;
+        this.dir = dir;
+        this.options = options;
+        int threads = Math.max(1, options.sortThreads);
+        this.sorters = Executors.newFixedThreadPool(threads);
+        this.sorting = new Semaphore(threads);
+        if (!fs.exists(dir)) {
+            fs.mkdirs(dir);
+        }
+    }
+
+    /* key and value are copied, so the caller can reuse their arrays */
+    public void put(Slice key, Slice value) throws IOException {
+        add(new KV(copy(key), copy(value)));
+    }
+
+    public void delete(Slice key) throws IOException {
+        add(new KV().tombstone(copy(key)));
+    }
+
+    private static Slice copy(Slice slice) {
+        byte[] ret = new byte[slice.getLength()];
+        System.arraycopy(slice.array, slice.getOffset(), ret, 0, ret.length);
+        return new Slice(ret);
+    }
+
+    private void add(KV kv) throws IOException {
+        buffer.add(kv);
+        bufferSize += kv.getKey().getLength() + (kv.isDeleted() ? 0 : kv.getValue().getLength()) + ENTRY_OVERHEAD;
+        if (bufferSize >= bufferLimit()) {
+            spill();
+        }
+    }
+
+    /* the buffer being filled and the ones being sorted split the budget */
+    private long bufferLimit() {
+        return options.memoryBudget / (Math.max(1, options.sortThreads) + 1);
+    }
+
+    /* sort the buffer and write it to a run in the background, waiting for a free sort thread */
+    private void spill() throws IOException {
+        final List<KV> kvs = buffer;
+        final String path = path(String.format("run-%06d", nextRun++));
+        buffer = new ArrayList<KV>();
+        bufferSize = 0;
+
+        try {
+            sorting.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for a sort thread");
+        }
+        runs.add(sorters.submit(new Callable<String>() {
+            public String call() throws IOException {
+                try {
+                    // the sort is stable, so the last of equal keys is the newest
+                    Collections.sort(kvs, keyOrder);
+                    write(path, newest(kvs.iterator(), comparator()), runWriterOptions());
+                    return path;
+                } finally {
+                    sorting.release();
+                }
+            }
+        }));
+    }
+
+    /* Write the tablets and return their paths, in key order. */
+    public List<String> finish() throws IOException {
+        List<String> ret = new ArrayList<String>();
+        List<String> paths = new ArrayList<String>();
+        try {
+            if (runs.isEmpty()) {
+                Collections.sort(buffer, keyOrder);
+                writeTablets(newest(buffer.iterator(), comparator()), ret);
+                buffer = new ArrayList<KV>();
+                return ret;
+            }
+
+            if (!buffer.isEmpty()) {
+                spill();
+            }
+            for (Future<String> run : runs) {
+                paths.add(Utils.await(run));
+            }
+            runs.clear();
+
+            // merge the oldest runs into one until few enough are left to merge at once
+            int width = Math.max(2, options.mergeWidth);
+            while (paths.size() > width) {
+                List<String> oldest = new ArrayList<String>(paths.subList(0, width));
+                String path = path(String.format("run-%06d", nextRun++));
+                merge(oldest, path, runWriterOptions());
+                paths.subList(0, width).clear();
+                paths.add(0, path);
+                log.debug(String.format("Merged %d runs into %s", width, path));
+            }
+
+            List<FileTablet> tablets = openRuns(paths);
+            try {
+                writeTablets(merge(tablets, comparator()), ret);
+            } finally {
+                closeRuns(tablets);
+            }
+            return ret;
+        } finally {
+            for (String path : paths) {
+                fs.remove(path);
+            }
+        }
+    }
+
+    private void writeTablets(Iterator<KV> kvs, List<String> paths) throws IOException {
+        while (kvs.hasNext()) {
+            String path = path(String.format("tablet-%06d", paths.size()));
+            write(path, limit(kvs, options.maxTabletSize), options.writerOptions);
+            paths.add(path);
+        }
+    }
+
+    private void merge(List<String> paths, String dest, TabletWriterOptions writerOptions) throws IOException {
+        List<FileTablet> tablets = openRuns(paths);
+        try {
+            write(dest, merge(tablets, comparator()), writerOptions);
+        } finally {
+            closeRuns(tablets);
+        }
+        for (String path : paths) {
+            fs.remove(path);
+        }
+    }
+
+    private void write(String path, Iterator<KV> kvs, TabletWriterOptions writerOptions) throws IOException {
+        DatastoreChannel out = fs.create(path);
+        try {
+            new TabletWriter(writerOptions).writeTablet(out, kvs);
+        } finally {
+            out.close();
+        }
+    }
+
+    /* runs are read back once, so favour speed over size */
+    private TabletWriterOptions runWriterOptions() {
+        TabletWriterOptions ret = new TabletWriterOptions();
+        ret.blockSize = 64 * 1024;
+        ret.codec = BlockCodec.LZ4;
+        ret.checkKeyOrder = false;
+        ret.comparator = comparator();
+        return ret;
+    }
+
+    /* the order of the tablets' keys, options.writerOptions.comparator */
+    private KeyComparator comparator() {
+        return options.writerOptions.comparator;
+    }
+
+    private List<FileTablet> openRuns(List<String> paths) throws IOException {
+        List<FileTablet> ret = new ArrayList<FileTablet>();
+        try {
+            for (String path : paths) {
+                ret.add(new FileTablet(fs.open(path), new TabletReaderOptions(false, comparator())));
+            }
+        } catch (IOException e) {
+            closeRuns(ret);
+            throw e;
+        }
+        return ret;
+    }
+
+    private static void closeRuns(List<FileTablet> tablets) throws IOException {
+        for (FileTablet tablet : tablets) {
+            tablet.close();
+        }
+    }
+
+    private String path(String name) {
+        return new File(dir, name).getPath();
+    }
+
+    /* of each run of equal keys in sorted kvs, only the last */
+    private static Iterator<KV> newest(final Iterator<KV> kvs, final KeyComparator comparator) {
+        return new Iterator<KV>() {
+            private KV next = kvs.hasNext() ? kvs.next() : null;
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public KV next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                KV ret = next;
+                next = kvs.hasNext() ? kvs.next() : null;
+                while (next != null && comparator.compare(ret.getKey(), next.getKey()) == 0) {
+                    ret = next;
+                    next = kvs.hasNext() ? kvs.next() : null;
+                }
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class Head {
+        public final Iterator<KV> kvs;
+        public final int age;
+        public KV kv;
+
+        public Head(Iterator<KV> kvs, int age) {
+            this.kvs = kvs;
+            this.age = age;
+        }
+    }
+
+    /* Merge sorted runs, ordered oldest first, keeping the newest version of each key. */
+    private static Iterator<KV> merge(List<FileTablet> runs, final KeyComparator comparator) throws IOException {
+        final PriorityQueue<Head> queue = new PriorityQueue<Head>(Math.max(1, runs.size()), new Comparator<Head>() {
+            public int compare(Head x, Head y) {
+                int ret = comparator.compare(x.kv.getKey(), y.kv.getKey());
+                if (ret != 0) {
+                    return ret;
+                }
+                return y.age - x.age;
+            }
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            Head head = new Head(runs.get(i).find(), i);
+            if (head.kvs.hasNext()) {
+                head.kv = head.kvs.next().detach();
+                queue.add(head);
+            }
+        }
+
+        return new Iterator<KV>() {
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            public KV next() {
+                if (queue.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                KV ret = advance(queue.poll());
+                while (!queue.isEmpty() && comparator.compare(queue.peek().kv.getKey(), ret.getKey()) == 0) {
+                    advance(queue.poll());
+                }
+                return ret;
+            }
+
+            /* move head to its next key, returning its current one */
+            private KV advance(Head head) {
+                KV ret = head.kv;
+                if (head.kvs.hasNext()) {
+                    head.kv = head.kvs.next().detach();
+                    queue.add(head);
+                }
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* kvs, ending once maxBytes of keys and values have been returned */
+    private static Iterator<KV> limit(final Iterator<KV> kvs, final long maxBytes) {
+        return new Iterator<KV>() {
+            private long bytes = 0;
+
+            public boolean hasNext() {
+                return bytes < maxBytes && kvs.hasNext();
+            }
+
+            public KV next() {
+                KV ret = kvs.next();
+                bytes += ret.getKey().getLength() + (ret.isDeleted() ? 0 : ret.getValue().getLength());
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* stop the sort threads and remove any runs left by a failed or unfinished build */
+    public void close() throws IOException {
+        sorters.shutdown();
+        for (Future<String> run : runs) {
+            try {
+                fs.remove(Utils.await(run));
+            } catch (IOException e) {
+                log.warn(String.format("Sorting a run failed with %s", e));
+            }
+        }
+        runs.clear();
+    }
+}
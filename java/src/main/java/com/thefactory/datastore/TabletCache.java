@@ -0,0 +1,125 @@
+package com.thefactory.datastore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/* Bounds the number of open file tablets. Tablets are opened on first access and the
+   least recently used ones are closed once more than maxOpenTablets are open. */
+public class TabletCache implements Closeable {
+    private final int maxOpenTablets;
+    private final LinkedHashMap<FileTablet, FileTablet> open = new LinkedHashMap<FileTablet, FileTablet>(16, 0.75f, true);
+    private Log log = LogFactory.getLog(TabletCache.class);
+
+    // maxOpenTablets <= 0 means no limit
+    public TabletCache(int maxOpenTablets) {
+        this.maxOpenTablets = maxOpenTablets;
+    }
+
+    public FileTablet open(FileTablet tablet) throws IOException {
+        synchronized(open) {
+            if(tablet.isOpen() && open.get(tablet) != null) {
+                return tablet;
+            }
+        }
+
+        tablet.open();
+
+        List<FileTablet> evicted = new ArrayList<FileTablet>();
+        synchronized(open) {
+            open.put(tablet, tablet);
+            Iterator<FileTablet> it = open.keySet().iterator();
+            while(maxOpenTablets > 0 && open.size() > maxOpenTablets && it.hasNext()) {
+                FileTablet eldest = it.next();
+                if(eldest == tablet) {
+                    continue;
+                }
+                it.remove();
+                evicted.add(eldest);
+            }
+        }
+
+        for(FileTablet eldest : evicted) {
+            try {
+                eldest.close();
+            } catch (IOException e) {
+                log.error(String.format("Closing evicted tablet %s failed with %s", eldest.getPath(), e));
+            }
+        }
+        return tablet;
+    }
+
+    /* record an access to an open tablet, so the least recently used one is evicted */
+    public void touch(FileTablet tablet) {
+        synchronized(open) {
+            open.get(tablet);
+        }
+    }
+
+    /* Open tablets using a pool of nThreads threads. If there are more tablets than the
+       cache can hold, only the last maxOpenTablets ones are opened. */
+    public void openAll(Collection<FileTablet> tablets, int nThreads) throws IOException {
+        List<FileTablet> toOpen = new ArrayList<FileTablet>(tablets);
+        if(maxOpenTablets > 0 && toOpen.size() > maxOpenTablets) {
+            toOpen = toOpen.subList(toOpen.size() - maxOpenTablets, toOpen.size());
+        }
+
+        if(nThreads <= 1 || toOpen.size() <= 1) {
+            for(FileTablet tablet : toOpen) {
+                open(tablet);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(nThreads, toOpen.size()));
+        try {
+            List<Future<FileTablet>> pending = new ArrayList<Future<FileTablet>>();
+            for(final FileTablet tablet : toOpen) {
+                pending.add(executor.submit(new Callable<FileTablet>() {
+                    public FileTablet call() throws IOException {
+                        return open(tablet);
+                    }
+                }));
+            }
+            for(Future<FileTablet> future : pending) {
+                Utils.await(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void evict(FileTablet tablet) throws IOException {
+        synchronized(open) {
+            open.remove(tablet);
+        }
+        tablet.close();
+    }
+
+    public int size() {
+        synchronized(open) {
+            return open.size();
+        }
+    }
+
+    public void close() throws IOException {
+        List<FileTablet> tablets;
+        synchronized(open) {
+            tablets = new ArrayList<FileTablet>(open.keySet());
+            open.clear();
+        }
+        for(FileTablet tablet : tablets) {
+            tablet.close();
+        }
+    }
+}
@@ -4,4 +4,17 @@ public class TabletConstants {
     public static long TABLET_MAGIC = 0x0b501e7eL;
     public static long META_INDEX_MAGIC = 0x0ea7da7aL;
     public static long DATA_INDEX_MAGIC = 0xda7aba5eL;
+
+    // a value stored as a pointer into a value log: a msgpack fixarray of 3 uints
+    public static int VALUE_POINTER = 0x93;
+
+    // a merge operand in place of a value: a msgpack fixarray marker followed by the operand raw
+    public static int MERGE_OPERAND = 0x91;
+
+    // meta block holding the Zstandard dictionary for blocks flagged with BlockCodec.DICTIONARY_FLAG
+    public static String ZSTD_DICTIONARY_BLOCK = "zstd.dictionary";
+    // meta block holding the tablet's range tombstones, see RangeTombstone
+    public static String RANGE_TOMBSTONES_BLOCK = "range.tombstones";
+    // meta block holding the tablet's properties, see TabletProperties
+    public static String PROPERTIES_BLOCK = "properties";
 }
@@ -0,0 +1,44 @@
+package com.thefactory.datastore;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* The contents of a tablet's properties meta block: names and values as msgpack raws. */
+public class TabletProperties {
+    // the name of the KeyComparator the tablet's keys are ordered by; lexicographic if missing
+    public static final String COMPARATOR = "comparator";
+
+    public static byte[] encode(Map<String, String> properties) throws IOException {
+        OutputBuffer buf = new OutputBuffer();
+        DataOutputStream dos = new DataOutputStream(buf);
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            writeRaw(dos, property.getKey().getBytes("UTF-8"));
+            writeRaw(dos, property.getValue().getBytes("UTF-8"));
+        }
+        return buf.toByteArray();
+    }
+
+    public static Map<String, String> decode(Slice in) throws IOException {
+        Map<String, String> ret = new TreeMap<String, String>();
+        Slice data = new Slice(in.array, in.getOffset(), in.getLength());
+        while (data.getLength() > 0) {
+            String name = readRaw(data).toUTF8String();
+            ret.put(name, readRaw(data).toUTF8String());
+        }
+        return ret;
+    }
+
+    private static void writeRaw(DataOutputStream dos, byte[] bytes) throws IOException {
+        Msgpack.writeRawLength(dos, bytes.length);
+        dos.write(bytes);
+    }
+
+    private static Slice readRaw(Slice in) throws IOException {
+        int length = (int) Msgpack.readRawLength(in);
+        Slice ret = in.subslice(0, length);
+        in.forward(length);
+        return ret;
+    }
+}
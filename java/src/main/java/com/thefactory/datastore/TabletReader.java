@@ -7,10 +7,33 @@ import java.io.IOException;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.nio.channels.ReadableByteChannel;
-import org.xerial.snappy.Snappy;
-import java.util.zip.CRC32;
+import com.github.luben.zstd.ZstdDictDecompress;
 
 public class TabletReader {
+    private ZstdDictDecompress dictionary;
+    private KeyComparator comparator = KeyComparator.LEXICOGRAPHIC;
+    private Statistics statistics;
+    private ChecksumType checksumType = ChecksumType.CRC32;
+
+    /* the Zstandard dictionary stored in the tablet, for blocks compressed with it */
+    public void setDictionary(byte[] dictionary) {
+        this.dictionary = dictionary == null ? null : new ZstdDictDecompress(dictionary);
+    }
+
+    /* the order of the tablet's keys, used to search its blocks */
+    public void setComparator(KeyComparator comparator) {
+        this.comparator = comparator;
+    }
+
+    /* the checksum of the tablet's blocks, see TabletHeader.checksumType() */
+    public void setChecksumType(ChecksumType checksumType) {
+        this.checksumType = checksumType;
+    }
+
+    /* counts the blocks read, if not null */
+    public void setStatistics(Statistics statistics) {
+        this.statistics = statistics;
+    }
 
     public TabletHeader readHeader(Slice in) throws IOException {
         return new TabletHeader(in);
@@ -37,14 +60,32 @@ public class TabletReader {
         return readBlock(in, false);
     }
 
+    /* the block in in, checking its checksum first if verifyChecksum is set */
     public BlockReader readBlock(Slice in, boolean verifyChecksum) throws IOException {
-        TabletBlockData blockData = new TabletBlockData(in);
+        int length = in.getLength();
+        TabletBlockInfo info = new TabletBlockInfo(in);
+        byte[] bytes = in.toArray();
+        if(statistics != null) {
+            statistics.add(Statistics.Counter.BLOCKS_READ, 1);
+            statistics.add(Statistics.Counter.BLOCK_BYTES_READ, length);
+        }
 
-        if(verifyChecksum && blockData.info.checksum != 0 && blockData.info.checksum != blockData.checksum) {
-            throw new IOException("bad block checksum");
+        if(verifyChecksum && info.checksum != 0) {
+            if(statistics != null) {
+                statistics.add(Statistics.Counter.BLOCKS_VERIFIED, 1);
+            }
+            if(checksumType.checksum(bytes, 0, bytes.length) != info.checksum) {
+                if(statistics != null) {
+                    statistics.add(Statistics.Counter.CHECKSUM_FAILURES, 1);
+                }
+                throw new IOException("bad block checksum");
+            }
         }
 
-        return new BlockReader(new Slice(blockData.data));
+        if(statistics != null && info.isCompressed) {
+            statistics.add(Statistics.Counter.BLOCKS_DECOMPRESSED, 1);
+        }
+        return new BlockReader(new Slice(TabletBlockData.uncompress(info, bytes, dictionary)), comparator);
     }    
 
     public TabletFooter readFooter(Slice in) throws IOException {
@@ -84,6 +125,10 @@ public class TabletReader {
                 throw new IOException(String.format("bad version"));                
             }
         }
+
+        public ChecksumType checksumType() throws IOException {
+            return ChecksumType.fromVersion(version);
+        }
     }
 
     public static class TabletFooter {
@@ -112,39 +157,57 @@ public class TabletReader {
         public final long checksum;
         public final int length;
         public final boolean isCompressed;
+        public final BlockCodec codec;
+        public final boolean usesDictionary;
 
         public TabletBlockInfo(Slice in) throws IOException {
-            // type: 0b000000TC
-            // C: block compression: 0 = None, 1 = Snappy
+            // type: 0b00DKKKTC
+            // C, K: block codec, see BlockCodec
             // T: block type: 0 = Data block, 1 = Metadata block
+            // D: compressed with the tablet's dictionary
             //
             this.checksum =  Msgpack.readUint(in);
             int t = (int) Msgpack.readUint(in);
             this.type = (t & (1 << 1)) == 0 ? BlockType.DATA : BlockType.META;
             this.length = (int) Msgpack.readUint(in);
-            this.isCompressed = (t & 1) == 1;
+            this.codec = BlockCodec.fromFlags(t);
+            this.isCompressed = codec != BlockCodec.NONE;
+            this.usesDictionary = (t & BlockCodec.DICTIONARY_FLAG) != 0;
         }
     }    
 
+    /* A block's data with the checksum of its stored bytes, computed with checksumType
+       or -1 when that is null. */
     public static class TabletBlockData {
         public final TabletBlockInfo info;
         public final byte[] data;
         public long checksum;
 
         public TabletBlockData(Slice in) throws IOException {
+            this(in, null);
+        }
+
+        public TabletBlockData(Slice in, ZstdDictDecompress dictionary) throws IOException {
+            this(in, dictionary, ChecksumType.CRC32);
+        }
+
+        public TabletBlockData(Slice in, ZstdDictDecompress dictionary, ChecksumType checksumType) throws IOException {
             this.info = new TabletBlockInfo(in);
 
             byte[] bytes = in.toArray();
+            this.checksum = checksumType == null ? -1 : checksumType.checksum(bytes, 0, bytes.length);
+            this.data = uncompress(info, bytes, dictionary);
+        }
 
-            if (info.isCompressed) {
-                this.data = Snappy.uncompress(bytes);
-            } else {
-                this.data = bytes;
+        static byte[] uncompress(TabletBlockInfo info, byte[] bytes, ZstdDictDecompress dictionary) throws IOException {
+            if (info.usesDictionary && dictionary == null) {
+                throw new IOException("block was compressed with a dictionary the tablet doesn't have");
             }
 
-            CRC32 crc32 = new CRC32();
-            crc32.update(bytes);
-            checksum = crc32.getValue();
+            if (info.isCompressed) {
+                return info.codec.uncompress(bytes, 0, bytes.length, info.usesDictionary ? dictionary : null);
+            }
+            return bytes;
         }
     }
 }
@@ -2,12 +2,26 @@ package com.thefactory.datastore;
 
 public class TabletReaderOptions {
     public final boolean verifyChecksums;
+    // must be the comparator the tablet was written with
+    public final KeyComparator comparator;
+    // counts the blocks read, if not null
+    public final Statistics statistics;
 
-    public TabletReaderOptions(boolean verifyChecksums) {
+    public TabletReaderOptions(boolean verifyChecksums, KeyComparator comparator, Statistics statistics) {
         this.verifyChecksums = verifyChecksums;
+        this.comparator = comparator;
+        this.statistics = statistics;
+    }
+
+    public TabletReaderOptions(boolean verifyChecksums, KeyComparator comparator) {
+        this(verifyChecksums, comparator, null);
+    }
+
+    public TabletReaderOptions(boolean verifyChecksums) {
+        this(verifyChecksums, KeyComparator.LEXICOGRAPHIC);
     }
 
     public TabletReaderOptions() {
-        this.verifyChecksums = false;
+        this(false);
     }
 }
@@ -0,0 +1,450 @@
+package com.thefactory.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Checks tablets for corruption: the header and footer, the offsets and magic numbers
+   of both indexes, every block's checksum, and that the keys are in order within and
+   across the data blocks and match the data index. Tablets are checked in parallel,
+   each reading one block at a time, and every problem found is reported rather than
+   only the first. From the command line:
+
+     TabletVerifier [--threads=N] [--comparator=<KeyComparator class>] (--db=<dir> | <tablet>...)
+
+   prints each tablet's properties, key counts and key and value size distributions and
+   exits with 1 if any tablet is corrupt. With --db, the tablets are the ones listed in
+   the database's stack.txt, and files listed but missing are reported too. */
+public class TabletVerifier {
+    // errors reported per tablet before giving up on it
+    private static final int MAX_ERRORS = 100;
+
+    private final FileSystem fileSystem;
+    private final KeyComparator comparator;
+
+    public TabletVerifier(FileSystem fileSystem, KeyComparator comparator) {
+        this.fileSystem = fileSystem;
+        this.comparator = comparator;
+    }
+
+    public static class Report {
+        public final String path;
+        public final List<String> errors = new ArrayList<String>();
+        // what couldn't be checked, which doesn't make the tablet corrupt
+        public final List<String> warnings = new ArrayList<String>();
+        public final Map<String, String> properties = new TreeMap<String, String>();
+        public final List<String> metaBlocks = new ArrayList<String>();
+        // data blocks by codec name
+        public final Map<String, Long> codecs = new TreeMap<String, Long>();
+        public final Histogram keySizes = new Histogram();
+        public final Histogram valueSizes = new Histogram();
+        public long bytes;
+        public int version;
+        public ChecksumType checksumType;
+        public long dataBlocks;
+        public long uncheckedBlocks;          // written without a checksum
+        public long keys;
+        public long tombstones;
+        public long mergeOperands;
+        public long valuePointers;
+        public long rangeTombstones;
+        public Slice firstKey;
+        public Slice lastKey;
+
+        public Report(String path) {
+            this.path = path;
+        }
+
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        private boolean error(String format, Object... args) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(String.format(format, args));
+            }
+            return errors.size() < MAX_ERRORS;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder ret = new StringBuilder();
+            ret.append(String.format("[ %s ]%n", path));
+            ret.append(String.format("  bytes: %d, version: %d (%s)%n", bytes, version, checksumType));
+            ret.append(String.format("  data blocks: %d %s, %d without checksum%n", dataBlocks, codecs, uncheckedBlocks));
+            ret.append(String.format("  meta blocks: %s%n", metaBlocks));
+            ret.append(String.format("  properties: %s%n", properties));
+            ret.append(String.format("  keys: %d (%d tombstones, %d merge operands, %d value pointers), %d range tombstones%n",
+                                     keys, tombstones, mergeOperands, valuePointers, rangeTombstones));
+            ret.append(String.format("  first key: %s%n", printable(firstKey)));
+            ret.append(String.format("  last key: %s%n", printable(lastKey)));
+            ret.append(String.format("  key sizes: %s%n", keySizes));
+            ret.append(String.format("  value sizes: %s%n", valueSizes));
+            for (String warning : warnings) {
+                ret.append(String.format("  warning: %s%n", warning));
+            }
+            if (isValid()) {
+                ret.append(String.format("  OK%n"));
+            } else {
+                ret.append(String.format("  CORRUPT, %d errors%s:%n", errors.size(), errors.size() == MAX_ERRORS ? " or more" : ""));
+                for (String error : errors) {
+                    ret.append(String.format("    %s%n", error));
+                }
+            }
+            return ret.toString();
+        }
+    }
+
+    /* check the tablet at path; problems are reported, not thrown */
+    public Report verify(String path) {
+        Report ret = new Report(path);
+        DatastoreChannel channel;
+        try {
+            channel = fileSystem.open(path);
+        } catch (Exception e) {
+            ret.error("can't open tablet: %s", e);
+            return ret;
+        }
+        try {
+            verify(channel, ret);
+        } catch (Exception e) {
+            ret.error("%s", e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to lose
+            }
+        }
+        return ret;
+    }
+
+    private void verify(DatastoreChannel channel, Report report) throws IOException {
+        TabletReader reader = new TabletReader();
+        report.bytes = channel.size();
+        if (report.bytes < 8 + 40) {
+            report.error("tablet of %d bytes is too short for a header and footer", report.bytes);
+            return;
+        }
+        TabletReader.TabletHeader header = reader.readHeader(new Slice(read(channel, 0, 8)));
+        report.version = header.version;
+        report.checksumType = header.checksumType();
+        reader.setChecksumType(report.checksumType);
+
+        long footerOffset = report.bytes - 40;
+        TabletReader.TabletFooter footer = reader.readFooter(new Slice(read(channel, footerOffset, 40)));
+        if (footer.dataIndexOffset + footer.dataIndexLength != footerOffset) {
+            report.error("data index [%d, +%d) doesn't end at the footer at %d", footer.dataIndexOffset, footer.dataIndexLength, footerOffset);
+            return;
+        }
+        if (footer.metaIndexOffset + footer.metaIndexLength != footer.dataIndexOffset) {
+            report.error("meta index [%d, +%d) doesn't end at the data index at %d", footer.metaIndexOffset, footer.metaIndexLength, footer.dataIndexOffset);
+            return;
+        }
+
+        List<TabletReader.TabletIndexRecord> metaIndex = reader.readIndex(
+            new Slice(read(channel, footer.metaIndexOffset, (int) footer.metaIndexLength)), footer.metaIndexLength, TabletConstants.META_INDEX_MAGIC);
+        List<TabletReader.TabletIndexRecord> dataIndex = reader.readIndex(
+            new Slice(read(channel, footer.dataIndexOffset, (int) footer.dataIndexLength)), footer.dataIndexLength, TabletConstants.DATA_INDEX_MAGIC);
+        if (!checkIndex("meta", metaIndex, footer.metaIndexOffset, report) | !checkIndex("data", dataIndex, footer.metaIndexOffset, report)) {
+            return;
+        }
+
+        KeyComparator order = verifyMetaBlocks(channel, reader, metaIndex, report);
+        reader.setComparator(order == null ? KeyComparator.LEXICOGRAPHIC : order);
+        verifyDataBlocks(channel, reader, dataIndex, order, report);
+    }
+
+    /* whether the index's blocks are in order, after the header and before limit */
+    private static boolean checkIndex(String name, List<TabletReader.TabletIndexRecord> index, long limit, Report report) {
+        long pos = 8;
+        for (int i = 0; i < index.size(); i++) {
+            TabletReader.TabletIndexRecord rec = index.get(i);
+            if (rec.offset < pos || rec.length <= 0 || rec.offset + rec.length > limit) {
+                report.error("%s index record %d [%d, +%d) is out of place", name, i, rec.offset, rec.length);
+                return false;
+            }
+            pos = rec.offset + rec.length;
+        }
+        return true;
+    }
+
+    /* check the meta blocks' checksums and contents, returning the comparator to check
+       the key order with, or null if the tablet's keys are in an order we don't know */
+    private KeyComparator verifyMetaBlocks(DatastoreChannel channel, TabletReader reader,
+                                           List<TabletReader.TabletIndexRecord> metaIndex, Report report) throws IOException {
+        for (TabletReader.TabletIndexRecord rec : metaIndex) {
+            String name = rec.data.toUTF8String();
+            report.metaBlocks.add(name);
+            TabletReader.TabletBlockData block;
+            try {
+                block = new TabletReader.TabletBlockData(new Slice(read(channel, rec.offset, rec.length)), null, report.checksumType);
+            } catch (IOException e) {
+                report.error("meta block %s at %d: %s", name, rec.offset, e.getMessage());
+                continue;
+            }
+            if (block.info.checksum != 0 && block.info.checksum != block.checksum) {
+                report.error("meta block %s at %d: bad checksum", name, rec.offset);
+                continue;
+            }
+            if (name.equals(TabletConstants.ZSTD_DICTIONARY_BLOCK)) {
+                reader.setDictionary(block.data);
+            } else if (name.equals(TabletConstants.PROPERTIES_BLOCK)) {
+                report.properties.putAll(TabletProperties.decode(new Slice(block.data)));
+            } else if (name.equals(TabletConstants.RANGE_TOMBSTONES_BLOCK)) {
+                for (RangeTombstone range : RangeTombstone.decode(new Slice(block.data))) {
+                    report.rangeTombstones++;
+                    if (Slice.compare(range.start, range.end) == 0) {
+                        report.error("empty range tombstone at %s", printable(range.start));
+                    }
+                }
+            }
+        }
+
+        String name = report.properties.get(TabletProperties.COMPARATOR);
+        if (name == null) {
+            name = KeyComparator.LEXICOGRAPHIC.name();
+        }
+        if (name.equals(comparator.name())) {
+            return comparator;
+        } else if (name.equals(KeyComparator.LEXICOGRAPHIC.name())) {
+            return KeyComparator.LEXICOGRAPHIC;
+        }
+        return null;
+    }
+
+    private void verifyDataBlocks(DatastoreChannel channel, TabletReader reader, List<TabletReader.TabletIndexRecord> dataIndex,
+                                  KeyComparator order, Report report) throws IOException {
+        Slice previous = null;
+        for (int i = 0; i < dataIndex.size(); i++) {
+            TabletReader.TabletIndexRecord rec = dataIndex.get(i);
+            report.dataBlocks++;
+            byte[] bytes = read(channel, rec.offset, rec.length);
+            BlockReader block;
+            try {
+                TabletReader.TabletBlockInfo info = new TabletReader.TabletBlockInfo(new Slice(bytes));
+                String codec = info.codec.name() + (info.usesDictionary ? "+dictionary" : "");
+                Long n = report.codecs.get(codec);
+                report.codecs.put(codec, n == null ? 1 : n + 1);
+                if (info.checksum == 0) {
+                    report.uncheckedBlocks++;
+                }
+                block = reader.readBlock(new Slice(bytes), true);
+            } catch (Exception e) {
+                if (!report.error("data block %d at %d: %s", i, rec.offset, e.getMessage())) {
+                    return;
+                }
+                previous = null;
+                continue;
+            }
+
+            boolean first = true;
+            try {
+                Iterator<KV> kvs = block.find();
+                while (kvs.hasNext()) {
+                    KV kv = kvs.next();
+                    Slice key = kv.getKey();
+                    if (first && Slice.compare(key, rec.data) != 0) {
+                        report.error("data block %d at %d starts with %s, not its index key %s", i, rec.offset, printable(key), printable(rec.data));
+                    }
+                    if (order != null && previous != null && order.compare(previous, key) >= 0) {
+                        if (!report.error("data block %d at %d: key %s after %s", i, rec.offset, printable(key), printable(previous))) {
+                            return;
+                        }
+                    }
+                    count(kv, report);
+                    if (report.firstKey == null) {
+                        report.firstKey = key.detach();
+                    }
+                    previous = key;
+                    first = false;
+                }
+            } catch (Exception e) {
+                if (!report.error("data block %d at %d: %s", i, rec.offset, e.getMessage())) {
+                    return;
+                }
+                previous = null;
+                continue;
+            }
+            if (first) {
+                report.error("data block %d at %d is empty", i, rec.offset);
+            }
+        }
+        report.lastKey = previous == null ? null : previous.detach();
+        if (order == null) {
+            report.warnings.add(String.format("key order not checked: keys are ordered by comparator %s, not %s",
+                                              report.properties.get(TabletProperties.COMPARATOR), comparator.name()));
+        }
+    }
+
+    private static void count(KV kv, Report report) {
+        report.keys++;
+        report.keySizes.record(kv.getKey().getLength());
+        if (kv.isDeleted()) {
+            report.tombstones++;
+        } else if (kv.isValuePointer()) {
+            report.valuePointers++;
+        } else {
+            if (kv.isMergeOperand()) {
+                report.mergeOperands++;
+            }
+            report.valueSizes.record(kv.getValue().getLength());
+        }
+    }
+
+    private static byte[] read(DatastoreChannel channel, long pos, int bytes) throws IOException {
+        byte[] ret = new byte[bytes];
+        int ofs = 0;
+        while (ofs < bytes) {
+            int n = channel.read(ByteBuffer.wrap(ret, ofs, bytes - ofs), pos + ofs);
+            if (n < 0) {
+                throw new IOException(String.format("tablet ends before [%d, +%d)", pos, bytes));
+            }
+            ofs += n;
+        }
+        return ret;
+    }
+
+    /* check the tablets with threads threads, returning their reports in order */
+    public List<Report> verify(Collection<String> paths, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Report>> futures = new ArrayList<Future<Report>>();
+            for (final String path : paths) {
+                futures.add(executor.submit(new Callable<Report>() {
+                    public Report call() {
+                        return verify(path);
+                    }
+                }));
+            }
+            List<Report> ret = new ArrayList<Report>();
+            for (Future<Report> future : futures) {
+                ret.add(Utils.await(future));
+            }
+            return ret;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /* check the tablets of the database in dir, as listed in its stack.txt, oldest first;
+       listed tablets that don't exist are reported as such */
+    public List<Report> verifyDatabase(String dir, int threads) throws IOException {
+        FileManager fileManager = new FileManager(dir, fileSystem, false);
+        if (!fileSystem.exists(fileManager.getTabletMetaFile())) {
+            throw new IOException(String.format("%s has no %s", dir, FileManager.TABLET_META_FILE));
+        }
+        List<String> paths = new ArrayList<String>();
+        for (String name : fileManager.loadTabletFilenames()) {
+            paths.add(fileManager.dbFilename(name));
+        }
+        List<Report> ret = verify(paths, threads);
+        for (Report report : ret) {
+            if (!fileSystem.exists(report.path)) {
+                report.errors.clear();
+                report.error("listed in %s but missing", FileManager.TABLET_META_FILE);
+            }
+        }
+        return ret;
+    }
+
+    /* the files of the database in dir on disk that are neither tablets on its stack nor
+       its logs and metadata, e.g. tablets left behind by an interrupted flush */
+    public static List<String> unlistedFiles(String dir) throws IOException {
+        FileManager fileManager = new FileManager(dir, new DiskFileSystem(), false);
+        Set<String> known = new HashSet<String>(fileManager.loadTabletFilenames());
+        known.add(FileManager.LOCK_FILE);
+        known.add(FileManager.TABLET_WRITE_LOG_FILE);
+        known.add(FileManager.IMMUTABLE_TABLET_WRITE_LOG_FILE);
+        known.add(FileManager.TABLET_META_FILE);
+        known.add(FileManager.VALUE_LOG_META_FILE);
+        List<String> ret = new ArrayList<String>();
+        String[] names = new File(dir).list();
+        if (names != null) {
+            for (String name : names) {
+                if (!known.contains(name) && !name.endsWith(".vlog")) {
+                    ret.add(name);
+                }
+            }
+        }
+        return ret;
+    }
+
+    static String printable(Slice key) {
+        if (key == null) {
+            return "(none)";
+        }
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < key.getLength(); i++) {
+            int b = key.getAt(i) & 0xff;
+            if (b >= 0x20 && b < 0x7f && b != '\\') {
+                ret.append((char) b);
+            } else {
+                ret.append(String.format("\\x%02x", b));
+            }
+        }
+        return ret.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        KeyComparator comparator = KeyComparator.LEXICOGRAPHIC;
+        String db = null;
+        List<String> tablets = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--comparator=")) {
+                String name = arg.substring("--comparator=".length());
+                try {
+                    comparator = (KeyComparator) Class.forName(name).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    System.err.println(String.format("can't load comparator %s: %s", name, e.getCause() != null ? e.getCause() : e));
+                    System.exit(2);
+                }
+            } else if (arg.startsWith("--db=")) {
+                db = arg.substring("--db=".length());
+            } else if (arg.startsWith("--")) {
+                System.err.println(String.format("unknown option %s", arg));
+                System.exit(2);
+            } else {
+                tablets.add(arg);
+            }
+        }
+        if ((db == null) == tablets.isEmpty()) {
+            System.err.println("usage: TabletVerifier [--threads=N] [--comparator=<KeyComparator class>] (--db=<dir> | <tablet>...)");
+            System.exit(2);
+        }
+
+        TabletVerifier verifier = new TabletVerifier(new DiskFileSystem(), comparator);
+        List<Report> reports = db == null ? verifier.verify(tablets, threads) : verifier.verifyDatabase(db, threads);
+        int corrupt = 0;
+        long bytes = 0;
+        for (Report report : reports) {
+            System.out.print(report);
+            bytes += report.bytes;
+            if (!report.isValid()) {
+                corrupt++;
+            }
+        }
+        if (db != null) {
+            for (String name : unlistedFiles(db)) {
+                System.out.println(String.format("not in %s: %s", FileManager.TABLET_META_FILE, name));
+            }
+        }
+        System.out.println(String.format("%d tablets, %d bytes, %d corrupt", reports.size(), bytes, corrupt));
+        System.exit(corrupt == 0 ? 0 : 1);
+    }
+}
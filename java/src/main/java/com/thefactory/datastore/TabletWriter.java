@@ -1,39 +1,70 @@
 package com.thefactory.datastore;
 
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
 import org.xerial.snappy.Snappy;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.zip.CRC32;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
 
 public class TabletWriter {
     TabletWriterOptions opts;
 
-    private static byte[] tombstone = new byte[]{(byte) Msgpack.NIL_VALUE}; 
-
     public TabletWriter(TabletWriterOptions opts) {
         this.opts = opts;
     }
 
     public void writeTablet(WritableByteChannel out, Iterator<KV> kvs) throws IOException {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        writeTablet(out, kvs, new TreeMap<String, byte[]>());
+    }
+
+    /* write a tablet with additional meta blocks, by name */
+    public void writeTablet(WritableByteChannel out, Iterator<KV> kvs, Map<String, byte[]> meta) throws IOException {
+        OutputBuffer buf = new OutputBuffer();
 
         int headLen = flush(out, writeHeader(buf, opts));
 
         Deque<IndexRecord> dataBlocks = writeDataBlocks(out, kvs, headLen, opts);
 
-        int metaIndexLen = flush(out, writeIndex(buf, TabletConstants.META_INDEX_MAGIC, new LinkedList<IndexRecord>()));
-        int dataIndexLen = flush(out, writeIndex(buf, TabletConstants.DATA_INDEX_MAGIC, dataBlocks));
+        long metaPos = headLen;
+        if (!dataBlocks.isEmpty()) {
+            IndexRecord lastBlock = dataBlocks.getLast();
+            metaPos = lastBlock.offset + lastBlock.length;
+        }
 
-        IndexRecord lastBlock = dataBlocks.getLast();
-        long metaPos = lastBlock.offset + lastBlock.length;
+        meta = new TreeMap<String, byte[]>(meta);
+        if (usesDictionary(opts)) {
+            meta.put(TabletConstants.ZSTD_DICTIONARY_BLOCK, opts.compressionDictionary);
+        }
+        if (!opts.comparator.name().equals(KeyComparator.LEXICOGRAPHIC.name())) {
+            Map<String, String> properties = new TreeMap<String, String>();
+            properties.put(TabletProperties.COMPARATOR, opts.comparator.name());
+            meta.put(TabletConstants.PROPERTIES_BLOCK, TabletProperties.encode(properties));
+        }
+
+        Deque<IndexRecord> metaBlocks = new LinkedList<IndexRecord>();
+        for (Map.Entry<String, byte[]> block : meta.entrySet()) {
+            int len = flush(out, writeMetaBlock(buf, block.getValue()));
+            metaBlocks.add(new IndexRecord(metaPos, len, block.getKey().getBytes("UTF-8")));
+            metaPos += len;
+        }
+
+        int metaIndexLen = flush(out, writeIndex(buf, TabletConstants.META_INDEX_MAGIC, metaBlocks));
+        int dataIndexLen = flush(out, writeIndex(buf, TabletConstants.DATA_INDEX_MAGIC, dataBlocks));
 
         BlockHandle metaIndexHandle = new BlockHandle(metaPos, metaIndexLen);
         BlockHandle dataIndexHandle = new BlockHandle(metaPos + metaIndexLen, dataIndexLen);
@@ -42,100 +73,292 @@ public class TabletWriter {
     }
 
     /* flush the data in buf to out, resetting buf and returning bytes written */
-    private int flush(WritableByteChannel out, ByteArrayOutputStream buf) throws IOException {
-        out.write(ByteBuffer.wrap(buf.toByteArray()));
+    private int flush(WritableByteChannel out, OutputBuffer buf) throws IOException {
+        ByteBuffer data = buf.asByteBuffer();
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
 
         int count = buf.size();
         buf.reset();
         return count;
     }
 
-    private ByteArrayOutputStream writeHeader(ByteArrayOutputStream out, TabletWriterOptions opts) throws IOException {
+    private OutputBuffer writeHeader(OutputBuffer out, TabletWriterOptions opts) throws IOException {
         DataOutputStream dos = new DataOutputStream(out);
 
         dos.writeInt((int)TabletConstants.TABLET_MAGIC);
 
-        // 0x01: prefix-compressed blocks
+        // version, see ChecksumType: 0x01 for prefix-compressed blocks with CRC32
+        // checksums, 0x02 with CRC32C checksums
         // 0x000000: reserved for future use
-        dos.writeInt(0x01000000);
+        dos.writeInt(opts.checksum.version() << 24);
+
+        return out;
+    }
+
+    private static boolean usesDictionary(TabletWriterOptions opts) {
+        return opts.useCompression && opts.codec == BlockCodec.ZSTD && opts.compressionDictionary != null;
+    }
+
+    /* meta blocks are stored uncompressed */
+    private OutputBuffer writeMetaBlock(OutputBuffer out, byte[] data) throws IOException {
+        DataOutput dos = new DataOutputStream(out);
+        Msgpack.writeUint(dos, opts.checksum.checksum(data, 0, data.length));
+        Msgpack.writeUint(dos, 0x02);
+        Msgpack.writeUint(dos, data.length);
+        dos.write(data);
 
         return out;
     }
 
+    /* Train a Zstandard dictionary of up to dictSize bytes on the blocks kvs would be
+       written as, for use as opts.compressionDictionary. */
+    public static byte[] trainDictionary(Iterator<KV> kvs, TabletWriterOptions opts, int dictSize) throws IOException {
+        ZstdDictTrainer trainer = new ZstdDictTrainer(100 * dictSize, dictSize);
+        BlockWriter bw = new BlockWriter(opts);
+        boolean full = false;
+        while (kvs.hasNext() && !full) {
+            KV kv = kvs.next();
+            bw.append(kv.getKey(), kv.isDeleted() ? null : kv.getValue());
+            if (bw.size() > opts.blockSize) {
+                full = !trainer.addSample(bw.finish());
+                bw.reset();
+            }
+        }
+        if (!full && bw.getFirstKey() != null) {
+            trainer.addSample(bw.finish());
+        }
+        return trainer.trainSamples();
+    }
+
     private Deque<IndexRecord> writeDataBlocks(WritableByteChannel out, Iterator<KV> kvs, int pos, TabletWriterOptions opts) throws IOException {
         Deque<IndexRecord> index = new LinkedList<IndexRecord>();
         BlockWriter bw = new BlockWriter(opts);
+        BlockPipeline blocks = new BlockPipeline(out, pos, index, opts);
+
+        try {
+            Slice prevKey = null;
+            while (kvs.hasNext()) {
+                KV kv = kvs.next();
+
+                if (opts.checkKeyOrder) {
+                    Slice cur = kv.getKey();
+                    if (prevKey != null && opts.comparator.compare(cur, prevKey) <= 0) {
+                        throw new IllegalArgumentException(String.format("non-ascending keys: %s -> %s", prevKey, cur));
+                    }
+                    prevKey = cur.detach();
+                }
 
-        Slice prevKey = null;
-        while (kvs.hasNext()) {
-            KV kv = kvs.next();
+                if (kv.isValuePointer()) {
+                    bw.appendValuePointer(kv.getKey(), kv.getValue());
+                } else if (kv.isMergeOperand()) {
+                    bw.appendMergeOperand(kv.getKey(), kv.getValue());
+                } else {
+                    bw.append(kv.getKey(), kv.isDeleted() ? null : kv.getValue());
+                }
 
-            if (opts.checkKeyOrder) {
-                Slice cur = kv.getKey();
-                if (cur.compareTo(prevKey) <= 0) {
-                    throw new IllegalArgumentException(String.format("non-ascending keys: %s -> %s", prevKey, cur));
+                if (bw.size() > opts.blockSize) {
+                    blocks.add(bw);
                 }
-                prevKey = cur.detach();
             }
 
-            if(kv.isDeleted()) {
-                bw.append(kv.getKeyBytes(), tombstone);
-            } else {
-                bw.append(kv.getKeyBytes(), kv.getValueBytes());
+            if (bw.getFirstKey() != null) {
+                blocks.add(bw);
             }
 
-            if (bw.size() > opts.blockSize) {
-                index.add(flushBlock(out, pos, bw, opts));
-                pos += index.getLast().length;
-            }
-        }
-
-        if (bw.getFirstKey() != null) {
-            index.add(flushBlock(out, pos, bw, opts));
-            pos += index.getLast().length;
+            blocks.finish();
+        } finally {
+            blocks.close();
         }
 
         return index;
     }
 
-    private IndexRecord flushBlock(WritableByteChannel out, int pos, BlockWriter bw, TabletWriterOptions opts) throws IOException {
-        byte[] firstKey = bw.getFirstKey();
-        byte[] data = bw.finish();
-        byte blockFlags = 0x00; // uncompressed block
+    /* Compresses and checksums finished blocks on a pool of opts.compressionThreads
+       threads and writes them to the tablet in order. Blocks and their buffers are
+       recycled once written, so steady-state writing allocates no block-sized garbage. */
+    private class BlockPipeline {
+        private final WritableByteChannel out;
+        private final Deque<IndexRecord> index;
+        private final TabletWriterOptions opts;
+        private final ExecutorService executor;
+        private final Deque<Future<PendingBlock>> pending = new LinkedList<Future<PendingBlock>>();
+        private final Deque<PendingBlock> free = new LinkedList<PendingBlock>();
+        private final ZstdDictCompress dictionary;
+        private long pos;
+
+        public BlockPipeline(WritableByteChannel out, long pos, Deque<IndexRecord> index, TabletWriterOptions opts) {
+            this.out = out;
+            this.pos = pos;
+            this.index = index;
+            this.opts = opts;
+            this.executor = opts.compressionThreads > 1 ? Executors.newFixedThreadPool(opts.compressionThreads) : null;
+            this.dictionary = usesDictionary(opts) ? new ZstdDictCompress(opts.compressionDictionary, opts.compressionLevel) : null;
+        }
+
+        public void add(BlockWriter bw) throws IOException {
+            final PendingBlock block = free.isEmpty() ? new PendingBlock(opts, dictionary) : free.removeFirst();
+            block.firstKey = bw.getFirstKey();
+            block.raw = bw.finishAndSwap(block.spare);
+            block.spare = null;
+            bw.reset();
+
+            if (executor == null) {
+                block.encode();
+                write(block);
+                return;
+            }
 
-        if (opts.useCompression) {
-            byte[] compressed = Snappy.compress(data);
-            if (compressed.length < data.length) {
-                blockFlags = 0x01;
-                data = compressed;
+            // bound the number of blocks held in memory while waiting to be written
+            if (pending.size() >= 2 * opts.compressionThreads) {
+                write(Utils.await(pending.removeFirst()));
             }
+            pending.addLast(executor.submit(new Callable<PendingBlock>() {
+                public PendingBlock call() throws IOException {
+                    block.encode();
+                    return block;
+                }
+            }));
         }
 
-        // write the block envelope: checksum, flags, and length
-        ByteArrayOutputStream env = new ByteArrayOutputStream(10 + firstKey.length);
-        DataOutput dos = new DataOutputStream(env);
+        public void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                write(Utils.await(pending.removeFirst()));
+            }
+        }
 
-        // envelope is: checksum, block flags, length
-        Msgpack.writeUint(dos, getChecksum(data));
-        Msgpack.writeUint(dos, blockFlags);
+        public void close() {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (dictionary != null) {
+                dictionary.close();
+            }
+        }
 
-        Msgpack.writeUint(dos, data.length);
+        private void write(PendingBlock block) throws IOException {
+            int length = block.buffers[0].remaining() + block.buffers[1].remaining();
 
-        out.write(ByteBuffer.wrap(env.toByteArray()));
-        out.write(ByteBuffer.wrap(data));
+            if (out instanceof GatheringByteChannel) {
+                GatheringByteChannel gather = (GatheringByteChannel) out;
+                while (block.buffers[1].hasRemaining()) {
+                    gather.write(block.buffers);
+                }
+            } else {
+                for (ByteBuffer buf : block.buffers) {
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                }
+            }
 
-        bw.reset();
+            IndexRecord rec = new IndexRecord(pos, length, block.firstKey);
+            index.add(rec);
+            pos += rec.length;
 
-        return new IndexRecord(pos, env.size() + data.length, firstKey);
+            block.recycle();
+            free.addLast(block);
+        }
     }
 
-    private long getChecksum(byte[] data) {
-        CRC32 crc32 = new CRC32();
-        crc32.update(data);
-        return crc32.getValue();
+    /* A finished block on its way to the tablet file, along with the buffers used to
+       encode it. After recycle() the buffers are kept for the next block. */
+    private static class PendingBlock {
+        private final TabletWriterOptions opts;
+        private final ZstdDictCompress dictionary;
+        private final Checksum checksum;
+        private final byte[] envelope = new byte[16];
+        public final ByteBuffer[] buffers = new ByteBuffer[2];
+
+        public byte[] firstKey;
+        public Slice raw;
+        public byte[] spare;
+
+        private byte[] compressed;
+        private ByteBuffer directRaw;
+        private ByteBuffer directData;
+
+        public PendingBlock(TabletWriterOptions opts, ZstdDictCompress dictionary) {
+            this.opts = opts;
+            this.dictionary = dictionary;
+            this.checksum = opts.checksum.newChecksum();
+        }
+
+        /* compress and checksum raw, leaving the envelope and block data in buffers */
+        public void encode() throws IOException {
+            byte blockFlags = 0x00; // uncompressed block
+            ByteBuffer data;
+            int rawLength = raw.getLength();
+            BlockCodec codec = opts.useCompression ? opts.codec : BlockCodec.NONE;
+
+            if (opts.useDirectBuffers && (codec == BlockCodec.SNAPPY || codec == BlockCodec.NONE)) {
+                directRaw = ensureDirect(directRaw, rawLength);
+                directRaw.put(raw.array, raw.getOffset(), rawLength);
+                directRaw.flip();
+                data = directRaw;
+
+                if (codec == BlockCodec.SNAPPY) {
+                    directData = ensureDirect(directData, Snappy.maxCompressedLength(rawLength));
+                    if (Snappy.compress(directRaw, directData) < rawLength) {
+                        blockFlags = 0x01;
+                        data = directData;
+                    }
+                }
+
+                checksum.reset();
+                ChecksumType.update(checksum, data);
+            } else {
+                data = ByteBuffer.wrap(raw.array, raw.getOffset(), rawLength);
+
+                if (codec != BlockCodec.NONE) {
+                    int maxLength = codec.maxCompressedLength(rawLength);
+                    if (compressed == null || compressed.length < maxLength) {
+                        compressed = new byte[maxLength];
+                    }
+                    int length = codec.compress(raw.array, raw.getOffset(), rawLength, compressed, opts.compressionLevel, dictionary);
+                    if (length < rawLength) {
+                        blockFlags = (byte) codec.flags();
+                        if (dictionary != null) {
+                            blockFlags |= BlockCodec.DICTIONARY_FLAG;
+                        }
+                        data = ByteBuffer.wrap(compressed, 0, length);
+                    }
+                }
+
+                checksum.reset();
+                checksum.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            }
+
+            // envelope is: checksum, block flags, length
+            ByteBuffer env = ByteBuffer.wrap(envelope);
+            Msgpack.writeUint(env, checksum.getValue());
+            Msgpack.writeUint(env, blockFlags);
+            Msgpack.writeUint(env, data.remaining());
+            env.flip();
+
+            buffers[0] = env;
+            buffers[1] = data;
+        }
+
+        public void recycle() {
+            spare = raw.array;
+            raw = null;
+            firstKey = null;
+            buffers[0] = null;
+            buffers[1] = null;
+        }
+
+        private static ByteBuffer ensureDirect(ByteBuffer buf, int capacity) {
+            if (buf == null || buf.capacity() < capacity) {
+                return ByteBuffer.allocateDirect(capacity);
+            }
+            buf.clear();
+            return buf;
+        }
     }
 
-    private ByteArrayOutputStream writeIndex(ByteArrayOutputStream out, long magic, Deque<IndexRecord> recs) throws IOException {
+    private OutputBuffer writeIndex(OutputBuffer out, long magic, Deque<IndexRecord> recs) throws IOException {
         DataOutput dos = new DataOutputStream(out);
         dos.writeInt((int)magic);
 
@@ -148,7 +371,7 @@ public class TabletWriter {
         return out;
     }
 
-    private ByteArrayOutputStream writeFooter(ByteArrayOutputStream out, BlockHandle metaIndexHandle, BlockHandle dataIndexHandle) throws IOException {
+    private OutputBuffer writeFooter(OutputBuffer out, BlockHandle metaIndexHandle, BlockHandle dataIndexHandle) throws IOException {
         DataOutput dos = new DataOutputStream(out);
         Msgpack.writeUint64(dos, metaIndexHandle.offset);
         Msgpack.writeUint64(dos, metaIndexHandle.length);
@@ -3,8 +3,23 @@ package com.thefactory.datastore;
 public class TabletWriterOptions {
     public int blockSize;
     public boolean useCompression;
+    // the codec used when useCompression is set
+    public BlockCodec codec;
+    // Zstandard compression level
+    public int compressionLevel;
+    // optional Zstandard dictionary (see TabletWriter.trainDictionary), stored in the tablet as a meta block
+    public byte[] compressionDictionary;
     public int keyRestartInterval;
     public boolean checkKeyOrder;
+    // the order of the keys; recorded in the tablet unless it's the default
+    public KeyComparator comparator;
+    // blocks are compressed and checksummed on this many threads; <= 1 writes inline
+    public int compressionThreads;
+    // encode blocks in direct buffers, saving the copy a FileChannel makes of heap buffers;
+    // only used with the Snappy codec
+    public boolean useDirectBuffers;
+    // the checksum of the blocks; CRC32C tablets can't be verified by readers that predate it
+    public ChecksumType checksum;
 
     public TabletWriterOptions() {
         this(4096, true, 16, true);
@@ -13,7 +28,13 @@ public class TabletWriterOptions {
     public TabletWriterOptions(int blockSize, boolean useCompression, int keyRestartInterval, boolean checkKeyOrder) {
         this.blockSize = blockSize;
         this.useCompression = useCompression;
+        this.codec = BlockCodec.SNAPPY;
+        this.compressionLevel = 3;
         this.keyRestartInterval = keyRestartInterval;
         this.checkKeyOrder = checkKeyOrder;
+        this.comparator = KeyComparator.LEXICOGRAPHIC;
+        this.compressionThreads = 1;
+        this.useDirectBuffers = false;
+        this.checksum = ChecksumType.CRC32;
     }
 }
@@ -0,0 +1,85 @@
+package com.thefactory.datastore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/* Timed events of the hot paths, for an event recorder like Java Flight Recorder. Each
+   begin method returns the event to pass to its end method, or null if the recorder
+   doesn't record that kind of event, in which case the end method needn't be called:
+
+       Object event = Tracer.current().beginFlush();
+       ...
+       if (event != null) {
+           Tracer.current().endFlush(event, name, keys, bytes);
+       }
+
+   This tracer records nothing. Tracer.current() is the Flight Recorder tracer of the
+   datastore-jfr module (see java/jfr) when that is on the class path and the JVM has
+   Flight Recorder (JDK 11 and later), and this one otherwise. */
+public class Tracer {
+    private static final String JFR_TRACER = "com.thefactory.datastore.jfr.JfrTracer";
+
+    private static final Tracer current = load();
+
+    public static Tracer current() {
+        return current;
+    }
+
+    private static Tracer load() {
+        try {
+            return (Tracer) Class.forName(JFR_TRACER).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return new Tracer();
+        } catch (ReflectiveOperationException e) {
+            // e.g. the tracer's constructor threw, which arrives as its cause
+            Log log = LogFactory.getLog(Tracer.class);
+            log.debug(String.format("Flight Recorder events are disabled: %s", e.getCause() != null ? e.getCause() : e));
+            return new Tracer();
+        } catch (Throwable e) {
+            // e.g. an UnsupportedClassVersionError or NoClassDefFoundError before JDK 11
+            Log log = LogFactory.getLog(Tracer.class);
+            log.debug(String.format("Flight Recorder events are disabled: %s", e));
+            return new Tracer();
+        }
+    }
+
+    /* a data block read from a tablet file and decoded */
+    public Object beginBlockLoad() {
+        return null;
+    }
+
+    public void endBlockLoad(Object event, String tablet, long offset, int bytes, long decodeNanos) {
+    }
+
+    /* a batch appended to the transaction log */
+    public Object beginTransactionLogWrite() {
+        return null;
+    }
+
+    public void endTransactionLogWrite(Object event, int bytes) {
+    }
+
+    /* an immutable tablet written to a file tablet and pushed on the stack */
+    public Object beginFlush() {
+        return null;
+    }
+
+    public void endFlush(Object event, String tablet, long keys, long bytes) {
+    }
+
+    /* a merge iterator over all tablets created and positioned on its first key */
+    public Object beginMergeIterator() {
+        return null;
+    }
+
+    public void endMergeIterator(Object event, int tablets, boolean seek) {
+    }
+
+    /* a write waiting for the previous flush to finish */
+    public Object beginStall() {
+        return null;
+    }
+
+    public void endStall(Object event) {
+    }
+}
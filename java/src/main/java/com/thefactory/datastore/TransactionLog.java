@@ -6,8 +6,6 @@ import java.util.zip.CRC32;
 import java.util.Iterator;
 import java.util.Arrays;
 import java.io.IOException;
-import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.buffer.ChannelBuffer;
 
 public class TransactionLog {
 
@@ -43,31 +41,7 @@ public class TransactionLog {
 
     public final static int MAX_BLOCK_SIZE = 32768;  
     public final static int HEADER_SIZE = 7;         
-
-    private static class RecordHeader {
-        public final long checksum;
-        public final RecordType type;
-        public final int length;
-
-        public RecordHeader(long checksum, 
-                      RecordType type, 
-                      int length){
-            this.checksum = checksum;
-            this.type = type;
-            this.length = length;
-        }
-    }
-
-    private static class Record {
-        public final RecordHeader header;
-        public final byte[] value;
-
-        public Record(RecordHeader header, 
-                      byte[] value){
-            this.header = header;
-            this.value = value;
-        }
-    }
+    private final static int READ_AHEAD_BLOCKS = 16;
 
     public TransactionLog(FileSystem fileSystem){
         this.fileSystem = fileSystem;
@@ -91,11 +65,25 @@ public class TransactionLog {
         private long position = 0;
         private final long size;
 
+        // the log is read sequentially in chunks of whole log blocks and records are
+        // decoded in place; only transactions spanning several records are copied
+        private final byte[] readAhead = new byte[READ_AHEAD_BLOCKS * MAX_BLOCK_SIZE];
+        private long readAheadPosition = 0;
+        private int readAheadLength = 0;
+        private byte[] transaction = new byte[MAX_BLOCK_SIZE];
+
+        // the last record read: its type and the location of its data in readAhead
+        private RecordType recordType;
+        private int recordOffset;
+        private int recordLength;
+
         public Reader(String transactionLogfile){
             this.channel = fileSystem.open(transactionLogfile);
             this.size = fileSystem.size(transactionLogfile);
         }
 
+        /* The returned slices point into the reader's buffers and are only valid
+           until the next call to next(). */
         public Iterator<Slice> transactions(){
             return new Iterator<Slice>() {
                 public boolean hasNext() {
@@ -120,27 +108,33 @@ public class TransactionLog {
             channel.close();
         }
 
-        private void readFully(byte[] buffer) throws IOException {
-            int read = 0;
-            while(read < buffer.length) {
-                read += channel.read(ByteBuffer.wrap(buffer, read, buffer.length - read), position + read);
+        /* make sure the log bytes [pos, pos + len) are in readAhead; records never
+           cross log block boundaries, so loading whole blocks always suffices */
+        private int buffered(long pos, int len) throws IOException {
+            if(pos < readAheadPosition || pos + len > readAheadPosition + readAheadLength) {
+                fillReadAhead(pos);
+                if(pos + len > readAheadPosition + readAheadLength) {
+                    throw new IOException("unexpected end of transaction log");
+                }
             }
+            return (int) (pos - readAheadPosition);
         }
 
-        private RecordHeader readRecordHeader() throws IOException {
-            byte[] buffer = new byte[HEADER_SIZE];
-            readFully(buffer);
-            position += HEADER_SIZE;
-            Slice in = new Slice(buffer);
-
-            long checksum = in.readInt();
-            int type = in.readByte();
-            int len = in.readShort();
-
-            return new RecordHeader(checksum, RecordType.forCode(type), len);
+        private void fillReadAhead(long pos) throws IOException {
+            readAheadPosition = pos - (pos % MAX_BLOCK_SIZE);
+            int len = (int) Math.min(readAhead.length, size - readAheadPosition);
+            int read = 0;
+            while(read < len) {
+                int n = channel.read(ByteBuffer.wrap(readAhead, read, len - read), readAheadPosition + read);
+                if(n < 0) {
+                    throw new IOException("unexpected end of transaction log");
+                }
+                read += n;
+            }
+            readAheadLength = Math.max(len, 0);
         }
 
-        private Record readRecord() throws IOException {
+        private void readRecord() throws IOException {
             // if the transaction stream has too few bytes to handle a record
             // header, seek to next
             long remaining = MAX_BLOCK_SIZE - (position % MAX_BLOCK_SIZE);
@@ -148,37 +142,54 @@ public class TransactionLog {
                 position += remaining;
             } 
 
-            RecordHeader header = readRecordHeader();
-            byte[] buffer = new byte[header.length];
-            readFully(buffer);
-            position += header.length;
+            int header = buffered(position, HEADER_SIZE);
+            position += HEADER_SIZE;
+            long checksum = ((long) (readAhead[header] & 0xff) << 24) | ((readAhead[header + 1] & 0xff) << 16)
+                | ((readAhead[header + 2] & 0xff) << 8) | (readAhead[header + 3] & 0xff);
+            RecordType type = RecordType.forCode(readAhead[header + 4] & 0xff);
+            int length = ((readAhead[header + 5] & 0xff) << 8) | (readAhead[header + 6] & 0xff);
+
+            int offset = buffered(position, length);
+            position += length;
             crc32.reset();
-            crc32.update(buffer, 0, header.length);
-            if(header.checksum != crc32.getValue()){
-                throw new NumberFormatException(String.format("bad record checksum: %02x != %02x", header.checksum, crc32.getValue()));
+            crc32.update(readAhead, offset, length);
+            if(checksum != crc32.getValue()){
+                throw new NumberFormatException(String.format("bad record checksum: %02x != %02x", checksum, crc32.getValue()));
             }
-            return new Record(header, buffer);
+
+            recordType = type;
+            recordOffset = offset;
+            recordLength = length;
         }
 
         private Slice readTransaction() throws IOException {
-            ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
-            
-            Record record = readRecord();
-            if (record.header.type != RecordType.FULL && record.header.type != RecordType.FIRST) {
-                throw new IOException("unexpected record type: " + record.header.type.name());
+            readRecord();
+            if (recordType != RecordType.FULL && recordType != RecordType.FIRST) {
+                throw new IOException("unexpected record type: " + recordType.name());
             }
 
-            buffer.writeBytes(record.value, 0, record.value.length);
+            if (recordType == RecordType.FULL) {
+                return new Slice(readAhead, recordOffset, recordLength);
+            }
 
-            while (record.header.type != RecordType.FULL && record.header.type != RecordType.LAST) {
-                record = readRecord();
-                if (record.header.type != RecordType.MIDDLE && record.header.type != RecordType.LAST) {
-                    throw new IOException("unexpected record type: " + record.header.type.name());
+            int length = appendRecord(0);
+            while (recordType != RecordType.LAST) {
+                readRecord();
+                if (recordType != RecordType.MIDDLE && recordType != RecordType.LAST) {
+                    throw new IOException("unexpected record type: " + recordType.name());
                 }
-                buffer.writeBytes(record.value, 0, record.value.length);
+                length = appendRecord(length);
             }
 
-            return new Slice(buffer.array(), 0, buffer.readableBytes());
+            return new Slice(transaction, 0, length);
+        }
+
+        private int appendRecord(int length) {
+            if (length + recordLength > transaction.length) {
+                transaction = Arrays.copyOf(transaction, Math.max(2 * transaction.length, length + recordLength));
+            }
+            System.arraycopy(readAhead, recordOffset, transaction, length, recordLength);
+            return length + recordLength;
         }
     }
 
@@ -0,0 +1,304 @@
+package com.thefactory.datastore;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/* Values stored apart from their keys (see Database.Options.valueLogThreshold). Each
+   flush appends its large values to a new log, and the tablet stores a pointer to the
+   value instead: the log number, offset and length as msgpack uints. Log entries are
+
+   [ key length (uint32) | value length (uint32) | key | value ]
+
+   so garbage collection can check whether a value is still the key's current one. */
+public class ValueLog implements Closeable {
+    private final FileSystem fs;
+    private final FileManager fileManager;
+    private final SortedSet<Long> logs = new TreeSet<Long>();
+    private final Set<Long> writing = new HashSet<Long>();
+    private final Map<Long, DatastoreChannel> readers = new HashMap<Long, DatastoreChannel>();
+    // removed logs, kept until close for iterators that can still point into them
+    private final SortedSet<Long> removed = new TreeSet<Long>();
+    private long nextNumber = 0;
+
+    public ValueLog(FileSystem fs, FileManager fileManager) throws IOException {
+        this.fs = fs;
+        this.fileManager = fileManager;
+        for (String number : fileManager.loadValueLogNumbers()) {
+            logs.add(Long.parseLong(number.trim()));
+        }
+        // tablets can still point into removed logs, so their numbers aren't reused
+        nextNumber = fileManager.loadNextValueLogNumber();
+        if (!logs.isEmpty()) {
+            nextNumber = Math.max(nextNumber, logs.last() + 1);
+        }
+
+        // removed before a close that didn't get to delete them
+        Collection<String> leftover = fileManager.loadRemovedValueLogNumbers();
+        for (String number : leftover) {
+            fs.remove(fileManager.getValueLog(Long.parseLong(number.trim())));
+        }
+        if (!leftover.isEmpty()) {
+            save();
+        }
+    }
+
+    public static class Entry {
+        public final Slice key;
+        public final Slice pointer;
+        public final int valueLength;
+
+        public Entry(Slice key, Slice pointer, int valueLength) {
+            this.key = key;
+            this.pointer = pointer;
+            this.valueLength = valueLength;
+        }
+    }
+
+    public static class Stats {
+        public final long number;
+        public long totalBytes;
+        public long liveBytes;
+
+        public Stats(long number) {
+            this.number = number;
+        }
+
+        public double staleRatio() {
+            return totalBytes == 0 ? 1.0 : (double) (totalBytes - liveBytes) / totalBytes;
+        }
+    }
+
+    /* Start a new log, registered before anything points into it. */
+    public synchronized Writer newWriter() throws IOException {
+        long number = nextNumber++;
+        logs.add(number);
+        writing.add(number);
+        save();
+        return new Writer(number, fs.create(fileManager.getValueLog(number)));
+    }
+
+    public class Writer implements Closeable {
+        private final long number;
+        private final DatastoreChannel out;
+        private final OutputBuffer buf = new OutputBuffer(64 * 1024);
+        private final DataOutputStream dos = new DataOutputStream(buf);
+        private long pos = 0;
+
+        private Writer(long number, DatastoreChannel out) {
+            this.number = number;
+            this.out = out;
+        }
+
+        /* append a value to the log and return the pointer to it */
+        public Slice append(Slice key, Slice value) throws IOException {
+            dos.writeInt(key.getLength());
+            dos.writeInt(value.getLength());
+            dos.write(key.array, key.getOffset(), key.getLength());
+            long offset = pos + buf.size();
+            dos.write(value.array, value.getOffset(), value.getLength());
+
+            if (buf.size() >= 64 * 1024) {
+                flush();
+            }
+            return pointer(number, offset, value.getLength());
+        }
+
+        /* kvs, with values of at least threshold bytes moved to the log */
+        public Iterator<KV> separate(final Iterator<KV> kvs, final int threshold) {
+            return new Iterator<KV>() {
+                public boolean hasNext() {
+                    return kvs.hasNext();
+                }
+
+                public KV next() {
+                    KV kv = kvs.next();
+                    if (kv.isDeleted() || kv.isValuePointer() || kv.isMergeOperand() || kv.getValue().getLength() < threshold) {
+                        return kv;
+                    }
+                    try {
+                        return new KV().valuePointer(kv.getKey(), append(kv.getKey(), kv.getValue()));
+                    } catch (IOException e) {
+                        throw new NoSuchElementException(e.getMessage());
+                    }
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer data = buf.asByteBuffer();
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+            pos += buf.size();
+            buf.reset();
+        }
+
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+                synchronized (ValueLog.this) {
+                    writing.remove(number);
+                }
+            }
+            if (pos == 0) {
+                // nothing points into an empty log, so it can go right away
+                synchronized (ValueLog.this) {
+                    logs.remove(number);
+                    save();
+                }
+                fs.remove(fileManager.getValueLog(number));
+            }
+        }
+    }
+
+    private static Slice pointer(long number, long offset, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(27);
+        Msgpack.writeUint(buf, number);
+        Msgpack.writeUint(buf, offset);
+        Msgpack.writeUint(buf, length);
+        return new Slice(buf.array(), 0, buf.position());
+    }
+
+    /* read the value a pointer points to */
+    public Slice read(Slice pointer) throws IOException {
+        Slice in = new Slice(pointer.array, pointer.getOffset(), pointer.getLength());
+        long number = Msgpack.readUint(in);
+        long offset = Msgpack.readUint(in);
+        int length = (int) Msgpack.readUint(in);
+        return new Slice(read(number, offset, length));
+    }
+
+    /* replace kv's value pointer with the value */
+    public KV resolve(KV kv) throws IOException {
+        if (!kv.isValuePointer()) {
+            return kv;
+        }
+        return new KV(kv.getKey(), read(kv.getValue()));
+    }
+
+    /* the number the next log will get */
+    public synchronized long nextNumber() {
+        return nextNumber;
+    }
+
+    /* the logs that are no longer being written */
+    public synchronized List<Long> sealedLogs() {
+        List<Long> ret = new ArrayList<Long>();
+        for (Long number : logs) {
+            if (!writing.contains(number)) {
+                ret.add(number);
+            }
+        }
+        return ret;
+    }
+
+    public Iterator<Entry> entries(final long number) throws IOException {
+        final long size = reader(number).size();
+        return new Iterator<Entry>() {
+            private long pos = 0;
+
+            public boolean hasNext() {
+                return pos < size;
+            }
+
+            public Entry next() {
+                try {
+                    Slice header = new Slice(read(number, pos, 8));
+                    int keyLength = (int) header.readInt();
+                    int valueLength = (int) header.readInt();
+                    Slice key = new Slice(read(number, pos + 8, keyLength));
+                    long offset = pos + 8 + keyLength;
+                    pos = offset + valueLength;
+                    return new Entry(key, pointer(number, offset, valueLength), valueLength);
+                } catch (IOException e) {
+                    throw new NoSuchElementException(e.getMessage());
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* Remove a log. Iterators created before can still read values from it, so its
+       file is only deleted on close, or on the next open if the database isn't closed. */
+    public synchronized void remove(long number) throws IOException {
+        if (!logs.remove(number)) {
+            return;
+        }
+        removed.add(number);
+        save();
+    }
+
+    private byte[] read(long number, long pos, int length) throws IOException {
+        DatastoreChannel in = reader(number);
+        byte[] ret = new byte[length];
+        int n, ofs = 0;
+        while (ofs < length) {
+            n = in.read(ByteBuffer.wrap(ret, ofs, length - ofs), pos + ofs);
+            if (n < 0) {
+                throw new IOException(String.format("value log %d is truncated", number));
+            }
+            ofs += n;
+        }
+        return ret;
+    }
+
+    private synchronized DatastoreChannel reader(long number) throws IOException {
+        DatastoreChannel ret = readers.get(number);
+        if (ret == null) {
+            if (!logs.contains(number) && !removed.contains(number)) {
+                throw new IOException(String.format("value log %d not found", number));
+            }
+            ret = fs.open(fileManager.getValueLog(number));
+            readers.put(number, ret);
+        }
+        return ret;
+    }
+
+    private void save() throws IOException {
+        Collection<String> numbers = new ArrayList<String>();
+        for (Long number : logs) {
+            numbers.add(number.toString());
+        }
+        Collection<String> removedNumbers = new ArrayList<String>();
+        for (Long number : removed) {
+            removedNumbers.add(number.toString());
+        }
+        fileManager.writeValueLogNumbers(numbers, removedNumbers, nextNumber);
+    }
+
+    public synchronized void close() throws IOException {
+        for (DatastoreChannel reader : readers.values()) {
+            reader.close();
+        }
+        readers.clear();
+        if (!removed.isEmpty()) {
+            for (Long number : removed) {
+                fs.remove(fileManager.getValueLog(number));
+            }
+            removed.clear();
+            save();
+        }
+    }
+}
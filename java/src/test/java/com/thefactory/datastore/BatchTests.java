@@ -67,4 +67,23 @@ public class BatchTests extends TestCase {
         }
         assertEquals(i, pairs.length);
     }
+
+    public void testBatchWrapSubslice() throws Exception {
+        Batch batch = new Batch();
+        batch.put(new Slice("foo".getBytes("UTF-8")), new Slice("bar".getBytes("UTF-8")));
+        batch.delete(new Slice("baz".getBytes("UTF-8")));
+
+        Slice slice = batch.asSlice();
+        byte[] padded = new byte[slice.getLength() + 10];
+        System.arraycopy(slice.array, slice.getOffset(), padded, 7, slice.getLength());
+
+        Iterator<KV> kvs = Batch.wrap(new Slice(padded, 7, slice.getLength())).pairs();
+        KV kv = kvs.next();
+        assertEquals(new Slice("foo".getBytes("UTF-8")), kv.getKey());
+        assertEquals(new Slice("bar".getBytes("UTF-8")), kv.getValue());
+        kv = kvs.next();
+        assertEquals(new Slice("baz".getBytes("UTF-8")), kv.getKey());
+        assertTrue(kv.isDeleted());
+        assertFalse(kvs.hasNext());
+    }
 }
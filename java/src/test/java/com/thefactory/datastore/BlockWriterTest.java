@@ -30,4 +30,45 @@ public class BlockWriterTest extends TestCase {
         });
 
     }
+
+    public void testWriteSlicesAndTombstone() throws Exception {
+        BlockWriter tw = new BlockWriter(getTabletOptions());
+        byte[] keys = "xfoofop".getBytes();
+        tw.append(new Slice(keys, 1, 3), new Slice("bar".getBytes()));
+        tw.append(new Slice(keys, 4, 3), null);
+
+        byte[] out = tw.finish();
+
+        assertEquals("foo", new String(tw.getFirstKey()));
+
+        assertArrayEquals(out, new byte[]{
+                0, -93, 102, 111, 111, -93, 98, 97, 114, /* "foo" -> "bar" */
+                2, -95, 112, -64,                        /* "fop" -> nil */
+
+                /* one restart @ 0x00000000 */
+                0, 0, 0, 0,
+                0, 0, 0, 1
+        });
+
+        BlockReader reader = new BlockReader(new Slice(out));
+        java.util.Iterator<KV> kvs = reader.find(null);
+        assertFalse(kvs.next().isDeleted());
+        KV kv = kvs.next();
+        assertEquals("fop", kv.getKey().toUTF8String());
+        assertTrue(kv.isDeleted());
+    }
+
+    public void testWriteLongRaw() throws Exception {
+        BlockWriter tw = new BlockWriter(getTabletOptions());
+        byte[] value = new byte[300];
+        tw.append("k".getBytes(), value);
+
+        byte[] out = tw.finish();
+        assertEquals(0, out[0]);
+        assertEquals((byte) 0xa1, out[1]);
+        assertEquals((byte) Msgpack.MSG_RAW_16, out[3]);
+        assertEquals(1, out[4]);
+        assertEquals(44, out[5]);
+        assertEquals(6 + 300 + 8, out.length);
+    }
 }
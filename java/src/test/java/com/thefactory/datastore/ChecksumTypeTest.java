@@ -0,0 +1,56 @@
+package com.thefactory.datastore;
+
+import junit.framework.TestCase;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+public class ChecksumTypeTest extends TestCase {
+
+    public void testCrc32c() throws Exception {
+        byte[] check = "123456789".getBytes("UTF-8");
+        assertEquals(0xE3069283L, ChecksumType.CRC32C.checksum(check, 0, check.length));
+        assertEquals(0xCBF43926L, ChecksumType.CRC32.checksum(check, 0, check.length));
+
+        Crc32c crc = new Crc32c();
+        crc.update(check, 0, check.length);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        // against the JVM's where there is one, in pieces of every alignment
+        byte[] bytes = new byte[1000];
+        new Random(42).nextBytes(bytes);
+        Checksum expected = ChecksumType.CRC32C.newChecksum();
+        expected.update(bytes, 0, bytes.length);
+        for (int split = 0; split < 17; split++) {
+            crc.reset();
+            crc.update(bytes, 0, split);
+            for (int i = split; i < bytes.length; i++) {
+                crc.update(bytes[i]);
+                if (i == split + 100) {
+                    crc.update(bytes, i + 1, bytes.length - i - 1);
+                    break;
+                }
+            }
+            assertEquals(expected.getValue(), crc.getValue());
+        }
+
+        Checksum direct = ChecksumType.CRC32C.newChecksum();
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes).flip();
+        ChecksumType.update(direct, buf);
+        assertEquals(expected.getValue(), direct.getValue());
+        assertEquals(0, buf.position());
+    }
+
+    public void testVersions() throws Exception {
+        for (ChecksumType checksum : ChecksumType.values()) {
+            assertEquals(checksum, ChecksumType.fromVersion(checksum.version()));
+        }
+        try {
+            ChecksumType.fromVersion(3);
+            fail();
+        } catch (java.io.IOException e) {
+            assertTrue(true);
+        }
+    }
+}
@@ -2,16 +2,25 @@ package com.thefactory.datastore;
 
 import junit.framework.TestCase;
 import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.nio.ByteBuffer;
 import java.io.IOException;
 import java.util.Random;
 import java.util.Date;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.lang.Override;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.*;
 
 public class DatabaseTest extends TestCase {
@@ -79,6 +88,33 @@ public class DatabaseTest extends TestCase {
         }
     }
 
+    public void testCloseReleasesLockWhenFlushFails() throws Exception {
+        final boolean[] failing = new boolean[]{false};
+        FileSystem fs = new MemFileSystem() {
+            @Override
+            public DatastoreChannel create(String name) {
+                if(failing[0] && !name.endsWith(".log")) {
+                    throw new IllegalArgumentException("no space left: " + name);
+                }
+                return super.create(name);
+            }
+        };
+        Database db = Database.open(DB_PATH, new Database.Options(fs));
+        db.put(new Slice("key".getBytes()), new Slice("value".getBytes()));
+        failing[0] = true;
+        try {
+            db.close();
+            fail("close didn't report the failed flush");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+
+        failing[0] = false;
+        db = Database.open(DB_PATH, new Database.Options(fs));
+        assertEquals("value", new String(db.get(new Slice("key".getBytes())).toArray()));
+        db.close();
+    }
+
     public void testDatabaseLockDiskFileSystem() throws Exception {
         FileSystem fs = new DiskFileSystem();
         Database one = Database.open(DB_PATH, new Database.Options(fs));
@@ -292,6 +328,31 @@ public class DatabaseTest extends TestCase {
        
     }
 
+    public void testDatabaseMultiFileTabletBoundedOpenTablets() throws Exception {
+        Database.Options options = new Database.Options(new DiskFileSystem());
+        options.maxOpenTablets = 1;
+        options.tabletOpenThreads = 0;
+        Database db = Database.open(DB_PATH, options);
+        db.pushTablet("../../test-data/ngrams2/ngrams.tab.0");
+        db.pushTablet("../../test-data/ngrams2/ngrams.tab.1");
+        db.close();
+
+        db = Database.open(DB_PATH, options);
+        Iterator<KV> it = db.find();
+        BufferedReader reader = new BufferedReader(new FileReader("../test-data/ngrams2/ngrams2.txt"));
+        String line;
+        while((line = reader.readLine()) != null){
+            String[] kv = line.split(" ");
+            byte[] k = kv[0].getBytes();
+            byte[] v = kv[1].getBytes();
+            assertTrue(it.hasNext());
+            KV item = it.next();
+            assertEquals(0, Slice.compare(item.getKey(), new Slice(k)));
+            assertEquals(0, Slice.compare(item.getValue(), new Slice(v)));
+        }
+        assertFalse(it.hasNext());
+    }
+
     public void testDatabaseMultiFileTabletFindFromN() throws Exception {
         Database db = setupDatabase(new DiskFileSystem(), 
                                     new String[] 
@@ -504,6 +565,921 @@ public class DatabaseTest extends TestCase {
         }
     }
 
+    public void testDatabaseReplayBothLogs() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.flushOnClose = false;
+        Database db = Database.open(DB_PATH, options);
+        for(int i = 0; i < 10; i++) {
+            db.put(new Slice(String.format("key%d", i).getBytes()), new Slice(String.format("old%d", i).getBytes()));
+        }
+        db.close();
+
+        // simulate a crash while the immutable tablet was being saved
+        fs.rename(new File(DB_PATH, FileManager.TABLET_WRITE_LOG_FILE).getPath(),
+                  new File(DB_PATH, FileManager.IMMUTABLE_TABLET_WRITE_LOG_FILE).getPath());
+
+        db = Database.open(DB_PATH, options);
+        for(int i = 5; i < 15; i++) {
+            db.put(new Slice(String.format("key%d", i).getBytes()), new Slice(String.format("new%d", i).getBytes()));
+        }
+        db.close();
+
+        db = setupDatabase(fs, new String[]{});
+        for(int i = 0; i < 15; i++) {
+            Slice value = db.get(new Slice(String.format("key%d", i).getBytes()));
+            String expected = String.format(i < 5 ? "old%d" : "new%d", i);
+            assertEquals(Slice.compare(value, new Slice(expected.getBytes())), 0);
+        }
+    }
+
+    public void testDatabaseFlushOnClose() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database db = setupDatabase(fs, new String[]{});
+        for(int i = 0; i < 10; i++) {
+            db.put(new Slice(String.format("key%d", i).getBytes()), new Slice(String.format("value%d", i).getBytes()));
+        }
+        db.close();
+
+        assertEquals(0, fs.size(new File(DB_PATH, FileManager.TABLET_WRITE_LOG_FILE).getPath()));
+        assertFalse(fs.exists(new File(DB_PATH, FileManager.IMMUTABLE_TABLET_WRITE_LOG_FILE).getPath()));
+        assertEquals(1, fs.loadList(new File(DB_PATH, FileManager.TABLET_META_FILE).getPath()).size());
+
+        db = setupDatabase(fs, new String[]{});
+        for(int i = 0; i < 10; i++) {
+            Slice value = db.get(new Slice(String.format("key%d", i).getBytes()));
+            assertEquals(Slice.compare(value, new Slice(String.format("value%d", i).getBytes())), 0);
+        }
+    }
+
+    public void testDatabaseFastClose() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.flushOnClose = false;
+        Database db = Database.open(DB_PATH, options);
+        db.put(new Slice("key".getBytes()), new Slice("value".getBytes()));
+        db.close();
+
+        assertTrue(fs.size(new File(DB_PATH, FileManager.TABLET_WRITE_LOG_FILE).getPath()) > 0);
+        assertFalse(fs.exists(new File(DB_PATH, FileManager.TABLET_META_FILE).getPath()));
+    }
+
+    private Slice largeValue(int i, int version) {
+        byte[] value = new byte[1000];
+        Arrays.fill(value, (byte) ('a' + version));
+        System.arraycopy(String.format("value%d", i).getBytes(), 0, value, 0, String.format("value%d", i).length());
+        return new Slice(value);
+    }
+
+    public void testDatabaseValueLog() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.valueLogThreshold = 100;
+        Database db = Database.open(DB_PATH, options);
+        for(int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("key%03d", i).getBytes()), largeValue(i, 0));
+            db.put(new Slice(String.format("small%03d", i).getBytes()), new Slice("small".getBytes()));
+        }
+        db.flush();
+
+        // the tablet only holds pointers to the large values
+        String tablet = fs.loadList(new File(DB_PATH, FileManager.TABLET_META_FILE).getPath()).iterator().next();
+        assertTrue(fs.size(new File(DB_PATH, tablet).getPath()) < 100 * 1000);
+        assertTrue(fs.exists(new File(DB_PATH, "000000.vlog").getPath()));
+
+        for(int i = 0; i < 100; i++) {
+            assertEquals(largeValue(i, 0), db.get(new Slice(String.format("key%03d", i).getBytes())));
+        }
+
+        // overwrite or delete most of the values in the first log
+        for(int i = 0; i < 80; i++) {
+            Slice key = new Slice(String.format("key%03d", i).getBytes());
+            if(i % 2 == 0) {
+                db.put(key, largeValue(i, 1));
+            } else {
+                db.delete(key);
+            }
+        }
+        db.flush();
+
+        List<ValueLog.Stats> stats = db.collectValueLogGarbage(0.5);
+        assertEquals(2, stats.size());
+        assertEquals(0, stats.get(0).number);
+        assertEquals(20 * 1000, stats.get(0).liveBytes);
+        assertEquals(100 * 1000, stats.get(0).totalBytes);
+        assertEquals(0.0, stats.get(1).staleRatio());
+        // deleted on close
+        assertTrue(fs.exists(new File(DB_PATH, "000000.vlog").getPath()));
+        db.close();
+        assertFalse(fs.exists(new File(DB_PATH, "000000.vlog").getPath()));
+
+        db = Database.open(DB_PATH, options);
+        Iterator<KV> kvs = db.findByPrefix(new Slice("key".getBytes()));
+        for(int i = 0; i < 100; i++) {
+            if(i < 80 && i % 2 == 1) {
+                continue;
+            }
+            KV kv = kvs.next();
+            assertEquals(new Slice(String.format("key%03d", i).getBytes()), kv.getKey());
+            assertEquals(largeValue(i, i < 80 ? 1 : 0), kv.getValue());
+        }
+        assertFalse(kvs.hasNext());
+        assertEquals(new Slice("small".getBytes()), db.get(new Slice("small042".getBytes())));
+        db.close();
+    }
+
+    public void testDatabaseValueLogRemovedUnderIterator() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.valueLogThreshold = 100;
+        Database db = Database.open(DB_PATH, options);
+        for(String prefix : new String[]{"a", "b"}) {
+            for(int i = 0; i < 10; i++) {
+                db.put(new Slice(String.format("%s%03d", prefix, i).getBytes()), largeValue(i, 0));
+            }
+            db.flush();
+        }
+        db.close();
+
+        // the iterator has only read from the first log when both are removed
+        db = Database.open(DB_PATH, options);
+        Iterator<KV> kvs = db.find();
+        db.collectValueLogGarbage(0.0);
+        for(String prefix : new String[]{"a", "b"}) {
+            for(int i = 0; i < 10; i++) {
+                KV kv = kvs.next();
+                assertEquals(new Slice(String.format("%s%03d", prefix, i).getBytes()), kv.getKey());
+                assertEquals(largeValue(i, 0), kv.getValue());
+            }
+        }
+        assertFalse(kvs.hasNext());
+        db.close();
+
+        // a crash leaves the removed logs to the next open
+        fs.storeList(Arrays.asList("2", "removed=0", "next=3"), new File(DB_PATH, FileManager.VALUE_LOG_META_FILE).getPath());
+        fs.create(new File(DB_PATH, "000000.vlog").getPath()).close();
+        db = Database.open(DB_PATH, options);
+        assertFalse(fs.exists(new File(DB_PATH, "000000.vlog").getPath()));
+        assertEquals(largeValue(3, 0), db.get(new Slice("b003".getBytes())));
+        db.close();
+    }
+
+    public void testDatabaseValueLogNumbersNotReused() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.valueLogThreshold = 100;
+        Database db = Database.open(DB_PATH, options);
+        for(int i = 0; i < 10; i++) {
+            db.put(new Slice(String.format("a%03d", i).getBytes()), largeValue(i, 0));
+        }
+        db.flush();
+        for(int i = 0; i < 10; i++) {
+            db.put(new Slice(String.format("b%03d", i).getBytes()), largeValue(i, 0));
+        }
+        db.flush();
+        for(int i = 0; i < 10; i++) {
+            db.delete(new Slice(String.format("b%03d", i).getBytes()));
+        }
+        db.flush();
+        // removes the newest log, 000001.vlog
+        db.collectValueLogGarbage(0.5);
+        db.close();
+
+        db = Database.open(DB_PATH, options);
+        for(int i = 0; i < 10; i++) {
+            db.put(new Slice(String.format("c%03d", i).getBytes()), largeValue(i, 1));
+        }
+        db.flush();
+        assertFalse(fs.exists(new File(DB_PATH, "000001.vlog").getPath()));
+        assertTrue(fs.exists(new File(DB_PATH, "000000.vlog").getPath()));
+        assertTrue(fs.exists(new File(DB_PATH, "000003.vlog").getPath()));
+        assertEquals(largeValue(5, 1), db.get(new Slice("c005".getBytes())));
+        assertEquals(largeValue(5, 0), db.get(new Slice("a005".getBytes())));
+        db.close();
+    }
+
+    private int countKeys(Database db, String prefix) throws IOException {
+        int ret = 0;
+        Iterator<KV> kvs = db.findByPrefix(new Slice(prefix.getBytes()));
+        while(kvs.hasNext()) {
+            kvs.next();
+            ret++;
+        }
+        return ret;
+    }
+
+    public void testDatabaseDeleteRange() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.flushOnClose = false;
+        Database db = Database.open(DB_PATH, options);
+        for(String tenant : new String[]{"a", "b", "c"}) {
+            for(int i = 0; i < 100; i++) {
+                db.put(new Slice(String.format("%s/key%03d", tenant, i).getBytes()), new Slice("value".getBytes()));
+            }
+        }
+        db.flush();
+
+        // covers keys in the file tablet and the memtable, but not later writes
+        db.put(new Slice("b/key100".getBytes()), new Slice("value".getBytes()));
+        db.deleteRange(new Slice("b/".getBytes()), new Slice("b0".getBytes()));
+        db.put(new Slice("b/key042".getBytes()), new Slice("new".getBytes()));
+
+        assertEquals(100, countKeys(db, "a/"));
+        assertEquals(1, countKeys(db, "b/"));
+        assertEquals(100, countKeys(db, "c/"));
+        assertEquals(new Slice("new".getBytes()), db.get(new Slice("b/key042".getBytes())));
+        try {
+            db.get(new Slice("b/key041".getBytes()));
+            fail();
+        } catch (KeyNotFoundException e) {
+        }
+
+        // replayed from the transaction log
+        db.close();
+        db = Database.open(DB_PATH, options);
+        assertEquals(1, countKeys(db, "b/"));
+
+        // stored in the flushed tablet
+        db.flush();
+        db.close();
+        db = setupDatabase(fs, new String[]{});
+        assertEquals(100, countKeys(db, "a/"));
+        assertEquals(1, countKeys(db, "b/"));
+        assertEquals(100, countKeys(db, "c/"));
+        db.close();
+    }
+
+    private static MergeOperator counter = new MergeOperator() {
+        public Slice merge(Slice key, Slice existing, Slice operand) {
+            long sum = ByteBuffer.wrap(operand.toArray()).getLong();
+            if(existing != null) {
+                sum += ByteBuffer.wrap(existing.toArray()).getLong();
+            }
+            return count(sum);
+        }
+    };
+
+    private static Slice count(long n) {
+        return new Slice(ByteBuffer.allocate(8).putLong(n).array());
+    }
+
+    public void testDatabaseMerge() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.flushOnClose = false;
+        options.mergeOperator = counter;
+        Database db = Database.open(DB_PATH, options);
+        Slice hits = new Slice("hits".getBytes());
+        Slice base = new Slice("base".getBytes());
+        Slice deleted = new Slice("deleted".getBytes());
+        Slice ranged = new Slice("r/key".getBytes());
+
+        // operands spread over file tablets and the memtable
+        for(int i = 0; i < 10; i++) {
+            db.merge(hits, count(1));
+            if(i % 3 == 0) {
+                db.flush();
+            }
+        }
+        assertEquals(count(10), db.get(hits));
+
+        db.put(base, count(100));
+        db.merge(base, count(5));
+        db.flush();
+        db.merge(base, count(5));
+        assertEquals(count(110), db.get(base));
+
+        db.put(deleted, count(100));
+        db.flush();
+        db.delete(deleted);
+        db.merge(deleted, count(3));
+        assertEquals(count(3), db.get(deleted));
+
+        db.put(ranged, count(100));
+        db.flush();
+        db.deleteRange(new Slice("r/".getBytes()), new Slice("r0".getBytes()));
+        db.merge(ranged, count(7));
+        assertEquals(count(7), db.get(ranged));
+
+        // replayed from the transaction log
+        db.close();
+        db = Database.open(DB_PATH, options);
+        assertEquals(count(10), db.get(hits));
+        assertEquals(count(110), db.get(base));
+        assertEquals(count(3), db.get(deleted));
+        assertEquals(count(7), db.get(ranged));
+
+        db.flush();
+        db.merge(hits, count(1));
+        assertEquals(count(11), db.get(hits));
+        db.flush();
+        db.close();
+
+        // operands can't be read without the operator
+        db = setupDatabase(fs, new String[]{});
+        try {
+            db.get(hits);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        db.close();
+    }
+
+    private String writeIngestTablet(FileSystem fs, String name, String prefix, int from, int to, String value) throws IOException {
+        MemoryTablet mem = new MemoryTablet();
+        for(int i = from; i < to; i++) {
+            mem.set(new Slice(String.format("%s/key%03d", prefix, i).getBytes()), new Slice(value.getBytes()));
+        }
+        String path = new File(DB_PATH, name).getPath();
+        DatastoreChannel channel = fs.create(path);
+        new TabletWriter(new TabletWriterOptions()).writeTablet(channel, mem.find());
+        channel.close();
+        return path;
+    }
+
+    private List<String> tabletStack(FileSystem fs) throws IOException {
+        return new ArrayList<String>(fs.loadList(new File(DB_PATH, FileManager.TABLET_META_FILE).getPath()));
+    }
+
+    /* where the one tablet in after but not in before is in the stack */
+    private int ingestedPosition(List<String> before, List<String> after) {
+        assertEquals(before.size() + 1, after.size());
+        for(int i = 0; i < after.size(); i++) {
+            if(!before.contains(after.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void testDatabaseIngestTablets() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database db = setupDatabase(fs, new String[]{});
+        for(int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("a/key%03d", i).getBytes()), new Slice("old".getBytes()));
+        }
+        db.flush();
+        for(int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("c/key%03d", i).getBytes()), new Slice("old".getBytes()));
+        }
+        db.flush();
+        db.put(new Slice("d/key000".getBytes()), new Slice("old".getBytes()));
+
+        // linked in above the tablet it overlaps, below the newer one it doesn't
+        List<String> before = tabletStack(fs);
+        String linked = writeIngestTablet(fs, "ingest-a", "a", 10, 20, "new");
+        db.ingestTablets(Arrays.asList(linked), Database.IngestMode.LINK);
+        assertTrue(fs.exists(linked));
+        assertEquals(1, ingestedPosition(before, tabletStack(fs)));
+        assertEquals(new Slice("new".getBytes()), db.get(new Slice("a/key015".getBytes())));
+        assertEquals(new Slice("old".getBytes()), db.get(new Slice("a/key020".getBytes())));
+        assertEquals(100, countKeys(db, "a/"));
+
+        // overlaps the mutable tablet, which gets flushed first
+        String moved = writeIngestTablet(fs, "ingest-d", "d", 0, 10, "new");
+        db.ingestTablets(Arrays.asList(moved), Database.IngestMode.MOVE);
+        assertFalse(fs.exists(moved));
+        List<String> stack = tabletStack(fs);
+        assertEquals(5, stack.size());
+        assertEquals(new Slice("new".getBytes()), db.get(new Slice("d/key000".getBytes())));
+
+        // overlaps nothing, so it goes to the bottom
+        String bottom = writeIngestTablet(fs, "ingest-z", "z", 0, 10, "new");
+        db.ingestTablets(Arrays.asList(bottom), Database.IngestMode.MOVE);
+        assertEquals(0, ingestedPosition(stack, tabletStack(fs)));
+        assertEquals(10, countKeys(db, "z/"));
+
+        // nothing is moved when one of the files isn't a tablet
+        stack = tabletStack(fs);
+        String valid = writeIngestTablet(fs, "ingest-b", "b", 0, 10, "new");
+        String invalid = new File(DB_PATH, "ingest-bad").getPath();
+        DatastoreChannel channel = fs.create(invalid);
+        channel.write(ByteBuffer.wrap("not a tablet".getBytes()));
+        channel.close();
+        try {
+            db.ingestTablets(Arrays.asList(valid, invalid), Database.IngestMode.MOVE);
+            fail();
+        } catch (IOException e) {
+        }
+        assertTrue(fs.exists(valid));
+        assertEquals(stack, tabletStack(fs));
+        assertEquals(0, countKeys(db, "b/"));
+        db.close();
+
+        db = setupDatabase(fs, new String[]{});
+        assertEquals(new Slice("new".getBytes()), db.get(new Slice("a/key015".getBytes())));
+        assertEquals(new Slice("new".getBytes()), db.get(new Slice("d/key000".getBytes())));
+        assertEquals(10, countKeys(db, "z/"));
+        db.close();
+    }
+
+    public void testDatabaseIngestTabletsRollback() throws Exception {
+        final String[] failing = new String[1];
+        final boolean[] failingStack = new boolean[]{false};
+        FileSystem fs = new DiskFileSystem() {
+            @Override
+            public void rename(String oldName, String newName) {
+                if(oldName.equals(failing[0])) {
+                    throw new IllegalArgumentException("Failed to rename file: " + oldName);
+                }
+                super.rename(oldName, newName);
+            }
+
+            @Override
+            public void storeList(Collection<String> items, String name) throws IOException {
+                if(failingStack[0] && name.endsWith(FileManager.TABLET_META_FILE)) {
+                    failingStack[0] = false;
+                    throw new IOException("no space left: " + name);
+                }
+                super.storeList(items, name);
+            }
+        };
+        Database db = setupDatabase(fs, new String[]{});
+        db.put(new Slice("a/key000".getBytes()), new Slice("old".getBytes()));
+        db.flush();
+        List<String> stack = tabletStack(fs);
+
+        // the tablet moved in before the failure is moved back
+        String first = writeIngestTablet(fs, "ingest-b", "b", 0, 10, "new");
+        String second = writeIngestTablet(fs, "ingest-c", "c", 0, 10, "new");
+        failing[0] = second;
+        try {
+            db.ingestTablets(Arrays.asList(first, second), Database.IngestMode.MOVE);
+            fail();
+        } catch (IOException e) {
+        }
+        assertTrue(fs.exists(first));
+        assertTrue(fs.exists(second));
+        assertEquals(stack, tabletStack(fs));
+        assertEquals(0, countKeys(db, "b/"));
+        // and nothing is left behind under a tablet name
+        assertEquals(new HashSet<String>(Arrays.asList("ingest-b", "ingest-c")), new HashSet<String>(TabletVerifier.unlistedFiles(DB_PATH)));
+
+        // and so are both when the stack can't be written
+        failing[0] = null;
+        failingStack[0] = true;
+        try {
+            db.ingestTablets(Arrays.asList(first, second), Database.IngestMode.MOVE);
+            fail();
+        } catch (IOException e) {
+        }
+        assertTrue(fs.exists(first));
+        assertTrue(fs.exists(second));
+        assertEquals(stack, tabletStack(fs));
+        assertEquals(0, countKeys(db, "b/"));
+        assertEquals(new HashSet<String>(Arrays.asList("ingest-b", "ingest-c")), new HashSet<String>(TabletVerifier.unlistedFiles(DB_PATH)));
+
+        // values in another database's value logs
+        String pointers = new File(DB_PATH, "ingest-p").getPath();
+        DatastoreChannel channel = fs.create(pointers);
+        List<KV> kvs = Arrays.asList(new KV().valuePointer(new Slice("p/key000".getBytes()), new Slice(new byte[]{0, 0, 10})));
+        new TabletWriter(new TabletWriterOptions()).writeTablet(channel, kvs.iterator());
+        channel.close();
+        try {
+            db.ingestTablets(Arrays.asList(pointers), Database.IngestMode.MOVE);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("value logs"));
+        }
+        assertTrue(fs.exists(pointers));
+        fs.remove(pointers);
+
+        db.ingestTablets(Arrays.asList(first, second), Database.IngestMode.MOVE);
+        assertEquals(10, countKeys(db, "b/"));
+        assertEquals(10, countKeys(db, "c/"));
+        db.close();
+    }
+
+    private static KeyComparator reverse = new KeyComparator() {
+        public String name() {
+            return "reverse";
+        }
+
+        public int compare(Slice x, Slice y) {
+            return KeyComparator.LEXICOGRAPHIC.compare(y, x);
+        }
+    };
+
+    public void testDatabaseComparator() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.comparator = reverse;
+        Database db = Database.open(DB_PATH, options);
+        for(int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("key%03d", i).getBytes()), new Slice("value".getBytes()));
+            if(i == 50) {
+                db.flush();
+            }
+        }
+        db.deleteRange(new Slice("key089".getBytes()), new Slice("key079".getBytes()));
+
+        Iterator<KV> kvs = db.find();
+        for(int i = 99; i >= 0; i--) {
+            if(i <= 89 && i > 79) {
+                continue;
+            }
+            assertEquals(new Slice(String.format("key%03d", i).getBytes()), kvs.next().getKey());
+        }
+        assertFalse(kvs.hasNext());
+        assertEquals(new Slice("key042".getBytes()), db.find(new Slice("key042".getBytes())).next().getKey());
+        db.close();
+
+        // the tablets record their order
+        Database.Options lexicographic = new Database.Options(fs);
+        lexicographic.tabletOpenThreads = 0;
+        db = Database.open(DB_PATH, lexicographic);
+        try {
+            db.find();
+            fail();
+        } catch (IOException e) {
+        }
+        db.close();
+        db = Database.open(DB_PATH, options);
+        assertEquals(new Slice("key099".getBytes()), db.find().next().getKey());
+        assertEquals(new Slice("key079".getBytes()), db.find(new Slice("key088".getBytes())).next().getKey());
+        db.close();
+    }
+
+    public void testDatabaseRowCache() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.rowCacheSize = 1024 * 1024;
+        options.mergeOperator = counter;
+        Database db = Database.open(DB_PATH, options);
+        Slice key = new Slice("key".getBytes());
+
+        db.put(key, new Slice("one".getBytes()));
+        db.flush();
+        assertEquals(new Slice("one".getBytes()), db.get(key));
+        assertEquals(new Slice("one".getBytes()), db.get(key));
+
+        db.put(key, new Slice("two".getBytes()));
+        assertEquals(new Slice("two".getBytes()), db.get(key));
+
+        db.delete(key);
+        assertNull(db.getOrElse(key, null));
+
+        db.put(key, new Slice("three".getBytes()));
+        assertEquals(new Slice("three".getBytes()), db.get(key));
+        db.deleteRange(new Slice("k".getBytes()), new Slice("l".getBytes()));
+        assertNull(db.getOrElse(key, null));
+
+        Slice hits = new Slice("hits".getBytes());
+        db.merge(hits, count(1));
+        assertEquals(count(1), db.get(hits));
+        db.merge(hits, count(1));
+        assertEquals(count(2), db.get(hits));
+
+        // a returned value can be read without changing the cached one
+        db.get(hits).forward(8);
+        assertEquals(count(2), db.get(hits));
+        db.merge(hits, count(1));
+        db.get(hits).forward(8);
+        assertEquals(count(3), db.get(hits));
+        db.close();
+    }
+
+    public void testDatabaseStallNanos() throws Exception {
+        Database db = Database.open(DB_PATH, new Database.Options(new DiskFileSystem(), 10));
+        // starts a flush without waiting for an earlier one
+        db.put(new Slice("key".getBytes()), new Slice("a value over the limit".getBytes()));
+        assertEquals(0, db.getStats().get(Statistics.Counter.STALL_NANOS));
+        db.close();
+    }
+
+    public void testDatabaseStats() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database.Options options = new Database.Options(fs);
+        options.mbeanName = "test";
+        Database db = Database.open(DB_PATH, options);
+        for(int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("key%04d", i).getBytes()), new Slice("value".getBytes()));
+        }
+        Statistics.Snapshot stats = db.getStats();
+        assertEquals(100, stats.get(Statistics.Counter.WRITES));
+        assertEquals(100, stats.get(Statistics.Timer.WRITE).count);
+        assertTrue(stats.get(Statistics.Counter.WAL_BYTES) > 100 * 12);
+        assertTrue(stats.mutableTabletBytes > 0);
+        assertEquals(0, stats.fileTablets);
+
+        db.flush();
+        assertEquals(new Slice("value".getBytes()), db.get(new Slice("key0042".getBytes())));
+        assertNull(db.getOrElse(new Slice("nokey".getBytes()), null));
+        Iterator<KV> kvs = db.find();
+        while(kvs.hasNext()) {
+            kvs.next();
+        }
+
+        stats = db.getStats();
+        assertEquals(1, stats.get(Statistics.Counter.FLUSHES));
+        assertEquals(1, stats.get(Statistics.Timer.FLUSH).count);
+        assertTrue(stats.get(Statistics.Counter.FLUSH_BYTES) > 0);
+        assertEquals(1, stats.fileTablets);
+        assertEquals(0, stats.mutableTabletBytes);
+        assertEquals(2, stats.get(Statistics.Counter.GETS));
+        assertEquals(1, stats.get(Statistics.Counter.GETS_FOUND));
+        assertEquals(5, stats.get(Statistics.Counter.BYTES_READ));
+        assertEquals(1, stats.get(Statistics.Counter.SEEKS));
+        assertEquals(1, stats.get(Statistics.Timer.SCAN).count);
+        assertTrue(stats.get(Statistics.Timer.SCAN).max >= stats.get(Statistics.Timer.SEEK).max);
+        assertTrue(stats.get(Statistics.Counter.BLOCKS_READ) >= 3);
+        assertEquals(stats.get(Statistics.Counter.BLOCKS_READ), stats.get(Statistics.Counter.BLOCKS_DECOMPRESSED));
+        assertTrue(stats.get(Statistics.Counter.BLOCK_BYTES_READ) > 0);
+
+        ObjectName name = new ObjectName("com.thefactory.datastore:type=Database,name=\"test\"");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(2L, server.getAttribute(name, "Gets"));
+        assertEquals(1L, server.getAttribute(name, "FileTablets"));
+        assertTrue((Double) server.getAttribute(name, "GetP99Micros") > 0);
+        assertEquals(1L, server.getAttribute(name, "ScanCount"));
+        db.close();
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testDatabasePerfContext() throws Exception {
+        FileSystem fs = new DiskFileSystem();
+        Database db = setupDatabase(fs, new String[]{});
+        for(int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("key%04d", i).getBytes()), new Slice("value".getBytes()));
+        }
+        db.flush();
+        db.delete(new Slice("key0042".getBytes()));
+        db.put(new Slice("key0050".getBytes()), new Slice("newer".getBytes()));
+
+        PerfContext perf = PerfContext.enable();
+        assertSame(perf, PerfContext.current());
+        assertNull(db.getOrElse(new Slice("key0042".getBytes()), null));
+        assertEquals(2, perf.tabletsProbed);
+        assertEquals(1, perf.tombstonesSkipped);
+        assertEquals(1, perf.shadowedSkipped);
+        assertTrue(perf.blocksLoaded >= 1);
+        assertTrue(perf.blockBytesRead > 0);
+        assertTrue(perf.keysCompared > 0);
+        assertTrue(perf.seekNanos > 0);
+
+        perf.reset();
+        Iterator<KV> kvs = db.find();
+        int count = 0;
+        while(kvs.hasNext()) {
+            kvs.next();
+            count++;
+        }
+        assertEquals(99, count);
+        assertEquals(2, perf.tabletsProbed);
+        assertEquals(1, perf.tombstonesSkipped);
+        assertEquals(2, perf.shadowedSkipped);
+        assertTrue(perf.blocksLoaded >= 1);
+        assertTrue(perf.nextNanos > 0);
+        assertEquals(perf.seekNanos + perf.nextNanos, perf.totalNanos());
+        assertTrue(perf.toString().contains("tablets_probed=2"));
+
+        PerfContext.disable();
+        assertNull(PerfContext.current());
+        long blocks = perf.blocksLoaded;
+        db.get(new Slice("key0050".getBytes()));
+        assertEquals(blocks, perf.blocksLoaded);
+        db.close();
+    }
+
+    public void testDatabaseListener() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        Database.Options options = new Database.Options(new DiskFileSystem());
+        options.listeners.add(new DatabaseListener.Adapter() {
+            public void onFlushBegin(String tablet, long memoryBytes) {
+                throw new IllegalStateException("a failing listener is ignored");
+            }
+        });
+        options.listeners.add(new DatabaseListener.Adapter() {
+            public void onFlushBegin(String tablet, long memoryBytes) {
+                assertTrue(memoryBytes > 0);
+                events.add("begin");
+            }
+
+            public void onFlushCompleted(String tablet, long keys, long bytes, long nanos) {
+                assertTrue(bytes > 0);
+                assertTrue(nanos > 0);
+                events.add(String.format("completed %d", keys));
+            }
+
+            public void onTabletPushed(String tablet, int position, int tablets) {
+                events.add(String.format("pushed %d of %d", position, tablets));
+            }
+
+            public void onTransactionLogRotated(String path, long bytes) {
+                assertTrue(bytes > 0);
+                events.add("rotated");
+            }
+        });
+        Database db = Database.open(DB_PATH, options);
+        for(int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("key%04d", i).getBytes()), new Slice("value".getBytes()));
+        }
+        db.flush();
+        db.put(new Slice("key".getBytes()), new Slice("value".getBytes()));
+        db.flush();
+        assertEquals(Arrays.asList("rotated", "begin", "pushed 0 of 1", "completed 100",
+                                   "rotated", "begin", "pushed 1 of 2", "completed 1"), events);
+        db.close();
+    }
+
+    public void testDatabaseVerifyChecksums() throws Exception {
+        Database.Options options = new Database.Options(new DiskFileSystem());
+        options.tabletChecksum = ChecksumType.CRC32C;
+        Database db = Database.open(DB_PATH, options);
+        for(int i = 0; i < 100; i++) {
+            db.put(new Slice(String.format("key%04d", i).getBytes()), new Slice("value".getBytes()));
+        }
+        db.flush();
+
+        Slice key = new Slice("key0042".getBytes());
+        assertEquals("value", new String(db.get(key).toArray()));
+        assertEquals(0, db.getStats().get(Statistics.Counter.BLOCKS_VERIFIED));
+        assertEquals("value", new String(db.get(key, new Database.ReadOptions(true)).toArray()));
+        assertEquals(1, db.getStats().get(Statistics.Counter.BLOCKS_VERIFIED));
+        // the block is only verified once
+        assertEquals("value", new String(db.get(key, new Database.ReadOptions(true)).toArray()));
+        assertEquals(1, db.getStats().get(Statistics.Counter.BLOCKS_VERIFIED));
+        db.close();
+
+        List<TabletVerifier.Report> reports = new TabletVerifier(new DiskFileSystem(), KeyComparator.LEXICOGRAPHIC)
+            .verifyDatabase(DB_PATH, 1);
+        assertEquals(1, reports.size());
+        assertTrue(reports.get(0).toString(), reports.get(0).isValid());
+        assertEquals(ChecksumType.CRC32C, reports.get(0).checksumType);
+    }
+
+    public void testCheckpoint() throws Exception {
+        File tmp = Utils.createTempDirectory("checkpoint");
+        try {
+            Database db = Database.open(DB_PATH, new Database.Options(new DiskFileSystem()));
+            for(int i = 0; i < 100; i++) {
+                db.put(new Slice(String.format("key%04d", i).getBytes()), new Slice("value".getBytes()));
+            }
+            db.flush();
+            db.put(new Slice("key0100".getBytes()), new Slice("value".getBytes()));
+
+            // with the transaction log, without flushing
+            String withLog = new File(tmp, "log").getPath();
+            db.checkpoint(withLog, false);
+            assertEquals(1, db.getStats().get(Statistics.Counter.FLUSHES));
+            String flushed = new File(tmp, "flushed").getPath();
+            db.checkpoint(flushed);
+            assertEquals(2, db.getStats().get(Statistics.Counter.FLUSHES));
+            db.put(new Slice("key0101".getBytes()), new Slice("value".getBytes()));
+            try {
+                db.checkpoint(flushed);
+                fail("checkpointed to an existing directory");
+            } catch (IOException e) {
+                assertTrue(true);
+            }
+
+            assertEquals(1, new FileManager(withLog, new DiskFileSystem(), false).loadTabletFilenames().size());
+            assertEquals(2, new FileManager(flushed, new DiskFileSystem(), false).loadTabletFilenames().size());
+            String tablet = new FileManager(DB_PATH, new DiskFileSystem(), false).loadTabletFilenames().iterator().next();
+            assertTrue(java.nio.file.Files.isSameFile(new File(DB_PATH, tablet).toPath(), new File(withLog, tablet).toPath()));
+
+            for(String dir : new String[]{withLog, flushed}) {
+                Database checkpoint = Database.open(dir, new Database.Options(new DiskFileSystem()));
+                int count = 0;
+                Iterator<KV> kvs = checkpoint.find();
+                while(kvs.hasNext()) {
+                    assertEquals(String.format("key%04d", count), kvs.next().getKey().toUTF8String());
+                    count++;
+                }
+                assertEquals(101, count);
+                checkpoint.close();
+            }
+            db.close();
+        } finally {
+            Utils.deletePathRecursive(tmp);
+        }
+    }
+
+    public void testIncrementalBackup() throws Exception {
+        File tmp = Utils.createTempDirectory("backup");
+        String dir = new File(tmp, "backup").getPath();
+        try {
+            Database.Options options = new Database.Options(new DiskFileSystem());
+            options.valueLogThreshold = 100;
+            Database db = Database.open(DB_PATH, options);
+            byte[] large = new byte[1000];
+            for(int i = 0; i < 100; i++) {
+                db.put(new Slice(String.format("key%04d", i).getBytes()), new Slice(i % 10 == 0 ? large : "value".getBytes()));
+            }
+            long first = db.backup(dir);
+            assertTrue(first > 10 * 1000);
+            assertEquals(0, db.backup(dir));
+
+            // a backup listing its value logs without the next number may have reused ones
+            String vlogs = new File(dir, FileManager.VALUE_LOG_META_FILE).getPath();
+            List<String> lines = new ArrayList<String>(new DiskFileSystem().loadList(vlogs));
+            assertEquals("next=1", lines.remove(lines.size() - 1));
+            new DiskFileSystem().storeList(lines, vlogs);
+            assertEquals(new File(dir, "000000.vlog").length(), db.backup(dir));
+
+            db.put(new Slice("key0100".getBytes()), new Slice("value".getBytes()));
+            long second = db.backup(dir, false);
+            // only the transaction log
+            assertTrue(second > 0 && second < 1000);
+
+            long third = db.backup(dir);
+            Collection<String> stack = new FileManager(DB_PATH, new DiskFileSystem(), false).loadTabletFilenames();
+            assertEquals(2, stack.size());
+            assertEquals(new File(DB_PATH, new ArrayList<String>(stack).get(1)).length(), third);
+            // no checkpoints are left behind
+            for(String name : new File(DB_PATH).list()) {
+                assertFalse(name, name.startsWith("backup-"));
+            }
+            db.close();
+
+            Database backup = Database.open(dir, new Database.Options(new DiskFileSystem()));
+            assertEquals(1000, backup.get(new Slice("key0090".getBytes())).getLength());
+            assertEquals("value", new String(backup.get(new Slice("key0100".getBytes())).toArray()));
+            backup.close();
+            assertEquals(new HashSet<String>(stack), new HashSet<String>(new FileManager(dir, new DiskFileSystem(), false).loadTabletFilenames()));
+            assertFalse(new File(dir, FileManager.IMMUTABLE_TABLET_WRITE_LOG_FILE).exists());
+        } finally {
+            Utils.deletePathRecursive(tmp);
+        }
+    }
+
+    public void testDatabaseListenerWritesAfterFlush() throws Exception {
+        final Database[] db = new Database[1];
+        final boolean[] written = new boolean[]{false};
+        final CountDownLatch listenerWrote = new CountDownLatch(1);
+        Database.Options options = new Database.Options(new DiskFileSystem(), 10);
+        options.listeners.add(new DatabaseListener.Adapter() {
+            public void onFlushBegin(String tablet, long memoryBytes) {
+                // long enough for the next write to wait for this flush
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+            }
+
+            public void onFlushCompleted(String tablet, long keys, long bytes, long nanos) {
+                if(written[0]) {
+                    return;
+                }
+                written[0] = true;
+                try {
+                    db[0].put(new Slice("flushed".getBytes()), new Slice(tablet.getBytes()));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    listenerWrote.countDown();
+                }
+            }
+        });
+        db[0] = Database.open(DB_PATH, options);
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for(int i = 0; i < 2; i++) {
+                        db[0].put(new Slice(String.format("key%d", i).getBytes()), new Slice("a value over the limit".getBytes()));
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        writer.start();
+        writer.join(10000);
+        assertFalse("deadlocked", writer.isAlive());
+        // the listener writes from the flush thread, so don't close underneath it
+        assertTrue("listener never wrote", listenerWrote.await(10, TimeUnit.SECONDS));
+        db[0].close();
+        db[0] = Database.open(DB_PATH, new Database.Options(new DiskFileSystem()));
+        assertNotNull(db[0].getOrElse(new Slice("flushed".getBytes()), null));
+        db[0].close();
+    }
+
+    public void testBackupMemFileSystem() throws Exception {
+        final List<String> lists = new ArrayList<String>();
+        MemFileSystem fs = new MemFileSystem() {
+            @Override
+            public void storeList(Collection<String> items, String name) {
+                lists.add(name);
+                super.storeList(items, name);
+            }
+        };
+        Database db = Database.open(DB_PATH, new Database.Options(fs));
+        db.put(new Slice("key".getBytes()), new Slice("value".getBytes()));
+        assertTrue(db.backup("backup") > 0);
+        db.close();
+
+        // the checkpoint the backup was copied from is gone
+        for(String name : lists) {
+            if(name.contains("backup-")) {
+                assertFalse(name, fs.exists(name));
+            }
+        }
+        db = Database.open("backup", new Database.Options(fs));
+        assertEquals("value", new String(db.get(new Slice("key".getBytes())).toArray()));
+        db.close();
+    }
+
     public void testDatabaseFindByPrefix() throws Exception {
         FileSystem fs = new DiskFileSystem();
         Database db = setupDatabase(fs, new String[]{});
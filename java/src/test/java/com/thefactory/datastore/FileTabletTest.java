@@ -208,6 +208,70 @@ public class FileTabletTest extends TestCase {
         assertTrue(testForAllKeys("test-data/ngrams1/ngrams1-Nblock-compressed.tab", 2));
     }
 
+    public void testVerifyChecksums() throws Exception {
+        // tablets written before CRC32C have version 1 and CRC32 checksums
+        Statistics stats = new Statistics();
+        FileTablet tablet = new FileTablet(getFileChannel("test-data/ngrams1/ngrams1-Nblock-compressed.tab"),
+                                           new TabletReaderOptions(true, KeyComparator.LEXICOGRAPHIC, stats));
+        assertEquals(40, count(tablet.find()));
+        assertEquals(40, stats.get(Statistics.Counter.BLOCKS_VERIFIED));
+
+        for (ChecksumType checksum : ChecksumType.values()) {
+            File file = File.createTempFile("test-tablet", null);
+            TabletWriterOptions opts = new TabletWriterOptions();
+            opts.blockSize = 256;
+            opts.checksum = checksum;
+            DatastoreChannel channel = new DiskFileSystem().create(file.getPath());
+            List<KV> kvs = new java.util.ArrayList<KV>();
+            for (int i = 0; i < 100; i++) {
+                kvs.add(new KV(String.format("key%03d", i), String.format("value%03d", i)));
+            }
+            new TabletWriter(opts).writeTablet(channel, kvs.iterator());
+            channel.close();
+
+            stats = new Statistics();
+            tablet = new FileTablet(getFileChannel(file.getPath()), new TabletReaderOptions(true, KeyComparator.LEXICOGRAPHIC, stats));
+            int blocks = tablet.index().size();
+            assertTrue(blocks > 1);
+            assertEquals(100, count(tablet.find()));
+            assertEquals(blocks, stats.get(Statistics.Counter.BLOCKS_VERIFIED));
+            // blocks are only verified the first time they are read
+            assertEquals(100, count(tablet.find()));
+            assertEquals(blocks, stats.get(Statistics.Counter.BLOCKS_VERIFIED));
+            assertEquals(blocks, stats.get(Statistics.Counter.BLOCKS_READ) / 2);
+
+            java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw");
+            raf.seek(tablet.index().get(1).offset + 10);
+            int b = raf.read();
+            raf.seek(tablet.index().get(1).offset + 10);
+            raf.write(b ^ 0xff);
+            raf.close();
+
+            // not verified by default, verified on request
+            stats = new Statistics();
+            tablet = new FileTablet(getFileChannel(file.getPath()), new TabletReaderOptions(false, KeyComparator.LEXICOGRAPHIC, stats));
+            tablet.find(new Slice("key000".getBytes()), false);
+            assertEquals(0, stats.get(Statistics.Counter.BLOCKS_VERIFIED));
+            try {
+                count(tablet.find(null, true));
+                fail("corrupt block read without error");
+            } catch (java.util.NoSuchElementException e) {
+                assertTrue(e.getMessage().contains("bad block checksum"));
+            }
+            assertEquals(1, stats.get(Statistics.Counter.CHECKSUM_FAILURES));
+            file.delete();
+        }
+    }
+
+    private static int count(Iterator<KV> kvs) {
+        int ret = 0;
+        while (kvs.hasNext()) {
+            kvs.next();
+            ret++;
+        }
+        return ret;
+    }
+
     // Get a test file so that we can run from the java subtree
     // or top level
     private File getFile(String path) throws FileNotFoundException {
@@ -0,0 +1,55 @@
+package com.thefactory.datastore;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+    public void testEmpty() throws Exception {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.min());
+        assertEquals(0, h.max());
+        assertEquals(0.0, h.percentile(99.0));
+    }
+
+    public void testSmallValuesAreExact() throws Exception {
+        Histogram h = new Histogram();
+        for(int i = 1; i <= 10; i++) {
+            h.record(i);
+        }
+        assertEquals(10, h.count());
+        assertEquals(55, h.sum());
+        assertEquals(5.5, h.mean());
+        assertEquals(1, h.min());
+        assertEquals(10, h.max());
+        assertEquals(5.0, h.median(), 1.0);
+        assertEquals(10.0, h.percentile(100.0));
+    }
+
+    public void testPercentilesWithinBucketError() throws Exception {
+        Histogram h = new Histogram();
+        for(int i = 1; i <= 100000; i++) {
+            h.record(i * 1000L);
+        }
+        assertEquals(50000000.0, h.percentile(50.0), 50000000.0 * 0.07);
+        assertEquals(99000000.0, h.percentile(99.0), 99000000.0 * 0.07);
+        assertEquals(99900000.0, h.percentile(99.9), 99900000.0 * 0.07);
+        assertEquals(100000000L, h.max());
+    }
+
+    public void testMerge() throws Exception {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        a.record(5);
+        a.record(Long.MAX_VALUE);
+        b.record(1);
+        a.merge(b);
+        assertEquals(3, a.count());
+        assertEquals(1, a.min());
+        assertEquals(Long.MAX_VALUE, a.max());
+
+        a.clear();
+        assertEquals(0, a.count());
+        assertEquals(0, a.max());
+    }
+}
@@ -0,0 +1,55 @@
+package com.thefactory.datastore;
+
+import junit.framework.TestCase;
+
+public class RowCacheTest extends TestCase {
+
+    private static Slice slice(String s) {
+        return new Slice(s.getBytes());
+    }
+
+    public void testGetPut() throws Exception {
+        RowCache cache = new RowCache(1024 * 1024, 4);
+        assertNull(cache.get(slice("key")));
+        cache.put(slice("key"), slice("value"), cache.version(slice("key")));
+        assertEquals(slice("value"), cache.get(slice("key")));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        // one segment holding three 100 byte entries
+        RowCache cache = new RowCache(3 * (64 + 4 + 32), 1);
+        String value = "01234567890123456789012345678901";
+        for(int i = 0; i < 3; i++) {
+            Slice key = slice(String.format("key%d", i));
+            cache.put(key, slice(value), cache.version(key));
+        }
+        assertNotNull(cache.get(slice("key0")));
+        cache.put(slice("key3"), slice(value), cache.version(slice("key3")));
+
+        assertNotNull(cache.get(slice("key0")));
+        assertNull(cache.get(slice("key1")));
+        assertNotNull(cache.get(slice("key3")));
+        assertEquals(3 * 100, cache.size());
+    }
+
+    public void testInvalidatedReadIsNotCached() throws Exception {
+        RowCache cache = new RowCache(1024 * 1024, 4);
+        long version = cache.version(slice("key"));
+        cache.invalidate(slice("key"));
+        cache.put(slice("key"), slice("stale"), version);
+        assertNull(cache.get(slice("key")));
+    }
+
+    public void testInvalidateRange() throws Exception {
+        RowCache cache = new RowCache(1024 * 1024, 4);
+        for(String key : new String[]{"a", "b", "c"}) {
+            cache.put(slice(key), slice("value"), cache.version(slice(key)));
+        }
+        cache.invalidate(new RangeTombstone(slice("b"), slice("c")), KeyComparator.LEXICOGRAPHIC);
+        assertNotNull(cache.get(slice("a")));
+        assertNull(cache.get(slice("b")));
+        assertNotNull(cache.get(slice("c")));
+    }
+}
@@ -40,6 +40,62 @@ public class SliceTest extends TestCase {
         assertTrue(Slice.compare(s1, s0) > 0);
     }
 
+    public void testCompareWords() {
+        // long keys at odd offsets, differing in high and low bytes at every position
+        java.util.Random random = new java.util.Random(7);
+        for(int i = 0; i < 10000; i++) {
+            int length = random.nextInt(40);
+            byte[] x = new byte[length + 3];
+            random.nextBytes(x);
+            byte[] y = x.clone();
+            if(length > 0 && random.nextBoolean()) {
+                y[3 + random.nextInt(length)] = (byte) random.nextInt(256);
+            }
+            Slice sx = new Slice(x, 3, length);
+            Slice sy = new Slice(y, 3, random.nextBoolean() ? length : random.nextInt(length + 1));
+
+            int expected = 0;
+            int common = Math.min(sx.getLength(), sy.getLength());
+            for(int j = 0; j < common && expected == 0; j++) {
+                expected = sx.getAt(j) - sy.getAt(j);
+            }
+            if(expected == 0) {
+                expected = sx.getLength() - sy.getLength();
+            }
+            assertEquals(Integer.signum(expected), Integer.signum(Slice.compare(sx, sy)));
+            assertEquals(Integer.signum(expected), Integer.signum(KeyComparator.LEXICOGRAPHIC.compare(sx, sy)));
+        }
+    }
+
+    public void testHash64() throws Exception {
+        // XXH64 reference values
+        assertEquals(0xEF46DB3751D8E999L, new Slice(new byte[0]).hash64());
+        assertEquals(0xD24EC4F1A98C6E5BL, new Slice("a".getBytes("UTF-8")).hash64());
+        assertEquals(0x44BC2CF5AD770999L, new Slice("abc".getBytes("UTF-8")).hash64());
+        assertEquals(0xFBCEA83C8A378BF1L, new Slice("Nobody inspects the spammish repetition".getBytes("UTF-8")).hash64());
+    }
+
+    public void testHashCodeFollowsContents() throws Exception {
+        Slice s0 = new Slice("xxkeyxx".getBytes("UTF-8"), 2, 3);
+        Slice s1 = new Slice("key".getBytes("UTF-8"));
+
+        assertEquals(s0, s1);
+        assertEquals(s0.hashCode(), s1.hashCode());
+        assertEquals(s0.hash64(), s1.hash64());
+        assertFalse(s0.hash64() == new Slice("kez".getBytes("UTF-8")).hash64());
+    }
+
+    public void testCompareOutOfBounds() {
+        byte[] x = new byte[12];
+        byte[] y = new byte[12];
+        try {
+            LexicographicComparator.compare(x, 8, 8, y, 8, 8);
+            fail("read past the end of the array");
+        } catch (IndexOutOfBoundsException e) {
+            assertTrue(true);
+        }
+    }
+
     public void testSubslice() {
         Slice s0 =  new Slice(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
 
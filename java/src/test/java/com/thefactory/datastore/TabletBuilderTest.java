@@ -0,0 +1,90 @@
+package com.thefactory.datastore;
+
+import junit.framework.TestCase;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class TabletBuilderTest extends TestCase {
+
+    private FileSystem fs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fs = new MemFileSystem();
+    }
+
+    /* add random puts and deletes to builder and return the expected result, null for deleted keys */
+    private TreeMap<Slice, Slice> addRandom(TabletBuilder builder, int n, int keys) throws Exception {
+        TreeMap<Slice, Slice> ret = new TreeMap<Slice, Slice>();
+        Random random = new Random(42);
+        byte[] key = new byte[7];
+        for(int i = 0; i < n; i++) {
+            // reuse the key array, which the builder must copy
+            System.arraycopy(String.format("key%04d", random.nextInt(keys)).getBytes(), 0, key, 0, key.length);
+            Slice k = new Slice(key);
+            if(random.nextInt(10) == 0) {
+                builder.delete(k);
+                ret.put(new Slice(key.clone()), null);
+            } else {
+                Slice v = new Slice(String.format("value%d", i).getBytes());
+                builder.put(k, v);
+                ret.put(new Slice(key.clone()), v);
+            }
+        }
+        return ret;
+    }
+
+    private void assertTablets(TreeMap<Slice, Slice> expected, List<String> tablets) throws Exception {
+        Iterator<Map.Entry<Slice, Slice>> it = expected.entrySet().iterator();
+        for(String path : tablets) {
+            FileTablet tablet = new FileTablet(fs.open(path), new TabletReaderOptions());
+            Iterator<KV> kvs = tablet.find();
+            while(kvs.hasNext()) {
+                KV kv = kvs.next();
+                Map.Entry<Slice, Slice> e = it.next();
+                assertEquals(e.getKey(), kv.getKey());
+                if(e.getValue() == null) {
+                    assertTrue(kv.isDeleted());
+                } else {
+                    assertFalse(kv.isDeleted());
+                    assertEquals(e.getValue(), kv.getValue());
+                }
+            }
+            tablet.close();
+        }
+        assertFalse(it.hasNext());
+    }
+
+    public void testBuildInMemory() throws Exception {
+        TabletBuilder builder = new TabletBuilder(fs, "build", new TabletBuilder.Options());
+        TreeMap<Slice, Slice> expected = addRandom(builder, 1000, 300);
+        List<String> tablets = builder.finish();
+        builder.close();
+
+        assertEquals(1, tablets.size());
+        assertTablets(expected, tablets);
+        assertFalse(fs.exists("build/run-000000"));
+    }
+
+    public void testBuildFromRuns() throws Exception {
+        TabletBuilder.Options options = new TabletBuilder.Options();
+        options.memoryBudget = 16 * 1024;
+        options.sortThreads = 3;
+        options.mergeWidth = 4;
+        options.maxTabletSize = 4 * 1024;
+        TabletBuilder builder = new TabletBuilder(fs, "build", options);
+        TreeMap<Slice, Slice> expected = addRandom(builder, 20000, 2000);
+        List<String> tablets = builder.finish();
+        builder.close();
+
+        assertTrue(tablets.size() > 1);
+        assertTablets(expected, tablets);
+        for(int i = 0; i < 100; i++) {
+            assertFalse(fs.exists(String.format("build/run-%06d", i)));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.thefactory.datastore;
+
+import junit.framework.TestCase;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class TabletCacheTest extends TestCase {
+
+    private FileSystem fs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fs = new MemFileSystem();
+    }
+
+    private FileTablet createTablet(String name, TabletCache cache, int nKeys) throws Exception {
+        MemoryTablet mem = new MemoryTablet();
+        for(int i = 0; i < nKeys; i++) {
+            mem.set(new Slice(String.format("%s-key%04d", name, i).getBytes()), new Slice("val".getBytes()));
+        }
+        DatastoreChannel channel = fs.create(name);
+        new TabletWriter(new TabletWriterOptions()).writeTablet(channel, mem.find());
+        channel.close();
+        return new FileTablet(fs, name, new TabletReaderOptions(), cache);
+    }
+
+    private int count(Iterator<KV> kvs) {
+        int ret = 0;
+        while(kvs.hasNext()) {
+            kvs.next();
+            ret++;
+        }
+        return ret;
+    }
+
+    public void testOpenOnFirstAccess() throws Exception {
+        TabletCache cache = new TabletCache(10);
+        FileTablet tablet = createTablet("t0", cache, 100);
+        assertFalse(tablet.isOpen());
+        assertEquals(0, cache.size());
+
+        assertEquals(100, count(tablet.find()));
+        assertTrue(tablet.isOpen());
+        assertEquals(1, cache.size());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        TabletCache cache = new TabletCache(2);
+        FileTablet t0 = createTablet("t0", cache, 10);
+        FileTablet t1 = createTablet("t1", cache, 10);
+        FileTablet t2 = createTablet("t2", cache, 10);
+
+        cache.open(t0);
+        cache.open(t1);
+        cache.open(t0);
+        cache.open(t2);
+
+        assertEquals(2, cache.size());
+        assertTrue(t0.isOpen());
+        assertFalse(t1.isOpen());
+        assertTrue(t2.isOpen());
+
+        // evicted tablets are reopened transparently
+        assertEquals(10, count(t1.find()));
+        assertEquals(2, cache.size());
+        assertFalse(t0.isOpen());
+    }
+
+    public void testReadsKeepTabletsOpen() throws Exception {
+        TabletCache cache = new TabletCache(2);
+        FileTablet hot = createTablet("hot", cache, 10);
+        List<FileTablet> cold = new ArrayList<FileTablet>();
+        for(int i = 0; i < 5; i++) {
+            cold.add(createTablet("cold" + i, cache, 10));
+        }
+
+        // the hot tablet was opened first but is read between every other tablet
+        for(FileTablet tablet : cold) {
+            assertEquals(10, count(hot.find()));
+            assertEquals(10, count(tablet.find()));
+            assertTrue(hot.isOpen());
+        }
+        assertEquals(2, cache.size());
+        for(int i = 0; i < 4; i++) {
+            assertFalse(cold.get(i).isOpen());
+        }
+    }
+
+    public void testIteratorSurvivesEviction() throws Exception {
+        TabletCache cache = new TabletCache(1);
+        FileTablet t0 = createTablet("t0", cache, 1000);
+        FileTablet t1 = createTablet("t1", cache, 10);
+
+        Iterator<KV> kvs = t0.find();
+        assertTrue(kvs.hasNext());
+        kvs.next();
+
+        cache.open(t1);
+        assertFalse(t0.isOpen());
+
+        assertEquals(999, count(kvs));
+    }
+
+    public void testOpenAll() throws Exception {
+        TabletCache cache = new TabletCache(3);
+        List<FileTablet> tablets = new ArrayList<FileTablet>();
+        for(int i = 0; i < 5; i++) {
+            tablets.add(createTablet("t" + i, cache, 10));
+        }
+
+        cache.openAll(tablets, 4);
+
+        assertEquals(3, cache.size());
+        assertFalse(tablets.get(0).isOpen());
+        assertFalse(tablets.get(1).isOpen());
+        for(int i = 2; i < 5; i++) {
+            assertTrue(tablets.get(i).isOpen());
+        }
+
+        cache.close();
+        assertEquals(0, cache.size());
+        for(FileTablet tablet : tablets) {
+            assertFalse(tablet.isOpen());
+        }
+    }
+}
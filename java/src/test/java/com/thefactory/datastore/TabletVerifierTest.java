@@ -0,0 +1,109 @@
+package com.thefactory.datastore;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TabletVerifierTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Utils.createTempDirectory("verify-");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        Utils.deletePathRecursive(dir);
+    }
+
+    private String writeTablet(String name, int keys) throws Exception {
+        List<KV> kvs = new ArrayList<KV>();
+        for (int i = 0; i < keys; i++) {
+            if (i % 10 == 0) {
+                kvs.add(new KV().tombstone(new Slice(String.format("key%05d", i).getBytes())));
+            } else {
+                kvs.add(new KV(String.format("key%05d", i), String.format("value%d", i)));
+            }
+        }
+        String path = new File(dir, name).getPath();
+        FileSystem fs = new DiskFileSystem();
+        DatastoreChannel channel = fs.create(path);
+        new TabletWriter(new TabletWriterOptions()).writeTablet(channel, kvs.iterator());
+        channel.close();
+        return path;
+    }
+
+    public void testVerifyTablet() throws Exception {
+        String path = writeTablet("tablet", 1000);
+        TabletVerifier.Report report = new TabletVerifier(new DiskFileSystem(), KeyComparator.LEXICOGRAPHIC).verify(path);
+        assertTrue(report.toString(), report.isValid());
+        assertEquals(1000, report.keys);
+        assertEquals(100, report.tombstones);
+        assertEquals(1000, report.keySizes.count());
+        assertEquals(8, report.keySizes.max());
+        assertEquals(900, report.valueSizes.count());
+        assertTrue(report.dataBlocks > 1);
+        assertEquals(Long.valueOf(report.dataBlocks), report.codecs.get("SNAPPY"));
+        assertEquals(0, report.uncheckedBlocks);
+        assertEquals(new Slice("key00000".getBytes()), report.firstKey);
+        assertEquals(new Slice("key00999".getBytes()), report.lastKey);
+        assertTrue(report.toString().contains("OK"));
+    }
+
+    public void testVerifyCorruptTablet() throws Exception {
+        String path = writeTablet("tablet", 1000);
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.seek(100);
+        int b = file.read();
+        file.seek(100);
+        file.write(b ^ 0xff);
+        file.close();
+
+        TabletVerifier.Report report = new TabletVerifier(new DiskFileSystem(), KeyComparator.LEXICOGRAPHIC).verify(path);
+        assertFalse(report.isValid());
+        assertTrue(report.errors.get(0), report.errors.get(0).startsWith("data block 0 at 8"));
+        assertTrue(report.toString().contains("CORRUPT"));
+
+        String truncated = new File(dir, "truncated").getPath();
+        RandomAccessFile out = new RandomAccessFile(truncated, "rw");
+        out.write(new byte[20]);
+        out.close();
+        report = new TabletVerifier(new DiskFileSystem(), KeyComparator.LEXICOGRAPHIC).verify(truncated);
+        assertFalse(report.isValid());
+    }
+
+    public void testVerifyDatabase() throws Exception {
+        String path = new File(dir, "db").getPath();
+        Database db = Database.open(path, new Database.Options(new DiskFileSystem()));
+        for (int n = 0; n < 3; n++) {
+            for (int i = 0; i < 100; i++) {
+                db.put(new Slice(String.format("key%04d", i).getBytes()), new Slice(String.format("value%d", n).getBytes()));
+            }
+            db.flush();
+        }
+        db.close();
+
+        TabletVerifier verifier = new TabletVerifier(new DiskFileSystem(), KeyComparator.LEXICOGRAPHIC);
+        List<TabletVerifier.Report> reports = verifier.verifyDatabase(path, 2);
+        assertEquals(3, reports.size());
+        for (TabletVerifier.Report report : reports) {
+            assertTrue(report.toString(), report.isValid());
+            assertEquals(100, report.keys);
+        }
+        assertTrue(TabletVerifier.unlistedFiles(path).isEmpty());
+
+        File missing = new File(reports.get(1).path);
+        assertTrue(missing.renameTo(new File(path, "stray")));
+        reports = verifier.verifyDatabase(path, 2);
+        assertTrue(reports.get(0).isValid());
+        assertEquals(Arrays.asList("listed in stack.txt but missing"), reports.get(1).errors);
+        assertTrue(reports.get(2).isValid());
+        assertEquals(Arrays.asList("stray"), TabletVerifier.unlistedFiles(path));
+    }
+}
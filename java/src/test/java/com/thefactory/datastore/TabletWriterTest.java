@@ -121,6 +121,131 @@ public class TabletWriterTest extends TestCase {
         assertEquals(count, 1000);
     }
 
+    public void testParallelCompressionMatchesInline() throws Exception {
+        List<KV> kvs = new ArrayList<KV>();
+        for(int i = 0; i < 10000; i++) {
+            kvs.add(new KV(String.format("key%06d", i), String.format("value%d", i % 97)));
+        }
+
+        TabletWriterOptions opts = new TabletWriterOptions();
+        ByteArrayOutputStream inline = new ByteArrayOutputStream();
+        new TabletWriter(opts).writeTablet(Channels.newChannel(inline), kvs.iterator());
+
+        opts.compressionThreads = 4;
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        new TabletWriter(opts).writeTablet(Channels.newChannel(parallel), kvs.iterator());
+
+        assertArrayEquals(inline.toByteArray(), parallel.toByteArray());
+
+        FileSystem fs = new MemFileSystem();
+        DatastoreChannel channel = fs.create("parallel");
+        channel.write(java.nio.ByteBuffer.wrap(parallel.toByteArray()));
+        FileTablet ft = new FileTablet(fs.open("parallel"), new TabletReaderOptions());
+        assertTrue(ft.index().size() > 1);
+
+        Iterator<KV> it = ft.find();
+        for(KV expected : kvs) {
+            KV kv = it.next();
+            assertEquals(expected.getKey(), kv.getKey());
+            assertEquals(expected.getValue(), kv.getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    public void testDirectBuffersGatheringWriteMatchesHeap() throws Exception {
+        List<KV> kvs = new ArrayList<KV>();
+        for(int i = 0; i < 10000; i++) {
+            kvs.add(new KV(String.format("key%06d", i), String.format("value%d", i % 97)));
+        }
+
+        TabletWriterOptions opts = new TabletWriterOptions();
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        new TabletWriter(opts).writeTablet(Channels.newChannel(heap), kvs.iterator());
+
+        // MemFileSystem channels take the gathering write path
+        FileSystem fs = new MemFileSystem();
+        opts.useDirectBuffers = true;
+        opts.compressionThreads = 2;
+        DatastoreChannel channel = fs.create("direct");
+        new TabletWriter(opts).writeTablet(channel, kvs.iterator());
+
+        byte[] direct = new byte[(int) channel.size()];
+        fs.open("direct").read(java.nio.ByteBuffer.wrap(direct), 0);
+        assertArrayEquals(heap.toByteArray(), direct);
+    }
+
+    private List<KV> codecTestKVs() {
+        List<KV> kvs = new ArrayList<KV>();
+        for(int i = 0; i < 10000; i++) {
+            kvs.add(new KV(String.format("key%06d", i), String.format("{\"user\": %d, \"status\": \"active\"}", i % 97)));
+        }
+        return kvs;
+    }
+
+    private byte[] writeAndVerify(List<KV> kvs, TabletWriterOptions opts, BlockCodec expected) throws Exception {
+        FileSystem fs = new MemFileSystem();
+        DatastoreChannel channel = fs.create("tablet");
+        new TabletWriter(opts).writeTablet(channel, kvs.iterator());
+        byte[] bytes = new byte[(int) channel.size()];
+        channel.read(java.nio.ByteBuffer.wrap(bytes), 0);
+
+        FileTablet ft = new FileTablet(fs.open("tablet"), new TabletReaderOptions());
+        TabletReader.TabletIndexRecord first = ft.index().get(0);
+        TabletReader.TabletBlockInfo info = new TabletReader.TabletBlockInfo(new Slice(bytes, (int) first.offset, first.length));
+        assertEquals(expected, info.codec);
+
+        Iterator<KV> it = ft.find();
+        for(KV kv : kvs) {
+            KV actual = it.next();
+            assertEquals(kv.getKey(), actual.getKey());
+            assertEquals(kv.getValue(), actual.getValue());
+        }
+        assertFalse(it.hasNext());
+        return bytes;
+    }
+
+    public void testCodecs() throws Exception {
+        List<KV> kvs = codecTestKVs();
+        TabletWriterOptions opts = new TabletWriterOptions();
+        int snappy = writeAndVerify(kvs, opts, BlockCodec.SNAPPY).length;
+
+        opts.codec = BlockCodec.LZ4;
+        writeAndVerify(kvs, opts, BlockCodec.LZ4);
+
+        opts.codec = BlockCodec.ZSTD;
+        opts.compressionThreads = 2;
+        assertTrue(writeAndVerify(kvs, opts, BlockCodec.ZSTD).length < snappy);
+
+        opts.useCompression = false;
+        writeAndVerify(kvs, opts, BlockCodec.NONE);
+    }
+
+    public void testZstdDictionary() throws Exception {
+        List<KV> kvs = codecTestKVs();
+        TabletWriterOptions opts = new TabletWriterOptions();
+        opts.blockSize = 1024;
+        opts.codec = BlockCodec.ZSTD;
+        int plain = writeAndVerify(kvs, opts, BlockCodec.ZSTD).length;
+
+        opts.compressionDictionary = TabletWriter.trainDictionary(kvs.iterator(), opts, 4096);
+        byte[] bytes = writeAndVerify(kvs, opts, BlockCodec.ZSTD);
+        assertTrue(bytes.length < plain);
+
+        FileSystem fs = new MemFileSystem();
+        fs.create("tablet").write(java.nio.ByteBuffer.wrap(bytes));
+        FileTablet ft = new FileTablet(fs.open("tablet"), new TabletReaderOptions());
+        TabletReader.TabletIndexRecord first = ft.index().get(0);
+        TabletReader.TabletBlockInfo info = new TabletReader.TabletBlockInfo(new Slice(bytes, (int) first.offset, first.length));
+        assertTrue(info.usesDictionary);
+
+        // a reader without the dictionary can't decode the block
+        try {
+            new TabletReader().readBlock(new Slice(bytes, (int) first.offset, first.length));
+            fail();
+        } catch (java.io.IOException e) {
+        }
+    }
+
     public void testVerifyKeyOrder() {
         TabletWriterOptions opts = new TabletWriterOptions();
         opts.checkKeyOrder = true;
@@ -226,6 +226,31 @@ public class TransactionLogTests extends TestCase {
         testTransactionLogWriterReaderRandom(10000, 100000, "testlog-xxl");                
     }
 
+    public void testLogContentsAcrossBlocks() throws Exception {
+        // transactions from a few bytes up to several log blocks, crossing block
+        // and read-ahead boundaries
+        byte[] bytes = new byte[5 * TransactionLog.MAX_BLOCK_SIZE];
+        random.nextBytes(bytes);
+        int[] offsets = new int[2000];
+        int[] lengths = new int[offsets.length];
+        TransactionLog.Writer writer = new TransactionLog(fs).getWriter("testlog-contents");
+        for(int i = 0; i < offsets.length; i++) {
+            lengths[i] = (i % 100 == 0) ? random.nextInt(bytes.length) : random.nextInt(1000);
+            offsets[i] = random.nextInt(bytes.length - lengths[i] + 1);
+            writer.writeTransaction(new Slice(bytes, offsets[i], lengths[i]));
+        }
+        writer.close();
+
+        TransactionLog.Reader reader = new TransactionLog(fs).getReader("testlog-contents");
+        Iterator<Slice> iterator = reader.transactions();
+        for(int i = 0; i < offsets.length; i++) {
+            assertTrue(iterator.hasNext());
+            assertEquals(new Slice(bytes, offsets[i], lengths[i]), iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+        reader.close();
+    }
+
     private long testTransactionLogWriterReaderRandom(int txLogSize, int maxTxSize, String logName) throws Exception {
         byte[] bytes = new byte[maxTxSize];
         random.nextBytes(bytes);